@@ -0,0 +1,58 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import packet.Command;
+import packet.Packet;
+import packet.User;
+import run_time_db.UserManagement;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * MESSAGE_ALL fan-out cost per message to N online users backed by in-memory sinks.
+ * The fan-out runs on the public chat's shard, the caller blocks once its queue is full,
+ * so the score settles on the fan-out time rather than the hand-off.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+    @Param({"100", "1000", "10000"})
+    private int recipients;
+
+    private Packet message;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < recipients; i++) {
+            User user = User.builder().nickname("recipient-" + i).password("secret").build();
+            UserManagement.INSTANCE.register(user);
+            UserManagement.INSTANCE.connect(user, new SinkConnection());
+        }
+
+        message = Packet.builder()
+                .message("Hello everyone, the deploy finished and the dashboards look green")
+                .user(User.builder().nickname("sender").build())
+                .command(Command.MESSAGE_ALL)
+                .build();
+    }
+
+    @Benchmark
+    public void broadcastMessage() {
+        UserManagement.INSTANCE.broadcastMessage(message);
+    }
+}
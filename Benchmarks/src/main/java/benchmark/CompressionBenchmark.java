@@ -0,0 +1,93 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import packet.Command;
+import packet.Packet;
+import packet.PacketCodec;
+import packet.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * What deflating one fan-out frame costs against the bytes it saves, per message size,
+ * for chat prose and for a pasted stack trace. The setup prints the deflated size of the
+ * frame; that one frame then goes to every recipient that negotiated compression.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+    private static final String[] CHAT = {
+            "Hey, did anyone see the build break this morning?", "I pushed a fix, it should be green in a few minutes.",
+            "Thanks! Could you also take a look at the flaky login test?", "Sure, I'll check it after lunch.",
+            "The staging database was restarted at 10:42, some sessions were dropped.", "Sounds good to me.",
+            "We should probably move the release to Thursday.", "Does anyone know who owns the metrics dashboard?"};
+    private static final String[] LOG = {
+            "2024-05-14 10:42:17.331 ERROR [event-loop-3] network.NioConnection - Client disconnected or error: Connection reset",
+            "java.io.IOException: Connection reset by peer", "\tat java.base/sun.nio.ch.SocketDispatcher.read0(Native Method)",
+            "\tat java.base/sun.nio.ch.SocketChannelImpl.read(SocketChannelImpl.java:401)",
+            "\tat network.EventLoop.run(EventLoop.java:88)", "\tat java.base/java.lang.Thread.run(Thread.java:1583)"};
+
+    @Param({"256", "1024", "4096", "16384"})
+    private int messageSize;
+
+    @Param({"chat", "log"})
+    private String text;
+
+    private ByteBuffer plainFrame;
+    private ByteBuffer deflatedFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        String[] lines = text.equals("chat") ? CHAT : LOG;
+        Random random = new Random(42);
+        StringBuilder message = new StringBuilder(messageSize + 128);
+        while (message.length() < messageSize) {
+            message.append(lines[random.nextInt(lines.length)]).append('\n');
+        }
+        message.setLength(messageSize);
+
+        plainFrame = PacketCodec.encode(Packet.builder()
+                .message(message.toString())
+                .user(User.builder().nickname("sender").build())
+                .roomName("general")
+                .command(Command.MESSAGE_ROOM)
+                .build());
+        deflatedFrame = PacketCodec.deflate(plainFrame);
+        System.out.printf("%n%d byte frame, %s%n", plainFrame.remaining(),
+                deflatedFrame == null ? "sent plain" : "deflated to " + deflatedFrame.remaining() + " bytes");
+    }
+
+    @Benchmark
+    public ByteBuffer deflate() {
+        return PacketCodec.deflate(plainFrame);
+    }
+
+    /* What every client pays once per message, against plainDecode */
+    @Benchmark
+    public Packet inflate() throws IOException {
+        return PacketCodec.decodeFrame((deflatedFrame == null ? plainFrame : deflatedFrame).duplicate());
+    }
+
+    @Benchmark
+    public Packet plainDecode() throws IOException {
+        return PacketCodec.decodeFrame(plainFrame.duplicate());
+    }
+}
@@ -0,0 +1,99 @@
+package benchmark;
+
+import network.OutboundFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import packet.Command;
+import packet.Packet;
+import packet.User;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The encoding side of one MESSAGE_ALL to N recipients, before and after encode-once:
+ * perRecipientSerialization rebuilds the packet for every recipient and writes it through that
+ * recipient's object stream, as the fan-out used to; encodeOnce encodes one frame and hands every
+ * recipient a view of it, as the fan-out does now. Allocation per broadcast is gc.alloc.rate.norm of
+ *   java -jar target/benchmarks.jar FanOutEncodeBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutEncodeBenchmark {
+    @Param({"1000"})
+    private int recipients;
+
+    private Packet message;
+    private User[] users;
+    private ObjectOutputStream[] streams;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        message = Packet.builder()
+                .message("Hello everyone, the deploy finished and the dashboards look green")
+                .user(User.builder().nickname("sender").build())
+                .command(Command.MESSAGE_ALL)
+                .build();
+
+        users = new User[recipients];
+        streams = new ObjectOutputStream[recipients];
+        for (int i = 0; i < recipients; i++) {
+            /* A registered user holds its password hash, which the old path echoed to the recipient */
+            users[i] = User.builder().nickname("recipient-" + i).password("pbkdf2$310000$c2FsdHNhbHRzYWx0$aGFzaGhhc2hoYXNoaGFzaA").build();
+            streams[i] = new ObjectOutputStream(OutputStream.nullOutputStream());
+        }
+    }
+
+    /* The old streams were never reset and kept every packet they wrote, here they only grow for one iteration */
+    @Setup(Level.Iteration)
+    public void resetStreams() throws IOException {
+        for (ObjectOutputStream stream : streams) {
+            stream.reset();
+        }
+    }
+
+    @Benchmark
+    public void perRecipientSerialization() throws IOException {
+        for (int i = 0; i < recipients; i++) {
+            Packet perRecipient = Packet.builder()
+                    .userRecipient(users[i])
+                    .user(User.builder().nickname(message.getUser().getNickname()).build())
+                    .message(message.getMessage())
+                    .command(Command.MESSAGE_ALL)
+                    .build();
+            streams[i].writeObject(perRecipient);
+            streams[i].flush();
+        }
+    }
+
+    /* Every view goes to the blackhole, as it would to a writer, so none of them is optimized away */
+    @Benchmark
+    public void encodeOnce(Blackhole writers) {
+        OutboundFrame frame = OutboundFrame.message(Packet.builder()
+                .user(User.builder().nickname(message.getUser().getNickname()).build())
+                .message(message.getMessage())
+                .command(Command.MESSAGE_ALL)
+                .build(), false);
+        for (int i = 0; i < recipients; i++) {
+            writers.consume(frame.buffer());
+        }
+        frame.release();
+    }
+}
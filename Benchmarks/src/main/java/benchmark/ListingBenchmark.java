@@ -0,0 +1,57 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import packet.User;
+import run_time_db.UserManagement;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * One page of the online user listing out of N online users, at the start, middle and end
+ * of the listing. The score should hardly move with N or with the depth of the page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ListingBenchmark {
+    private static final int PAGE_SIZE = 100;
+
+    @Param({"1000", "100000"})
+    private int onlineUsers;
+
+    @Param({"0", "0.5", "0.99"})
+    private double depth;
+
+    private String cursor;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        for (int i = 0; i < onlineUsers; i++) {
+            User user = User.builder().nickname("user-%07d".formatted(i)).password("secret").build();
+            UserManagement.INSTANCE.register(user);
+            UserManagement.INSTANCE.connect(user, new SinkConnection());
+        }
+        int before = (int) (onlineUsers * depth);
+        cursor = before == 0 ? null : "user-%07d".formatted(before - 1);
+    }
+
+    @Benchmark
+    public List<String> page() {
+        return UserManagement.INSTANCE.onlineNicknamesAfter(cursor, PAGE_SIZE);
+    }
+}
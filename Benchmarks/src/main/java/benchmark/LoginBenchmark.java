@@ -0,0 +1,58 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import auth.AuthSettings;
+import auth.Authenticator;
+import packet.User;
+
+import java.util.Optional;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Authenticator.login with a large registered population, from several threads at once.
+ * Every account is verified once during setup, so this measures the verified-credential
+ * cache that absorbs reconnect storms, not PBKDF2 itself.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class LoginBenchmark {
+    @Param({"100000"})
+    private int users;
+
+    private Authenticator authenticator;
+    private User[] logins;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        /* A single round keeps setup short, hashing cost is not what is measured */
+        authenticator = new Authenticator(AuthSettings.builder().hashIterations(1).build());
+        logins = new User[users];
+        for (int i = 0; i < users; i++) {
+            logins[i] = User.builder().nickname("user-" + i).password("secret-" + i).build();
+            authenticator.register(logins[i]).join();
+        }
+    }
+
+    @Benchmark
+    public Optional<User> login() {
+        return authenticator.login(logins[ThreadLocalRandom.current().nextInt(logins.length)]).join();
+    }
+}
@@ -0,0 +1,73 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import packet.Command;
+import packet.Packet;
+import packet.PacketCodec;
+import packet.User;
+import run_time_db.RoomService;
+import run_time_db.UserManagement;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * One forwarded room message end to end, as an event loop sees it: decode the frame
+ * from a direct receive buffer, then fan it out to the room's members. Run with
+ * -prof gc, gc.alloc.rate.norm is what one message costs the heap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessagePathBenchmark {
+    private static final String ROOM = "general";
+
+    @Param({"10", "100"})
+    private int members;
+
+    private ByteBuffer receiveBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RoomService.INSTANCE.createRoom(ROOM);
+        CompletableFuture<Void> joined = null;
+        for (int i = 0; i < members; i++) {
+            User user = User.builder().nickname("member-" + i).password("secret").build();
+            UserManagement.INSTANCE.register(user);
+            UserManagement.INSTANCE.connect(user, new SinkConnection());
+            joined = RoomService.INSTANCE.joinRoom(ROOM, user);
+        }
+        joined.join();
+
+        /* What the dispatcher hands on once the sender is resolved from its session token */
+        ByteBuffer frame = PacketCodec.encode(Packet.builder()
+                .message("Hello everyone, the deploy finished and the dashboards look green")
+                .user(User.builder().nickname("sender").build())
+                .roomName(ROOM)
+                .command(Command.MESSAGE_ROOM)
+                .build());
+        receiveBuffer = ByteBuffer.allocateDirect(frame.remaining()).put(frame).flip();
+    }
+
+    @Benchmark
+    public void forwardRoomMessage() throws IOException {
+        receiveBuffer.position(0);
+        RoomService.INSTANCE.roomMessage(PacketCodec.decodeFrame(receiveBuffer));
+    }
+}
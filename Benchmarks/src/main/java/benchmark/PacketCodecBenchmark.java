@@ -0,0 +1,79 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import packet.Command;
+import packet.Packet;
+import packet.PacketCodec;
+import packet.User;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/* Binary codec against the legacy Java serialization of the same chat message */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PacketCodecBenchmark {
+    private Packet packet;
+    private ByteBuffer binaryFrame;
+    private byte[] serializedPacket;
+
+    @Setup
+    public void setUp() throws IOException {
+        packet = Packet.builder()
+                .message("Hello everyone, the deploy finished and the dashboards look green")
+                .user(User.builder().nickname("sender").build())
+                .roomName("general")
+                .command(Command.MESSAGE_ROOM)
+                .build();
+        binaryFrame = PacketCodec.encode(packet);
+        serializedPacket = serialize(packet);
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncode() {
+        return PacketCodec.encode(packet);
+    }
+
+    @Benchmark
+    public Packet binaryDecode() throws IOException {
+        return PacketCodec.decodeFrame(binaryFrame.duplicate());
+    }
+
+    @Benchmark
+    public byte[] serializationEncode() throws IOException {
+        return serialize(packet);
+    }
+
+    @Benchmark
+    public Object serializationDecode() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedPacket))) {
+            return in.readObject();
+        }
+    }
+
+    private static byte[] serialize(Packet packet) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(packet);
+        }
+        return bytes.toByteArray();
+    }
+}
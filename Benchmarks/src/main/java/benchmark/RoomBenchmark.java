@@ -0,0 +1,90 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import packet.Command;
+import packet.Packet;
+import packet.User;
+import run_time_db.RoomService;
+import run_time_db.UserManagement;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Room traffic under concurrency: broadcasters fan out to a populated room
+ * while other threads keep joining and leaving it. All of it runs on the room's
+ * shard; once its queue is full, callers block and the score is the shard's own rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class RoomBenchmark {
+    private static final String ROOM = "general";
+
+    @Param({"1000", "10000"})
+    private int members;
+
+    private User[] churners;
+    private Packet message;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        RoomService.INSTANCE.createRoom(ROOM);
+        CompletableFuture<Void> joined = null;
+        for (int i = 0; i < members; i++) {
+            User user = User.builder().nickname("member-" + i).password("secret").build();
+            UserManagement.INSTANCE.register(user);
+            UserManagement.INSTANCE.connect(user, new SinkConnection());
+            joined = RoomService.INSTANCE.joinRoom(ROOM, user);
+        }
+        /* The shard applies joins in order, the last one done means all are */
+        joined.join();
+
+        churners = new User[64];
+        for (int i = 0; i < churners.length; i++) {
+            churners[i] = User.builder().nickname("churner-" + i).password("secret").build();
+            UserManagement.INSTANCE.register(churners[i]);
+            UserManagement.INSTANCE.connect(churners[i], new SinkConnection());
+        }
+
+        message = Packet.builder()
+                .message("Hello room")
+                .user(User.builder().nickname("sender").build())
+                .roomName(ROOM)
+                .command(Command.MESSAGE_ROOM)
+                .build();
+    }
+
+    @Benchmark
+    @Group("room")
+    @GroupThreads(3)
+    public void broadcast() {
+        RoomService.INSTANCE.roomMessage(message);
+    }
+
+    @Benchmark
+    @Group("room")
+    @GroupThreads(1)
+    public void joinAndLeave() {
+        User user = churners[ThreadLocalRandom.current().nextInt(churners.length)];
+        RoomService.INSTANCE.joinRoom(ROOM, user);
+        RoomService.INSTANCE.leaveRoom(ROOM, user);
+    }
+}
@@ -0,0 +1,27 @@
+package benchmark;
+
+import network.Connection;
+import network.OutboundFrame;
+
+/* In-memory recipient: takes the frame view a socket writer would take and counts the bytes */
+public class SinkConnection implements Connection {
+    private long bytes;
+
+    @Override
+    public void sendFrame(OutboundFrame frame) {
+        bytes += frame.buffer().remaining();
+    }
+
+    @Override
+    public int outboundDepth() {
+        return 0;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
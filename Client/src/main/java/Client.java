@@ -1,71 +1,87 @@
+import client.ChatSession;
+import client.ReconnectPolicy;
 import packet.Command;
 import packet.Packet;
 import packet.User;
 
+import javax.net.SocketFactory;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.net.Socket;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
 
 public class Client {
-    private static final int PORT = 6543;
-    private Socket socket;
-    private ObjectOutputStream out;
-    private ObjectInputStream in;
+    private static final int PAGE_SIZE = 20;
+
+    private ChatSession session;
+    private final boolean legacy; // Java object streams, for servers that predate the binary protocol
+    private final int port; // --port=, to pick a node of a cluster running on one host
+    private final SocketFactory socketFactory; // TLS with --tls, and --tls-truststore= for a self-signed server
     private volatile boolean isRunning = true;
     private volatile boolean isAuthenticated = false;
     private User currentUser; // Principal-like variable to retain the user for future requests
 
+    public Client() {
+        this(false, ChatSession.DEFAULT_PORT);
+    }
+
+    public Client(boolean legacy, int port) {
+        this(legacy, port, SocketFactory.getDefault());
+    }
+
+    public Client(boolean legacy, int port, SocketFactory socketFactory) {
+        this.legacy = legacy;
+        this.port = port;
+        this.socketFactory = socketFactory;
+    }
+
     public void start() {
         try {
-            this.socket = new Socket("localhost", PORT);
-            this.out = new ObjectOutputStream(this.socket.getOutputStream());
-            this.in = new ObjectInputStream(this.socket.getInputStream());
+            this.session = ChatSession.connect("localhost", port, legacy, socketFactory);
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
 
-        /* Server Thread */
-        Thread serverThread = new Thread(() -> {
-            try {
-                while (isRunning) {
-                    Packet packet = (Packet) in.readObject();
-
-                    synchronized (this) {
-                        // If we receive "Success" message, the user is authenticated
-                        if ("Success".equals(packet.getMessage())) {
-                            this.isAuthenticated = true;
-                            this.currentUser = packet.getUser(); // Store the authenticated user
-                            System.out.println("Logged in as: " + currentUser.getNickname());
-                        }
-
-                        if (packet.getCommand().equals(Command.MESSAGE_ALL)) {
-                            String message = "%s : %s ".formatted(packet.getUser().getNickname(), packet.getMessage());
-                            System.out.println(message);
-                        }
-
-                        if (packet.getCommand().equals(Command.MESSAGE_INDIVIDUAL) && packet.getUserRecipient().getNickname().equals(currentUser.getNickname())) {
-                            String message = "%s : %s ".formatted(packet.getUser().getNickname(), packet.getMessage());
-                            System.out.println(message);
-                        }
-
-                        if (packet.getCommand().equals(Command.MESSAGE_ROOM)) {
-                            String message = "%s : %s ".formatted(packet.getUser().getNickname(), packet.getMessage());
-                            System.out.println(message);
-                        }
-
-                        this.notify(); // Notify the waiting thread that a server response was received
-                    }
+        /* Server packets, delivered on the session's reader thread */
+        session.onPacket(packet -> {
+            if (packet.getCommand() == Command.MESSAGE_ALL) {
+                String message = "%s : %s ".formatted(packet.getUser().getNickname(), packet.getMessage());
+                System.out.println(message);
+            }
+
+            if (packet.getCommand() == Command.MESSAGE_INDIVIDUAL && currentUser != null && packet.getUserRecipient().getNickname().equals(currentUser.getNickname())) {
+                String message = "%s : %s ".formatted(packet.getUser().getNickname(), packet.getMessage());
+                System.out.println(message);
+            }
+
+            if (packet.getCommand() == Command.MESSAGE_ROOM) {
+                String message = "%s : %s ".formatted(packet.getUser().getNickname(), packet.getMessage());
+                System.out.println(message);
+            }
+
+            /* A message we sent was refused or not delivered, requests get theirs as the answer instead */
+            if ((packet.getCommand() == null || packet.getCommand() == Command.THROTTLED) && packet.getCorrelationId() == null) {
+                System.out.println(packet.getMessage());
+            }
+
+            if (packet.getCommand() == Command.RECONNECT) {
+                System.out.println(packet.getMessage());
+            }
+
+            if (packet.getCommand() == Command.PRESENCE) {
+                for (String change : packet.getNames()) {
+                    System.out.println(change.substring(1) + (change.startsWith("+") ? " is online" : " went offline"));
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                System.out.println("Server connection lost.");
-            } finally {
-                closeConnection();
             }
         });
-        serverThread.start();
+        session.onClose(() -> System.out.println("Server connection lost."));
+        /* Rooms are rejoined and missed messages replayed, the menu just waits until then */
+        session.enableReconnect(ReconnectPolicy.DEFAULT);
+        session.onReconnect(() -> System.out.println("Reconnected."));
+        session.start();
+        session.startHeartbeat(ChatSession.DEFAULT_HEARTBEAT);
 
         /* Client Input */
         new Thread(() -> {
@@ -76,14 +92,8 @@ public class Client {
                 String option = scanner.nextLine().toLowerCase();
 
                 switch (option) {
-                    case "1", "login" -> {
-                        login(scanner);
-                        waitForServerResponse();  // Wait for the server response after login
-                    }
-                    case "2", "register" -> {
-                        register(scanner);
-                        waitForServerResponse();  // Wait for the server response after register
-                    }
+                    case "1", "login" -> awaitAuthentication(login(scanner));
+                    case "2", "register" -> awaitAuthentication(register(scanner));
                     case "exit" -> exit();
                     default -> System.out.println("Invalid option. Please try again.");
                 }
@@ -100,6 +110,12 @@ public class Client {
                     case "3", "join room" -> joinRoom(scanner);
                     case "4", "create room" -> createRoom(scanner);
                     case "5", "message room" -> messageRoom(scanner);
+                    case "6", "leave room" -> leaveRoom(scanner);
+                    case "7", "history" -> history(scanner);
+                    case "8", "rooms" -> browse(scanner, cursor -> session.listRooms(cursor, PAGE_SIZE));
+                    case "9", "room members" -> roomMembers(scanner);
+                    case "10", "online users" -> browse(scanner, cursor -> session.listUsers(cursor, PAGE_SIZE));
+                    case "11", "presence" -> togglePresence();
                     case "exit" -> exit();
                     default -> System.out.println("Invalid option. Please try again.");
                 }
@@ -115,46 +131,74 @@ public class Client {
         System.out.print("Enter message to send to room: ");
         String message = scanner.nextLine();
 
-        try {
-            out.writeObject(Packet.builder()
-                    .roomName(roomName)
-                    .message(message)
-                    .user(currentUser)
-                    .command(Command.MESSAGE_ROOM)
-                    .build());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        session.messageRoom(roomName, message);
     }
 
     private void createRoom(Scanner scanner) {
         System.out.print("Enter new room name: ");
         String roomName = scanner.nextLine();
 
-        try {
-            out.writeObject(Packet.builder()
-                    .roomName(roomName)
-                    .user(currentUser)
-                    .command(Command.CREATE_ROOM)
-                    .build());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        session.createRoom(roomName).thenAccept(this::printResponse);
     }
 
     private void joinRoom(Scanner scanner) {
         System.out.print("Enter room name to join: ");
         String roomName = scanner.nextLine();
 
-        try {
-            out.writeObject(Packet.builder()
-                    .roomName(roomName)
-                    .user(currentUser)
-                    .command(Command.JOIN_ROOM)
-                    .build());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        session.joinRoom(roomName).thenAccept(this::printResponse);
+    }
+
+    private void leaveRoom(Scanner scanner) {
+        System.out.print("Enter room name to leave: ");
+        String roomName = scanner.nextLine();
+
+        session.leaveRoom(roomName).thenAccept(this::printResponse);
+    }
+
+    private void history(Scanner scanner) {
+        System.out.print("Enter room name (empty for public chat): ");
+        String roomName = scanner.nextLine();
+        System.out.print("Show messages after # (0 for all): ");
+        String since = scanner.nextLine();
+
+        session.history(roomName.isBlank() ? null : roomName, since.isBlank() ? 0 : Long.parseLong(since))
+                .thenAccept(response -> System.out.println(response.getCommand() == Command.HISTORY
+                        ? "End of history, last message #" + response.getSequence()
+                        : response.getMessage()));
+    }
+
+    private void roomMembers(Scanner scanner) {
+        System.out.print("Enter room name: ");
+        String roomName = scanner.nextLine();
+
+        browse(scanner, cursor -> session.listMembers(roomName, cursor, PAGE_SIZE));
+    }
+
+    /* Prints a page at a time, asking before fetching the next one */
+    private void browse(Scanner scanner, Function<String, CompletableFuture<Packet>> pageAfter) {
+        String cursor = null;
+        do {
+            Packet page = pageAfter.apply(cursor).join();
+            if (page.getNames() == null) {
+                System.out.println(page.getMessage());
+                return;
+            }
+            page.getNames().forEach(System.out::println);
+            cursor = page.getMessage();
+            if (cursor == null) {
+                System.out.println("(end)");
+                return;
+            }
+            System.out.print("More? (y/n): ");
+        } while (scanner.nextLine().equalsIgnoreCase("y"));
+    }
+
+    private void togglePresence() {
+        (session.isFollowingPresence() ? session.unsubscribePresence() : session.subscribePresence()).thenAccept(this::printResponse);
+    }
+
+    private void printResponse(Packet response) {
+        System.out.println(response.getMessage());
     }
 
     private void showAuthMenu() {
@@ -174,62 +218,39 @@ public class Client {
                 3. Join Room
                 4. Create Room
                 5. Message Room
+                6. Leave Room
+                7. History
+                8. List Rooms
+                9. Room Members
+                10. Online Users
+                11. Follow Presence (on/off)
                 Type 'exit' to quit.
                 Choose: """);
     }
 
-    private void login(Scanner scanner) {
+    private CompletableFuture<User> login(Scanner scanner) {
         System.out.print("Enter username: ");
         String username = scanner.nextLine();
         System.out.print("Enter password: ");
         String password = scanner.nextLine();
 
-        User loginUser = User.builder().nickname(username).password(password).build();
-
-        try {
-            out.writeObject(Packet
-                    .builder()
-                    .user(loginUser)
-                    .command(Command.LOGIN)
-                    .build());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return session.login(username, password);
     }
 
-    private void register(Scanner scanner) {
+    private CompletableFuture<User> register(Scanner scanner) {
         System.out.print("Enter new username: ");
         String username = scanner.nextLine();
         System.out.print("Enter new password: ");
         String password = scanner.nextLine();
 
-        User newUser = User.builder().nickname(username).password(password).build();
-
-        try {
-            out.writeObject(Packet
-                    .builder()
-                    .user(newUser)
-                    .command(Command.REGISTER)
-                    .build());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return session.register(username, password);
     }
 
     private void messageAll(Scanner scanner) {
         System.out.print("Enter message to send to all: ");
         String message = scanner.nextLine();
 
-        try {
-            out.writeObject(Packet
-                    .builder()
-                    .message(message)
-                    .user(currentUser)  // Use the retained User (principal)
-                    .command(Command.MESSAGE_ALL)
-                    .build());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        session.messageAll(message);
     }
 
     // Correct the recipient handling by sending both sender and recipient in the packet
@@ -239,25 +260,17 @@ public class Client {
         System.out.print("Enter message: ");
         String message = scanner.nextLine();
 
-        User recipientUser = User.builder().nickname(recipient).build();
-
-        try {
-            out.writeObject(Packet
-                    .builder()
-                    .message(message)
-                    .user(currentUser)
-                    .userRecipient(recipientUser)
-                    .command(Command.MESSAGE_INDIVIDUAL)
-                    .build());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        session.messageIndividual(recipient, message);
     }
 
-    private synchronized void waitForServerResponse() {
+    /* Blocks the menu until the server answers this very request, a chat message arriving first does not count */
+    private void awaitAuthentication(CompletableFuture<User> authentication) {
         try {
-            // Wait until the server responds (notify() will be called in the server thread)
-            this.wait();
+            this.currentUser = authentication.get(); // Store the authenticated user
+            this.isAuthenticated = true;
+            System.out.println("Logged in as: " + currentUser.getNickname());
+        } catch (ExecutionException e) {
+            System.out.println(e.getCause().getMessage());
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
@@ -270,16 +283,27 @@ public class Client {
     }
 
     private void closeConnection() {
-        try {
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
-        } catch (IOException e) {
-            System.out.println("Error closing connection.");
-        }
+        session.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = Arrays.stream(args)
+                .filter(arg -> arg.startsWith("--port="))
+                .map(arg -> Integer.parseInt(arg.substring("--port=".length())))
+                .findFirst()
+                .orElse(ChatSession.DEFAULT_PORT);
+        String trustStore = option(args, "--tls-truststore=", null);
+        SocketFactory socketFactory = Arrays.asList(args).contains("--tls") || trustStore != null
+                ? ChatSession.tlsSocketFactory(trustStore, option(args, "--tls-password=", "changeit"))
+                : SocketFactory.getDefault();
+        new Client(Arrays.asList(args).contains("--legacy"), port, socketFactory).start();
     }
 
-    public static void main(String[] args) {
-        new Client().start();
+    private static String option(String[] args, String prefix, String defaultValue) {
+        return Arrays.stream(args)
+                .filter(arg -> arg.startsWith(prefix))
+                .map(arg -> arg.substring(prefix.length()))
+                .findFirst()
+                .orElse(defaultValue);
     }
 }
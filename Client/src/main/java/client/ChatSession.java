@@ -0,0 +1,624 @@
+package client;
+
+import packet.Command;
+import packet.Packet;
+import packet.PacketCodec;
+import packet.User;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/*
+ * Headless, programmable connection to the chat server: no console, no menus.
+ * Every packet the server pushes is handed to the listener on a virtual reader thread,
+ * so thousands of sessions can live in one JVM (see LoadGenerator).
+ *
+ * Requests the server answers return a future matched by correlation id, none of them
+ * waits for the previous one: login, create a room and join several rooms are all sent
+ * back to back and cost about one round trip in total.
+ *
+ * With a ReconnectPolicy the session outlives its connection: when the server goes away,
+ * or announces a restart, it dials again with jittered backoff, resumes with its session
+ * token (the password as a fallback), rejoins its rooms and asks for the history it missed.
+ * Sends wait meanwhile, so listeners must not send.
+ */
+public class ChatSession implements AutoCloseable {
+    public static final int DEFAULT_PORT = 6543;
+    /* Well inside the server's default idle timeout of two minutes */
+    public static final Duration DEFAULT_HEARTBEAT = Duration.ofSeconds(30);
+
+    private final String host;
+    private final int port;
+    private final SocketFactory socketFactory;
+    private volatile Socket socket;
+    private final boolean legacy; // Java object streams, for servers that predate the binary protocol
+    private ObjectOutputStream out;
+    private ObjectInputStream in;
+    private OutputStream binaryOut;
+    private InputStream binaryIn;
+    private final Lock writeLock = new ReentrantLock();
+    private final AtomicInteger nextCorrelationId = new AtomicInteger(1);
+    private final Map<Integer, CompletableFuture<Packet>> pendingRequests = new ConcurrentHashMap<>();
+    private volatile User currentUser; // Principal-like variable to retain the user for future requests
+    private volatile Consumer<Packet> listener = packet -> {
+    };
+    private volatile Runnable closeListener = () -> {
+    };
+
+    private volatile boolean closed;
+    private final AtomicBoolean closeNotified = new AtomicBoolean();
+    private volatile ReconnectPolicy reconnectPolicy;
+    private volatile Runnable reconnectListener = () -> {
+    };
+    /* Done while connected, sends wait on it during a reconnect */
+    private volatile CompletableFuture<Void> connected = CompletableFuture.completedFuture(null);
+    private boolean reconnecting; // Guarded by this
+    private volatile Thread reconnectThread;
+    private volatile long reconnectWindowMillis;
+    private volatile String password; // Only kept to log in again if the session token is no longer accepted
+    private final Set<String> rooms = ConcurrentHashMap.newKeySet();
+    /* The last message seen per room and in the public chat (-1 before the server said), a reconnect catches up from there */
+    private final Map<String, Long> roomSequences = new ConcurrentHashMap<>();
+    private final AtomicLong publicSequence = new AtomicLong(-1);
+    private volatile boolean followingPresence;
+
+    private ChatSession(String host, int port, boolean legacy, SocketFactory socketFactory) {
+        this.host = host;
+        this.port = port;
+        this.legacy = legacy;
+        this.socketFactory = socketFactory;
+    }
+
+    public static ChatSession connect(String host, int port, boolean legacy) throws IOException {
+        return connect(host, port, legacy, SocketFactory.getDefault());
+    }
+
+    /* Over TLS with a factory from tlsSocketFactory, the handshake runs on connect */
+    public static ChatSession connect(String host, int port, boolean legacy, SocketFactory socketFactory) throws IOException {
+        ChatSession session = new ChatSession(host, port, legacy, socketFactory);
+        session.open(socketFactory.createSocket(host, port));
+        return session;
+    }
+
+    private void open(Socket socket) throws IOException {
+        writeLock.lock();
+        try {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            if (legacy) {
+                out = new ObjectOutputStream(socket.getOutputStream());
+                in = new ObjectInputStream(socket.getInputStream());
+            } else {
+                binaryOut = new BufferedOutputStream(socket.getOutputStream());
+                binaryIn = new BufferedInputStream(socket.getInputStream());
+                negotiateBinaryProtocol();
+            }
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* Trusts the certificates in the given keystore, e.g. a server's self-signed one, or the JDK's CAs when it is null */
+    public static SSLSocketFactory tlsSocketFactory(String trustStore, String password) throws IOException {
+        if (trustStore == null) {
+            return (SSLSocketFactory) SSLSocketFactory.getDefault();
+        }
+
+        try {
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(KeyStore.getInstance(new File(trustStore), password.toCharArray()));
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, trustManagers.getTrustManagers(), null);
+            return context.getSocketFactory();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error loading TLS trust store " + trustStore, e);
+        }
+    }
+
+    public void onPacket(Consumer<Packet> listener) {
+        this.listener = listener;
+    }
+
+    /* Runs once the session is over for good: closed, or lost and not reconnected */
+    public void onClose(Runnable closeListener) {
+        this.closeListener = closeListener;
+    }
+
+    /* Keeps the session across lost connections and server restarts, call before start */
+    public void enableReconnect(ReconnectPolicy policy) {
+        this.reconnectPolicy = policy;
+    }
+
+    /* Runs after a reconnect, once the session is resumed and its rooms rejoined */
+    public void onReconnect(Runnable reconnectListener) {
+        this.reconnectListener = reconnectListener;
+    }
+
+    /* Starts delivering server packets to the listener */
+    public void start() {
+        Socket current = socket;
+        Thread.ofVirtual().name("chat-session-reader").start(() -> readLoop(current));
+    }
+
+    /* Completes with the logged in user, or exceptionally with the server's refusal */
+    public CompletableFuture<User> login(String nickname, String password) {
+        this.password = password;
+        return authenticate(Packet.builder()
+                .user(User.builder().nickname(nickname).password(password).build())
+                .command(Command.LOGIN)
+                .build());
+    }
+
+    /* Picks up a session after a reconnect with the token it was issued, the server skips password hashing */
+    public CompletableFuture<User> resume(String nickname, String sessionToken) {
+        return authenticate(Packet.builder()
+                .user(User.builder().nickname(nickname).sessionToken(sessionToken).build())
+                .command(Command.LOGIN)
+                .build());
+    }
+
+    public CompletableFuture<User> register(String nickname, String password) {
+        this.password = password;
+        return authenticate(Packet.builder()
+                .user(User.builder().nickname(nickname).password(password).build())
+                .command(Command.REGISTER)
+                .build());
+    }
+
+    private CompletableFuture<User> authenticate(Packet packet) {
+        return request(packet).thenApply(response -> {
+            // If we receive "Success" message, the user is authenticated
+            if (!"Success".equals(response.getMessage())) {
+                throw new CompletionException(new IllegalStateException(response.getMessage()));
+            }
+            this.currentUser = response.getUser();
+            if (response.getSequence() != null) {
+                publicSequence.accumulateAndGet(response.getSequence(), Math::max);
+            }
+            return currentUser;
+        });
+    }
+
+    public void messageAll(String message) {
+        send(Packet.builder()
+                .message(message)
+                .user(principal())
+                .command(Command.MESSAGE_ALL)
+                .build());
+    }
+
+    public void messageIndividual(String recipient, String message) {
+        send(Packet.builder()
+                .message(message)
+                .user(principal())
+                .userRecipient(User.builder().nickname(recipient).build())
+                .command(Command.MESSAGE_INDIVIDUAL)
+                .build());
+    }
+
+    public CompletableFuture<Packet> createRoom(String roomName) {
+        return request(Packet.builder()
+                .roomName(roomName)
+                .user(principal())
+                .command(Command.CREATE_ROOM)
+                .build());
+    }
+
+    public CompletableFuture<Packet> joinRoom(String roomName) {
+        return request(Packet.builder()
+                .roomName(roomName)
+                .user(principal())
+                .command(Command.JOIN_ROOM)
+                .build()).thenApply(response -> {
+            if (response.getCommand() == Command.JOIN_ROOM) {
+                rooms.add(roomName);
+                if (response.getSequence() != null) {
+                    roomSequences.merge(roomName, response.getSequence(), Math::max);
+                }
+            }
+            return response;
+        });
+    }
+
+    public CompletableFuture<Packet> leaveRoom(String roomName) {
+        rooms.remove(roomName);
+        roomSequences.remove(roomName);
+        return request(Packet.builder()
+                .roomName(roomName)
+                .user(principal())
+                .command(Command.LEAVE_ROOM)
+                .build());
+    }
+
+    public void messageRoom(String roomName, String message) {
+        send(Packet.builder()
+                .roomName(roomName)
+                .message(message)
+                .user(principal())
+                .command(Command.MESSAGE_ROOM)
+                .build());
+    }
+
+    /*
+     * Stored messages after the given sequence, of a room or of the public chat when roomName is null.
+     * They reach the listener first, the future then completes with the closing "History end".
+     */
+    public CompletableFuture<Packet> history(String roomName, long afterSequence) {
+        return request(Packet.builder()
+                .roomName(roomName)
+                .sequence(afterSequence)
+                .user(principal())
+                .command(Command.HISTORY)
+                .build());
+    }
+
+    /*
+     * Listings come a page at a time: the answer's names are the page, its message the cursor to pass
+     * for the next one (null on the last page). A null cursor starts from the beginning.
+     */
+    public CompletableFuture<Packet> listRooms(String cursor, int pageSize) {
+        return request(listing(Command.LIST_ROOMS, null, cursor, pageSize));
+    }
+
+    public CompletableFuture<Packet> listMembers(String roomName, String cursor, int pageSize) {
+        return request(listing(Command.LIST_MEMBERS, roomName, cursor, pageSize));
+    }
+
+    /* Users online on any node of the cluster */
+    public CompletableFuture<Packet> listUsers(String cursor, int pageSize) {
+        return request(listing(Command.LIST_USERS, null, cursor, pageSize));
+    }
+
+    private Packet listing(Command command, String roomName, String cursor, int pageSize) {
+        return Packet.builder()
+                .message(cursor)
+                .roomName(roomName)
+                .sequence((long) pageSize)
+                .user(principal())
+                .command(command)
+                .build();
+    }
+
+    /*
+     * From now on the listener gets PRESENCE packets whose names are "+nickname" for who came
+     * online and "-nickname" for who went offline. Subscribe before listing the users, so no
+     * change is missed in between. Kept across reconnects.
+     */
+    public CompletableFuture<Packet> subscribePresence() {
+        followingPresence = true;
+        return request(Packet.builder().user(principal()).command(Command.SUBSCRIBE_PRESENCE).build());
+    }
+
+    public CompletableFuture<Packet> unsubscribePresence() {
+        followingPresence = false;
+        return request(Packet.builder().user(principal()).command(Command.UNSUBSCRIBE_PRESENCE).build());
+    }
+
+    public boolean isFollowingPresence() {
+        return followingPresence;
+    }
+
+    /* Completes when the server answers, the round trip doubles as a latency probe */
+    public CompletableFuture<Packet> ping() {
+        return request(Packet.builder().command(Command.PING).build());
+    }
+
+    /* Pings on a virtual thread until the connection closes, so the server never reaps a quiet session */
+    public void startHeartbeat(Duration interval) {
+        Thread.ofVirtual().name("chat-session-heartbeat").start(() -> {
+            try {
+                while (!closed) {
+                    Thread.sleep(interval);
+                    ping();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
+
+    public User getCurrentUser() {
+        return currentUser;
+    }
+
+    public boolean isAuthenticated() {
+        return currentUser != null;
+    }
+
+    /* Sends a packet the server answers, the future completes with that answer */
+    public CompletableFuture<Packet> request(Packet packet) {
+        int correlationId = nextCorrelationId.getAndIncrement();
+        CompletableFuture<Packet> response = new CompletableFuture<>();
+        pendingRequests.put(correlationId, response);
+
+        packet.setCorrelationId(correlationId);
+        try {
+            send(packet);
+        } catch (RuntimeException e) {
+            pendingRequests.remove(correlationId);
+            response.completeExceptionally(e);
+        }
+        return response;
+    }
+
+    public void send(Packet packet) {
+        writeLock.lock();
+        try {
+            /* Checked under the lock, nothing is written once a restart announcement closed our side */
+            CompletableFuture<Void> pending = connected;
+            boolean waited = false;
+            while (!pending.isDone() && Thread.currentThread() != reconnectThread) {
+                writeLock.unlock();
+                try {
+                    pending.join();
+                } finally {
+                    writeLock.lock();
+                }
+                pending = connected;
+                waited = true;
+            }
+            if (waited && packet.getUser() != null && packet.getUser().getNickname() == null) {
+                /* Built before the reconnect, the session has a new token since */
+                packet.setUser(principal());
+            }
+
+            if (legacy) {
+                out.writeObject(packet);
+                out.flush();
+            } else {
+                PacketCodec.writeFrame(packet, binaryOut);
+                binaryOut.flush();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        connected.completeExceptionally(new IllegalStateException("Session closed"));
+        closeQuietly(socket);
+    }
+
+    private void readLoop(Socket current) {
+        ObjectInputStream in = this.in;
+        InputStream binaryIn = this.binaryIn;
+        try {
+            while (!current.isClosed()) {
+                Packet packet = legacy ? (Packet) in.readObject() : PacketCodec.readFrame(binaryIn);
+
+                CompletableFuture<Packet> response = packet.getCorrelationId() == null ? null : pendingRequests.remove(packet.getCorrelationId());
+                if (response != null) {
+                    response.complete(packet);
+                }
+                if (reconnectPolicy != null) {
+                    track(packet);
+                }
+                listener.accept(packet);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            pendingRequests.values().forEach(response -> response.completeExceptionally(e));
+            pendingRequests.clear();
+        } finally {
+            closeQuietly(current);
+            if (closed || reconnectPolicy == null) {
+                close();
+                notifyClosed();
+            } else {
+                connectionLost();
+            }
+        }
+    }
+
+    private void track(Packet packet) {
+        Long sequence = packet.getSequence();
+        if (packet.getCommand() == Command.RECONNECT) {
+            /* The server reads what we sent up to our end of stream before it lets the session go, the reconnect starts then */
+            reconnectWindowMillis = sequence == null ? 0 : sequence;
+            awaitReconnect();
+            finishSending();
+        } else if (sequence != null && packet.getCommand() == Command.MESSAGE_ROOM && packet.getRoomName() != null) {
+            roomSequences.merge(packet.getRoomName(), sequence, Math::max);
+        } else if (sequence != null && packet.getCommand() == Command.MESSAGE_ALL) {
+            publicSequence.accumulateAndGet(sequence, Math::max);
+        }
+    }
+
+    /* From here on sends wait for the reconnect */
+    private synchronized void awaitReconnect() {
+        if (connected.isDone() && !closed) {
+            connected = new CompletableFuture<>();
+        }
+    }
+
+    private void finishSending() {
+        writeLock.lock();
+        try {
+            socket.shutdownOutput();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.out.println("Error closing the connection for sending.");
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private synchronized void connectionLost() {
+        if (reconnecting || closed) {
+            return;
+        }
+        reconnecting = true;
+        awaitReconnect();
+        Thread.ofVirtual().name("chat-session-reconnect").start(this::reconnect);
+    }
+
+    private void reconnect() {
+        reconnectThread = Thread.currentThread();
+        ReconnectPolicy policy = reconnectPolicy;
+        long window = reconnectWindowMillis;
+        reconnectWindowMillis = 0;
+
+        try {
+            for (int attempt = 0; !closed && policy.allows(attempt); attempt++) {
+                Thread.sleep(attempt == 0 && window > 0 ? policy.delayWithin(window) : policy.delayMillis(attempt));
+                try {
+                    open(socketFactory.createSocket(host, port));
+                } catch (IOException e) {
+                    continue;
+                }
+
+                start();
+                try {
+                    restore();
+                } catch (CompletionException e) {
+                    if (e.getCause() instanceof IllegalStateException) {
+                        /* Refused, neither the token nor the password work any more */
+                        System.out.println("Could not resume the session: " + e.getCause().getMessage());
+                        break;
+                    }
+                    continue; // Lost again on the way, the reader closed the socket
+                }
+
+                synchronized (this) {
+                    reconnecting = false;
+                    reconnectThread = null;
+                    connected.complete(null);
+                }
+                reconnectListener.run();
+                if (socket.isClosed()) {
+                    connectionLost();
+                }
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        close();
+        notifyClosed();
+    }
+
+    /* A reader and the reconnect may both see the end, the listener hears of it once */
+    private void notifyClosed() {
+        if (closeNotified.compareAndSet(false, true)) {
+            closeListener.run();
+        }
+    }
+
+    /* Logs in again and gets back what the user had: its rooms, and the messages sent while it was away */
+    private void restore() {
+        User user = currentUser;
+        if (user == null) {
+            return;
+        }
+
+        /* Taken first, the answers to the login and joins below already carry the latest sequences */
+        Map<String, Long> missedRooms = Map.copyOf(roomSequences);
+        long missedPublic = publicSequence.get();
+
+        String nickname = user.getNickname();
+        String knownPassword = password;
+        CompletableFuture<User> authenticated = resume(nickname, user.getSessionToken());
+        if (knownPassword != null) {
+            authenticated = authenticated.exceptionallyCompose(e -> e.getCause() instanceof IllegalStateException
+                    ? login(nickname, knownPassword)
+                    : CompletableFuture.failedFuture(e));
+        }
+        authenticated.join();
+
+        /* Sent from this thread only, sends anywhere else wait for the reconnect to finish */
+        List<String> rejoined = List.copyOf(rooms);
+        List<CompletableFuture<Packet>> joins = new ArrayList<>();
+        for (String roomName : rejoined) {
+            joins.add(joinRoom(roomName));
+        }
+        CompletableFuture.allOf(joins.toArray(CompletableFuture[]::new)).join();
+        if (followingPresence) {
+            subscribePresence().join();
+        }
+
+        for (String roomName : rejoined) {
+            Long last = missedRooms.get(roomName);
+            if (last != null) {
+                catchUp(roomName, last);
+            }
+        }
+        if (missedPublic >= 0) {
+            catchUp(null, missedPublic);
+        }
+    }
+
+    /* A page of history at a time, until one brings nothing new */
+    private void catchUp(String roomName, long afterSequence) {
+        long last = afterSequence;
+        while (true) {
+            Packet end = history(roomName, last).join();
+            if (end.getCommand() != Command.HISTORY || end.getSequence() == null || end.getSequence() <= last) {
+                return;
+            }
+            last = end.getSequence();
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing connection.");
+        }
+    }
+
+    private void negotiateBinaryProtocol() throws IOException {
+        /* Reading deflated messages costs nothing to offer, the server decides what it sends deflated */
+        binaryOut.write(PacketCodec.hello(PacketCodec.FEATURE_DEFLATE));
+        binaryOut.flush();
+
+        byte[] reply = binaryIn.readNBytes(PacketCodec.HELLO_SIZE);
+        if (!PacketCodec.isHello(reply)) {
+            throw new IOException("Server does not speak the binary protocol, restart with --legacy");
+        }
+    }
+
+    /* Once logged in the session token alone identifies us, the password is never resent */
+    private User principal() {
+        User user = currentUser;
+        if (user == null || user.getSessionToken() == null) {
+            return user;
+        }
+        return User.builder().sessionToken(user.getSessionToken()).build();
+    }
+}
@@ -0,0 +1,216 @@
+package client;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import packet.Command;
+import packet.Packet;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Drives a server with thousands of headless sessions (one virtual thread each):
+ * registers them, spreads them over rooms, then sends MESSAGE_ALL / MESSAGE_ROOM /
+ * MESSAGE_INDIVIDUAL at a fixed aggregate rate. Every message carries its send time,
+ * so receivers in this same JVM record end-to-end delivery latency.
+ *
+ * java ... client.LoadGenerator --sessions=5000 --rooms=100 --rate=10000 --duration=60
+ *
+ * Every session registers, so start the server with a low --hash-iterations for load runs.
+ */
+public class LoadGenerator {
+    private static final String PAYLOAD_PREFIX = "lg:";
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final List<Command> MEASURED = List.of(Command.MESSAGE_ALL, Command.MESSAGE_ROOM, Command.MESSAGE_INDIVIDUAL);
+
+    private final LoadSettings settings;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final Map<Command, Recorder> latencies = new EnumMap<>(Command.class);
+    private final Map<Command, Histogram> totals = new EnumMap<>(Command.class);
+    private final Map<Command, LongAdder> sent = new EnumMap<>(Command.class);
+    private final Map<Command, LongAdder> delivered = new EnumMap<>(Command.class);
+    /* Sends the server refused, raise its --rate-* limits to measure beyond them */
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    private final String padding;
+    private final SocketFactory socketFactory;
+
+    public LoadGenerator(LoadSettings settings) throws IOException {
+        this.settings = settings;
+        this.socketFactory = settings.getTlsTruststore() == null
+                ? SocketFactory.getDefault()
+                : ChatSession.tlsSocketFactory(settings.getTlsTruststore(), settings.getTlsPassword());
+        this.padding = ":" + "x".repeat(Math.max(0, settings.getMessageSize() - 24));
+        for (Command command : MEASURED) {
+            latencies.put(command, new Recorder(HIGHEST_LATENCY_MICROS, 3));
+            totals.put(command, new Histogram(HIGHEST_LATENCY_MICROS, 3));
+            sent.put(command, new LongAdder());
+            delivered.put(command, new LongAdder());
+        }
+    }
+
+    public void run() throws InterruptedException {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<ChatSession> sessions = connectAll(executor);
+            System.out.printf("%d sessions connected, sending %d msg/s for %ds%n",
+                    sessions.size(), settings.getRate(), settings.getDurationSeconds());
+
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(settings.getDurationSeconds());
+            /* Each session sends at rate / sessions, offset randomly so the sends do not arrive in waves */
+            long interval = TimeUnit.SECONDS.toNanos(1) * sessions.size() / settings.getRate();
+            for (int i = 0; i < sessions.size(); i++) {
+                ChatSession session = sessions.get(i);
+                int index = i;
+                executor.submit(() -> sendLoop(session, index, sessions.size(), interval, end));
+            }
+
+            while (System.nanoTime() < end) {
+                Thread.sleep(5000);
+                report("[%3ds]".formatted(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)), true);
+            }
+            Thread.sleep(1000); // Let in-flight messages land before the final report
+            report("[total]", false);
+
+            sessions.forEach(ChatSession::close);
+            executor.shutdownNow();
+        }
+    }
+
+    private List<ChatSession> connectAll(ExecutorService executor) throws InterruptedException {
+        Semaphore permits = new Semaphore(settings.getConnectParallelism());
+        List<Future<ChatSession>> pending = new ArrayList<>();
+        for (int i = 0; i < settings.getSessions(); i++) {
+            int index = i;
+            pending.add(executor.submit(() -> {
+                permits.acquire();
+                try {
+                    return connect(index);
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+
+        List<ChatSession> sessions = new ArrayList<>();
+        for (Future<ChatSession> session : pending) {
+            try {
+                sessions.add(session.get());
+            } catch (Exception e) {
+                System.out.println("Session failed to connect: " + e.getMessage());
+            }
+        }
+        return sessions;
+    }
+
+    private ChatSession connect(int index) throws Exception {
+        ChatSession session = ChatSession.connect(settings.getHost(), settings.getPort(), false, socketFactory);
+        session.onPacket(this::recordDelivery);
+        if (settings.isReconnect()) {
+            /* Replayed history counts as delivered, what a restart lost shows as sent but never delivered */
+            session.enableReconnect(ReconnectPolicy.DEFAULT);
+            session.onReconnect(reconnects::increment);
+        }
+        session.start();
+        session.startHeartbeat(ChatSession.DEFAULT_HEARTBEAT);
+
+        /* Pipelined, the server holds the join until the registration is through */
+        session.register(nickname(index), "load");
+        session.joinRoom(roomName(index)).get(30, TimeUnit.SECONDS);
+        return session;
+    }
+
+    private void sendLoop(ChatSession session, int index, int sessionCount, long interval, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long next = System.nanoTime() + random.nextLong(Math.max(1, interval));
+        int totalWeight = settings.getAllWeight() + settings.getRoomWeight() + settings.getIndividualWeight();
+
+        try {
+            while (next < end) {
+                LockSupport.parkNanos(next - System.nanoTime());
+                next += interval;
+
+                String message = PAYLOAD_PREFIX + System.nanoTime() + padding;
+                int pick = random.nextInt(totalWeight);
+                if (pick < settings.getAllWeight()) {
+                    session.messageAll(message);
+                    sent.get(Command.MESSAGE_ALL).increment();
+                } else if (pick < settings.getAllWeight() + settings.getRoomWeight()) {
+                    session.messageRoom(roomName(index), message);
+                    sent.get(Command.MESSAGE_ROOM).increment();
+                } else {
+                    session.messageIndividual(nickname(random.nextInt(sessionCount)), message);
+                    sent.get(Command.MESSAGE_INDIVIDUAL).increment();
+                }
+            }
+        } catch (RuntimeException e) {
+            System.out.println("Session " + index + " stopped sending: " + e.getMessage());
+        }
+    }
+
+    private void recordDelivery(Packet packet) {
+        if (packet.getCommand() == Command.THROTTLED) {
+            throttled.increment();
+            return;
+        }
+        Recorder recorder = latencies.get(packet.getCommand());
+        String message = packet.getMessage();
+        if (recorder == null || message == null || !message.startsWith(PAYLOAD_PREFIX)) {
+            return;
+        }
+
+        int end = message.indexOf(':', PAYLOAD_PREFIX.length());
+        long sentAt = Long.parseLong(message, PAYLOAD_PREFIX.length(), end < 0 ? message.length() : end, 10);
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentAt);
+        recorder.recordValue(Math.min(micros, HIGHEST_LATENCY_MICROS));
+        delivered.get(packet.getCommand()).increment();
+    }
+
+    private void report(String label, boolean interval) {
+        for (Command command : MEASURED) {
+            Histogram histogram = latencies.get(command).getIntervalHistogram();
+            totals.get(command).add(histogram);
+            Histogram shown = interval ? histogram : totals.get(command);
+            if (shown.getTotalCount() == 0) {
+                continue;
+            }
+
+            System.out.printf("%s %-18s sent=%d delivered=%d p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+                    label, command, sent.get(command).sum(), delivered.get(command).sum(),
+                    shown.getValueAtPercentile(50) / 1000.0,
+                    shown.getValueAtPercentile(99) / 1000.0,
+                    shown.getValueAtPercentile(99.9) / 1000.0,
+                    shown.getMaxValue() / 1000.0);
+        }
+        if (throttled.sum() > 0) {
+            System.out.printf("%s throttled=%d%n", label, throttled.sum());
+        }
+        if (reconnects.sum() > 0) {
+            System.out.printf("%s reconnects=%d%n", label, reconnects.sum());
+        }
+    }
+
+    private String nickname(int index) {
+        return "lg-" + runId + "-" + index;
+    }
+
+    private String roomName(int index) {
+        return "lg-room-" + (index % settings.getRooms());
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        new LoadGenerator(LoadSettings.fromArgs(args)).run();
+    }
+}
@@ -0,0 +1,73 @@
+package client;
+
+import lombok.Builder;
+import lombok.Data;
+
+/* Load generator configuration, every field can be overridden with --<name>=<value> */
+@Data
+@Builder
+public class LoadSettings {
+    @Builder.Default
+    private String host = "localhost";
+    @Builder.Default
+    private int port = ChatSession.DEFAULT_PORT;
+    @Builder.Default
+    private int sessions = 1000;
+    @Builder.Default
+    private int rooms = 50;
+    /* Messages per second across all sessions */
+    @Builder.Default
+    private int rate = 2000;
+    @Builder.Default
+    private int durationSeconds = 30;
+    @Builder.Default
+    private int messageSize = 64;
+    /* Relative weights of the message kinds sent */
+    @Builder.Default
+    private int allWeight = 5;
+    @Builder.Default
+    private int roomWeight = 80;
+    @Builder.Default
+    private int individualWeight = 15;
+    /* Sessions connecting at the same time, keeps the server's accept backlog from overflowing */
+    @Builder.Default
+    private int connectParallelism = 256;
+    /* Connects over TLS when set, trusting the certificates in this keystore */
+    @Builder.Default
+    private String tlsTruststore = null;
+    @Builder.Default
+    private String tlsPassword = "changeit";
+    /* Sessions reconnect with jittered backoff instead of stopping when the server restarts */
+    @Builder.Default
+    private boolean reconnect = false;
+
+    public static LoadSettings fromArgs(String[] args) {
+        LoadSettingsBuilder settings = LoadSettings.builder();
+        for (String arg : args) {
+            String[] option = arg.replaceFirst("^--", "").split("=", 2);
+            if (option.length != 2) {
+                throw new IllegalArgumentException("Expected --name=value, got: " + arg);
+            }
+
+            String value = option[1];
+            switch (option[0]) {
+                case "host" -> settings.host(value);
+                case "port" -> settings.port(Integer.parseInt(value));
+                case "sessions" -> settings.sessions(Integer.parseInt(value));
+                case "rooms" -> settings.rooms(Integer.parseInt(value));
+                case "rate" -> settings.rate(Integer.parseInt(value));
+                case "duration" -> settings.durationSeconds(Integer.parseInt(value));
+                case "message-size" -> settings.messageSize(Integer.parseInt(value));
+                case "all-weight" -> settings.allWeight(Integer.parseInt(value));
+                case "room-weight" -> settings.roomWeight(Integer.parseInt(value));
+                case "individual-weight" -> settings.individualWeight(Integer.parseInt(value));
+                case "connect-parallelism" -> settings.connectParallelism(Integer.parseInt(value));
+                case "tls-truststore" -> settings.tlsTruststore(value);
+                case "tls-password" -> settings.tlsPassword(value);
+                case "reconnect" -> settings.reconnect(Boolean.parseBoolean(value));
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        return settings.build();
+    }
+}
@@ -0,0 +1,27 @@
+package client;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Exponential backoff with full jitter: attempt n waits anywhere between zero and
+ * min(cap, base * 2^n). Clients that lost the server together spread their retries over
+ * the whole bound instead of hitting it again in lockstep, and back off further while it
+ * stays away. No more than maxAttempts are made, 0 retries forever.
+ */
+public record ReconnectPolicy(long baseMillis, long capMillis, int maxAttempts) {
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(500, 30_000, 20);
+
+    public long delayMillis(int attempt) {
+        long bound = Math.min(capMillis, baseMillis << Math.min(attempt, 20));
+        return ThreadLocalRandom.current().nextLong(bound + 1);
+    }
+
+    /* The first attempt after the server announced a restart, anywhere in the window it asked for */
+    public long delayWithin(long windowMillis) {
+        return ThreadLocalRandom.current().nextLong(windowMillis + 1);
+    }
+
+    public boolean allows(int attempt) {
+        return maxAttempts <= 0 || attempt < maxAttempts;
+    }
+}
@@ -0,0 +1,106 @@
+package packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+ * Raw DEFLATE of message bodies with a preset dictionary of everyday chat and log text,
+ * so even a few hundred bytes compress well. Both ends must hold the same dictionary,
+ * a different one needs a new HELLO feature bit (see PacketCodec.FEATURE_DEFLATE).
+ *
+ * Deflaters and inflaters hold native memory and are costly to set up, so a few are
+ * pooled and reused by whichever thread needs one: session threads may be virtual,
+ * a thread local would keep one per session instead of one per core.
+ */
+final class Compression {
+    /* Fast level, large messages are rare and the first recipient's writer waits for them */
+    private static final int LEVEL = 1;
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    private static final Queue<Deflater> DEFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+    private static final Queue<Inflater> INFLATERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /* Matches are searched backwards, the most frequent strings sit at the end */
+    private static final byte[] DICTIONARY = ("""
+            Exception in thread "main" java.lang.NullPointerException: Cannot invoke because is null
+            Caused by: java.io.IOException: Connection reset by peer
+            \tat java.base/java.lang.Thread.run(Thread.java)
+            \tat java.base/java.util.concurrent.ThreadPoolExecutor.runWorker(ThreadPoolExecutor.java)
+            ERROR WARN INFO DEBUG TRACE [main] Started in seconds, failed with status code 500 404 200
+            SELECT * FROM WHERE id = ORDER BY LIMIT; {"id": "name": "type": "value": true, false, null}
+            https://www.github.com/ http://localhost:8080/ .com/ .org/ .html .json .yaml .txt
+            Could you please take a look when you have a moment? Let me know what you think.
+            I think we should probably try again tomorrow morning, sounds good to me.
+            Thank you so much, thanks for the help! No problem, you're welcome.
+            Yes, I will. No, I don't know. What do you mean? Why not? How about
+            anyone everyone something about after again also because before could
+            would should there their they them then than this that these those
+            have has had here were was with from what when where which while who
+            will your you are and the for not but can just like know think going
+            """).getBytes(StandardCharsets.UTF_8);
+
+    private Compression() {
+    }
+
+    /* Deflated length, or -1 when the input does not get smaller than the output array */
+    static int deflate(ByteBuffer input, byte[] output) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(input.duplicate());
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished() && length < output.length) {
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            return deflater.finished() ? length : -1;
+        } finally {
+            deflater.reset();
+            if (!DEFLATERS.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /* Exactly inflatedLength bytes or an IOException, never more: a frame cannot claim one size and expand to another */
+    static byte[] inflate(ByteBuffer input, int inflatedLength) throws IOException {
+        Inflater inflater = INFLATERS.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(input.duplicate());
+            byte[] output = new byte[inflatedLength];
+            int length = 0;
+            while (!inflater.finished() && length < inflatedLength) {
+                int inflated = inflater.inflate(output, length, inflatedLength - length);
+                if (inflated == 0) {
+                    break; // Truncated, the input ran out first
+                }
+                length += inflated;
+            }
+            if (length != inflatedLength) {
+                throw new IOException("Compressed message does not match its length");
+            }
+            return output;
+        } catch (DataFormatException e) {
+            throw new IOException("Malformed compressed message", e);
+        } finally {
+            inflater.reset();
+            if (!INFLATERS.offer(inflater)) {
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,525 @@
+package packet;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Compact binary wire format shared by the Client and the Server.
+ *
+ * Frame:   [varint payload length][payload]
+ * Payload: [command][field flags][message?][user?][userRecipient?][roomName?][sequence?][correlation id?][names?]
+ * User:    [user flags][session token?][nickname?][password?]
+ * Strings are [varint byte length][UTF-8 bytes], names [varint count][string]..., sequences are varlongs. Once logged in, a client
+ * identifies itself by the session token the server handed out instead
+ * of resending its nickname and password with every packet.
+ * A deflated message is [varint field length][varint inflated length][raw DEFLATE bytes], see Compression.
+ *
+ * A connection starts with the 4 byte HELLO, its last byte the features the sender supports;
+ * the server answers with those it will use. Clients that open with the Java serialization
+ * header (0xACED0005) keep the legacy object stream.
+ */
+public final class PacketCodec {
+    public static final byte VERSION = 1;
+    public static final int HELLO_SIZE = 4;
+    public static final int MAX_FRAME_SIZE = 1 << 20;
+    /* A varlong padded to its maximum size, so a frame's sequence can be written after encoding */
+    public static final int SEQUENCE_SLOT_SIZE = 10;
+    /* The sender can read deflated messages */
+    public static final int FEATURE_DEFLATE = 1;
+
+    private static final byte[] HELLO = {'T', 'W', VERSION, 0};
+    private static final byte[] OBJECT_STREAM_HEADER = {(byte) 0xAC, (byte) 0xED, 0x00, 0x05};
+    private static final int MAX_VARINT_SIZE = 5;
+    private static final int MAX_VARLONG_SIZE = SEQUENCE_SLOT_SIZE;
+    private static final Command[] COMMANDS = Command.values();
+
+    private static final int HAS_MESSAGE = 1;
+    private static final int HAS_USER = 1 << 1;
+    private static final int HAS_RECIPIENT = 1 << 2;
+    private static final int HAS_ROOM = 1 << 3;
+    private static final int HAS_SEQUENCE = 1 << 4;
+    private static final int HAS_CORRELATION_ID = 1 << 5;
+    private static final int DEFLATED_MESSAGE = 1 << 6;
+    private static final int HAS_NAMES = 1 << 7;
+
+    private static final int HAS_SESSION_TOKEN = 1;
+    private static final int HAS_NICKNAME = 1 << 1;
+    private static final int HAS_PASSWORD = 1 << 2;
+
+    private PacketCodec() {
+    }
+
+    public static byte[] hello(int features) {
+        byte[] hello = HELLO.clone();
+        hello[HELLO_SIZE - 1] = (byte) features;
+        return hello;
+    }
+
+    public static boolean isHello(byte[] preamble) {
+        return preamble.length == HELLO_SIZE && preamble[0] == HELLO[0] && preamble[1] == HELLO[1];
+    }
+
+    /* Peers that predate features send 0 */
+    public static int features(byte[] hello) {
+        return hello[HELLO_SIZE - 1] & 0xFF;
+    }
+
+    public static boolean isObjectStreamHeader(byte[] preamble) {
+        return Arrays.equals(preamble, OBJECT_STREAM_HEADER);
+    }
+
+    /* Encodes a complete frame (length prefix included) into a buffer positioned at its first byte */
+    public static ByteBuffer encode(Packet packet) {
+        ByteBuffer frame = ByteBuffer.allocate(encodedSize(packet, false));
+        encode(packet, frame, false);
+        return frame.flip();
+    }
+
+    /*
+     * Size of the encoded frame, length prefix included. With a sequence slot the sequence always
+     * takes SEQUENCE_SLOT_SIZE bytes (zero until stamped), see stampSequence.
+     */
+    public static int encodedSize(Packet packet, boolean sequenceSlot) {
+        int payloadLength = payloadLength(packet, sequenceSlot);
+        return varintSize(payloadLength) + payloadLength;
+    }
+
+    /*
+     * Writes the frame at the target's position, the target needs encodedSize bytes left.
+     * Nothing is allocated: strings are written as UTF-8 in place, and a message still in its
+     * received bytes is copied as is.
+     */
+    public static void encode(Packet packet, ByteBuffer target, boolean sequenceSlot) {
+        if (sequenceSlot && (packet.getCorrelationId() != null || packet.getNames() != null)) {
+            throw new IllegalArgumentException("The sequence slot must end the frame, it cannot carry a correlation id or names");
+        }
+
+        ByteBuffer messageUtf8 = packet.getMessageUtf8();
+        boolean hasMessage = messageUtf8 != null || packet.getMessage() != null;
+        int flags = (hasMessage ? HAS_MESSAGE : 0)
+                | (packet.getUser() != null ? HAS_USER : 0)
+                | (packet.getUserRecipient() != null ? HAS_RECIPIENT : 0)
+                | (packet.getRoomName() != null ? HAS_ROOM : 0)
+                | (packet.getSequence() != null || sequenceSlot ? HAS_SEQUENCE : 0)
+                | (packet.getCorrelationId() != null ? HAS_CORRELATION_ID : 0)
+                | (packet.getNames() != null ? HAS_NAMES : 0);
+
+        putVarint(target, payloadLength(packet, sequenceSlot));
+        target.put((byte) (packet.getCommand() == null ? 0 : packet.getCommand().ordinal() + 1));
+        target.put((byte) flags);
+        if (messageUtf8 != null) {
+            putVarint(target, messageUtf8.remaining());
+            target.put(messageUtf8.duplicate());
+        } else if (hasMessage) {
+            putString(target, packet.getMessage());
+        }
+        if (packet.getUser() != null) {
+            putUser(target, packet.getUser());
+        }
+        if (packet.getUserRecipient() != null) {
+            putUser(target, packet.getUserRecipient());
+        }
+        if (packet.getRoomName() != null) {
+            putString(target, packet.getRoomName());
+        }
+        if (sequenceSlot) {
+            putPaddedVarlong(target, target.position(), packet.getSequence() == null ? 0 : packet.getSequence());
+            target.position(target.position() + SEQUENCE_SLOT_SIZE);
+        } else if (packet.getSequence() != null) {
+            putVarlong(target, packet.getSequence());
+        }
+        if (packet.getCorrelationId() != null) {
+            putVarint(target, packet.getCorrelationId());
+        }
+        if (packet.getNames() != null) {
+            putVarint(target, packet.getNames().size());
+            for (String name : packet.getNames()) {
+                putString(target, name);
+            }
+        }
+    }
+
+    /* Fills in the sequence of a frame encoded with a sequence slot, the frame spans position to limit */
+    public static void stampSequence(ByteBuffer frame, long sequence) {
+        putPaddedVarlong(frame, frame.limit() - SEQUENCE_SLOT_SIZE, sequence);
+    }
+
+    /*
+     * The same frame with its message deflated, or null when it has no message or would not get
+     * smaller. Every other field is copied as is, a sequence slot included, so stamping the
+     * original first is enough. Only for peers that announced FEATURE_DEFLATE.
+     */
+    public static ByteBuffer deflate(ByteBuffer frame) {
+        ByteBuffer source = frame.duplicate();
+        readVarint(source);
+        byte command = source.get();
+        int flags = source.get() & 0xFF;
+        if ((flags & HAS_MESSAGE) == 0 || (flags & DEFLATED_MESSAGE) != 0) {
+            return null;
+        }
+
+        int messageLength = readVarint(source);
+        int restStart = source.position() + messageLength;
+        byte[] deflated = new byte[messageLength];
+        int deflatedLength = Compression.deflate(source.slice(source.position(), messageLength), deflated);
+        if (deflatedLength < 0) {
+            return null;
+        }
+
+        ByteBuffer rest = source.slice(restStart, frame.limit() - restStart);
+        int fieldLength = varintSize(messageLength) + deflatedLength;
+        int payloadLength = 2 + varintSize(fieldLength) + fieldLength + rest.remaining();
+        int frameSize = varintSize(payloadLength) + payloadLength;
+        if (frameSize >= frame.remaining()) {
+            return null;
+        }
+
+        ByteBuffer target = ByteBuffer.allocate(frameSize);
+        putVarint(target, payloadLength);
+        target.put(command);
+        target.put((byte) (flags | DEFLATED_MESSAGE));
+        putVarint(target, fieldLength);
+        putVarint(target, messageLength);
+        target.put(deflated, 0, deflatedLength);
+        target.put(rest);
+        return target.flip();
+    }
+
+    public static void writeFrame(Packet packet, OutputStream out) throws IOException {
+        ByteBuffer frame = encode(packet);
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+
+    public static Packet readFrame(InputStream in) throws IOException {
+        int length = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed");
+            }
+            if (shift == 7 * MAX_VARINT_SIZE) {
+                throw new IOException("Malformed frame length");
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        checkLength(length);
+
+        byte[] payload = in.readNBytes(length);
+        if (payload.length < length) {
+            throw new EOFException("Connection closed mid frame");
+        }
+        return decodePayload(ByteBuffer.wrap(payload));
+    }
+
+    /*
+     * Size of the frame starting at the buffer position, header included,
+     * or -1 while not even the length prefix has fully arrived.
+     */
+    public static int frameSize(ByteBuffer buffer) throws IOException {
+        int length = 0;
+        int index = buffer.position();
+        for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+            if (index + i >= buffer.limit()) {
+                return -1;
+            }
+            int b = buffer.get(index + i);
+            length |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) {
+                checkLength(length);
+                return i + 1 + length;
+            }
+        }
+        throw new IOException("Malformed frame length");
+    }
+
+    /* Decodes one complete frame, see frameSize, and advances the buffer past it */
+    public static Packet decodeFrame(ByteBuffer buffer) throws IOException {
+        int frameSize = frameSize(buffer);
+        if (frameSize < 0 || buffer.remaining() < frameSize) {
+            throw new IOException("Incomplete frame");
+        }
+
+        int payloadLength = readVarint(buffer);
+        int payloadEnd = buffer.position() + payloadLength;
+        /* Bounded by the limit rather than a slice, one object less per frame */
+        int limit = buffer.limit();
+        buffer.limit(payloadEnd);
+        try {
+            return decodePayload(buffer);
+        } finally {
+            buffer.limit(limit).position(payloadEnd);
+        }
+    }
+
+    private static Packet decodePayload(ByteBuffer payload) throws IOException {
+        try {
+            int commandIndex = payload.get() & 0xFF;
+            int flags = payload.get() & 0xFF;
+            if (commandIndex > COMMANDS.length) {
+                throw new IOException("Unknown command: " + commandIndex);
+            }
+
+            return Packet.builder()
+                    .command(commandIndex == 0 ? null : COMMANDS[commandIndex - 1])
+                    .messageUtf8((flags & HAS_MESSAGE) == 0 ? null : (flags & DEFLATED_MESSAGE) != 0 ? readDeflated(payload) : readBytes(payload))
+                    .user((flags & HAS_USER) != 0 ? readUser(payload) : null)
+                    .userRecipient((flags & HAS_RECIPIENT) != 0 ? readUser(payload) : null)
+                    .roomName((flags & HAS_ROOM) != 0 ? readString(payload) : null)
+                    .sequence((flags & HAS_SEQUENCE) != 0 ? readVarlong(payload) : null)
+                    .correlationId((flags & HAS_CORRELATION_ID) != 0 ? readVarint(payload) : null)
+                    .names((flags & HAS_NAMES) != 0 ? readNames(payload) : null)
+                    .build();
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed packet", e);
+        }
+    }
+
+    private static int payloadLength(Packet packet, boolean sequenceSlot) {
+        int length = 2; // Command and field flags
+        ByteBuffer messageUtf8 = packet.getMessageUtf8();
+        if (messageUtf8 != null) {
+            length += varintSize(messageUtf8.remaining()) + messageUtf8.remaining();
+        } else if (packet.getMessage() != null) {
+            length += stringSize(packet.getMessage());
+        }
+        if (packet.getUser() != null) {
+            length += userSize(packet.getUser());
+        }
+        if (packet.getUserRecipient() != null) {
+            length += userSize(packet.getUserRecipient());
+        }
+        if (packet.getRoomName() != null) {
+            length += stringSize(packet.getRoomName());
+        }
+        if (sequenceSlot) {
+            length += SEQUENCE_SLOT_SIZE;
+        } else if (packet.getSequence() != null) {
+            length += varlongSize(packet.getSequence());
+        }
+        if (packet.getCorrelationId() != null) {
+            length += varintSize(packet.getCorrelationId());
+        }
+        if (packet.getNames() != null) {
+            length += varintSize(packet.getNames().size());
+            for (String name : packet.getNames()) {
+                length += stringSize(name);
+            }
+        }
+        return length;
+    }
+
+    private static int userSize(User user) {
+        return 1
+                + (user.getSessionToken() != null ? stringSize(user.getSessionToken()) : 0)
+                + (user.getNickname() != null ? stringSize(user.getNickname()) : 0)
+                + (user.getPassword() != null ? stringSize(user.getPassword()) : 0);
+    }
+
+    private static void putUser(ByteBuffer target, User user) {
+        int flags = (user.getSessionToken() != null ? HAS_SESSION_TOKEN : 0)
+                | (user.getNickname() != null ? HAS_NICKNAME : 0)
+                | (user.getPassword() != null ? HAS_PASSWORD : 0);
+
+        target.put((byte) flags);
+        if (user.getSessionToken() != null) {
+            putString(target, user.getSessionToken());
+        }
+        if (user.getNickname() != null) {
+            putString(target, user.getNickname());
+        }
+        if (user.getPassword() != null) {
+            putString(target, user.getPassword());
+        }
+    }
+
+    private static User readUser(ByteBuffer buffer) {
+        int flags = buffer.get();
+
+        return User.builder()
+                .sessionToken((flags & HAS_SESSION_TOKEN) != 0 ? readString(buffer) : null)
+                .nickname((flags & HAS_NICKNAME) != 0 ? readString(buffer) : null)
+                .password((flags & HAS_PASSWORD) != 0 ? readString(buffer) : null)
+                .build();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readVarint(buffer);
+        if (!buffer.hasArray()) {
+            byte[] utf8 = new byte[length];
+            buffer.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static ArrayList<String> readNames(ByteBuffer buffer) {
+        int count = readVarint(buffer);
+        /* Every name takes at least its length byte, a count beyond the payload is malformed */
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalStateException("Malformed name count");
+        }
+        ArrayList<String> names = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            names.add(readString(buffer));
+        }
+        return names;
+    }
+
+    /* A view of the bytes, no copy: only valid as long as the buffer's content is */
+    private static ByteBuffer readBytes(ByteBuffer buffer) {
+        int length = readVarint(buffer);
+        ByteBuffer bytes = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return bytes;
+    }
+
+    private static ByteBuffer readDeflated(ByteBuffer buffer) throws IOException {
+        int fieldLength = readVarint(buffer);
+        int fieldEnd = buffer.position() + fieldLength;
+        int inflatedLength = readVarint(buffer);
+        checkLength(inflatedLength);
+        byte[] inflated = Compression.inflate(buffer.slice(buffer.position(), fieldEnd - buffer.position()), inflatedLength);
+        buffer.position(fieldEnd);
+        return ByteBuffer.wrap(inflated);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7) {
+            int b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    private static long readVarlong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 7 * MAX_VARLONG_SIZE; shift += 7) {
+            int b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varlong");
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int varlongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int stringSize(String value) {
+        int length = utf8Length(value);
+        return varintSize(length) + length;
+    }
+
+    private static void putVarint(ByteBuffer target, int value) {
+        while ((value & ~0x7F) != 0) {
+            target.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        target.put((byte) value);
+    }
+
+    private static void putVarlong(ByteBuffer target, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        target.put((byte) value);
+    }
+
+    /* Every byte but the last carries the continuation bit, readers decode it like any varlong */
+    private static void putPaddedVarlong(ByteBuffer target, int index, long value) {
+        for (int i = 0; i < SEQUENCE_SLOT_SIZE - 1; i++) {
+            target.put(index + i, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        target.put(index + SEQUENCE_SLOT_SIZE - 1, (byte) value);
+    }
+
+    private static void putString(ByteBuffer target, String value) {
+        putVarint(target, utf8Length(value));
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                target.put((byte) c);
+            } else if (c < 0x800) {
+                target.put((byte) (0xC0 | (c >> 6)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    target.put((byte) (0xF0 | (codePoint >> 18)));
+                    target.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    target.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    target.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    target.put((byte) '?'); // Unpaired surrogate, replaced like String.getBytes does
+                }
+            } else {
+                target.put((byte) (0xE0 | (c >> 12)));
+                target.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                target.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /* Same count as value.getBytes(UTF_8).length, without the array */
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length++;
+                }
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+}
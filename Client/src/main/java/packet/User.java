@@ -2,17 +2,23 @@ package packet;
 
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 
+import java.io.ObjectOutputStream;
+import java.io.Serial;
 import java.io.Serializable;
 import java.net.Socket;
 
-import java.io.ObjectOutputStream;
-
 @Data
 @Builder /* https://refactoring.guru/design-patterns/builder */
 public class User implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L; // Pinned so the Client and Server copies stay wire compatible
+
     private String nickname;
     private String password;
+    @EqualsAndHashCode.Exclude
+    private String sessionToken; // Random bearer token issued on login, later packets carry it instead of the password
     private transient Socket socket; // Marked transient because socket is not serializable
     private transient ObjectOutputStream outStream; // Marked transient because streams are not serializable
 }
@@ -1,147 +1,189 @@
 package run_time_db;
 
-import packet.Command;
+import metrics.MeteredInputStream;
+import metrics.MeteredOutputStream;
+import metrics.ServerMetrics;
+import network.Connection;
+import network.IdleReaper;
+import network.OutboundFrame;
+import network.OutboundQueue;
+import network.OutboundSettings;
+import network.PacketHandler;
 import packet.Packet;
-import packet.User;
-import run_time_db.UserManagement;
+import packet.PacketCodec;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Optional;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Blocking session, run either on a platform thread or on a virtual thread.
+ * Outgoing frames go through a bounded queue drained by a writer thread of the
+ * same kind, so senders never touch this socket and a stalled client never blocks
+ * them. Being the only writer, it needs no lock (and never pins a carrier thread).
+ * It drains whatever is queued into a buffer of --coalesce-bytes and flushes once,
+ * so a burst of room traffic costs one write instead of one per message.
+ */
+public class ClientThread implements Runnable, Connection {
+    /* Pooled frames are off-heap, streams take them through this copy buffer */
+    private static final int SCRATCH_SIZE = 8 * 1024;
 
-public class ClientThread extends Thread {
     private Socket socket;
     private ObjectInputStream in;
     private ObjectOutputStream out;
-    private HashMap<String, Set<ClientThread>> chatRooms;
+    private OutputStream binaryOut; // Set instead of the object streams once the binary protocol is negotiated
+    private int deflateAbove; // The --compress-above threshold if the client can inflate, else 0
+    private PacketHandler handler;
+    private final ThreadFactory threadFactory;
+    private final OutboundQueue outbound;
+    private final OutboundSettings outboundSettings;
+    private final IdleReaper idleReaper;
+    private volatile IdleReaper.Handle idle; // Set once run() starts, the reaper never sees a half-built session
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile Thread writer;
 
-    public ClientThread(Socket clientConnection, HashMap<String, Set<ClientThread>> chatRooms) {
+    public ClientThread(Socket clientConnection, PacketHandler handler, ThreadFactory threadFactory, OutboundSettings outboundSettings,
+                        IdleReaper idleReaper) {
         this.socket = clientConnection;
-        this.chatRooms = chatRooms;
-        try {
-            this.out = new ObjectOutputStream(this.socket.getOutputStream());
-            this.in = new ObjectInputStream(this.socket.getInputStream());
-        } catch (IOException e) {
-            throw new RuntimeException("Error initializing streams", e);
-        }
+        this.handler = handler;
+        this.threadFactory = threadFactory;
+        this.outbound = new OutboundQueue(outboundSettings);
+        this.outboundSettings = outboundSettings;
+        this.idleReaper = idleReaper;
     }
 
     @Override
     public void run() {
+        /* Tracked from the start on, a client that never even completes the handshake is reaped too */
+        this.idle = idleReaper.track(this);
+        if (closed.get()) {
+            idle.cancel();
+        }
+        ServerMetrics.INSTANCE.connectionOpened();
         try {
+            /* Negotiated here rather than in the constructor so a slow handshake never stalls the accept loop */
+            InputStream input = new BufferedInputStream(new MeteredInputStream(this.socket.getInputStream()));
+            input.mark(PacketCodec.HELLO_SIZE);
+            byte[] preamble = input.readNBytes(PacketCodec.HELLO_SIZE);
+
+            /* Sized to the coalescing threshold, a full buffer goes out as one write */
+            OutputStream output = new BufferedOutputStream(new MeteredOutputStream(this.socket.getOutputStream()), outboundSettings.getCoalesceBytes());
+            if (PacketCodec.isHello(preamble)) {
+                this.binaryOut = output;
+                this.deflateAbove = (PacketCodec.features(preamble) & PacketCodec.FEATURE_DEFLATE) != 0 ? outboundSettings.getCompressAbove() : 0;
+                this.binaryOut.write(PacketCodec.hello(deflateAbove > 0 ? PacketCodec.FEATURE_DEFLATE : 0));
+                this.binaryOut.flush();
+            } else {
+                /* Legacy client, replay its stream header into the object stream */
+                input.reset();
+                this.out = new ObjectOutputStream(output);
+                this.out.flush(); // The client blocks until it reads the stream header
+                this.in = new ObjectInputStream(input);
+            }
+
+            this.writer = threadFactory.newThread(this::drainOutbound);
+            this.writer.start();
+
             boolean isRunning = true;
             while (isRunning) {
-                Packet receivedPacket = (Packet) in.readObject();
-                System.out.println("Received: " + receivedPacket);
-
-                execute(receivedPacket);
+                Packet receivedPacket = binaryOut != null ? PacketCodec.readFrame(input) : (Packet) in.readObject();
+                idle.touch();
+                handler.onPacket(this, receivedPacket);
             }
         } catch (ClassNotFoundException | IOException e) {
             System.out.println("Client disconnected or error: " + e.getMessage());
         } finally {
-            closeConnection();
+            close();
+            handler.onDisconnect(this);
+            ServerMetrics.INSTANCE.connectionClosed();
         }
     }
 
-    private void execute(Packet receivedPacket) {
-        Packet responsePacket = null;
+    @Override
+    public void sendFrame(OutboundFrame frame) {
+        if (closed.get()) {
+            return;
+        }
+        if (!outbound.offer(frame)) {
+            System.out.println("Disconnecting slow client, outbound queue full");
+            close();
+        }
+    }
 
-        switch (receivedPacket.getCommand()) {
-            case LOGIN -> {
-                Optional<User> optionalUser = UserManagement.INSTANCE.login(receivedPacket.getUser());
+    @Override
+    public int outboundDepth() {
+        return outbound.depth();
+    }
 
-                if (optionalUser.isPresent()) {
-                    User loggedInUser = optionalUser.get();
-                    loggedInUser.setSocket(this.socket);
-                    loggedInUser.setOutStream(this.out);
+    private void drainOutbound() {
+        long window = TimeUnit.MICROSECONDS.toNanos(outboundSettings.getCoalesceMicros());
+        byte[] scratch = new byte[SCRATCH_SIZE];
+        /* Frames with a receipt that sit in the stream's buffer, it runs once they are flushed */
+        List<OutboundFrame> unflushed = new ArrayList<>();
+        try {
+            while (!socket.isClosed()) {
+                OutboundFrame frame = outbound.take();
+                long deadline = System.nanoTime() + window;
+                int frames = 0;
+                while (frame != null) {
+                    try {
+                        if (binaryOut != null) {
+                            frame.writeTo(binaryOut, scratch, deflateAbove);
+                        } else {
+                            out.writeObject(frame.packet());
+                        }
+                        if (frame.hasReceipt()) {
+                            unflushed.add(frame);
+                        }
+                    } finally {
+                        frame.release();
+                    }
+                    frames++;
+                    if (frame.isUrgent()) {
+                        break;
+                    }
 
-                    responsePacket = Packet.builder()
-                            .message("Success")
-                            .user(loggedInUser)
-                            .command(Command.LOGIN)
-                            .build();
-                } else {
-                    responsePacket = Packet.builder().message("User not found").build();
+                    frame = outbound.poll();
+                    long remaining = deadline - System.nanoTime();
+                    if (frame == null && remaining > 0) {
+                        frame = outbound.poll(remaining, TimeUnit.NANOSECONDS);
+                    }
                 }
-            }
-            case REGISTER -> {
-                Optional<User> optionalUserRegistry = UserManagement.INSTANCE.register(receivedPacket.getUser());
-
-                if (optionalUserRegistry.isPresent()) {
-                    User registrerInUser = optionalUserRegistry.get();
-                    registrerInUser.setSocket(this.socket);
-                    registrerInUser.setOutStream(this.out);
-
-                    responsePacket = Packet.builder()
-                            .message("Success")
-                            .user(registrerInUser)
-                            .command(Command.REGISTER)
-                            .build();
+
+                if (binaryOut != null) {
+                    binaryOut.flush();
                 } else {
-                    responsePacket = Packet.builder().message("User not registered").build();
-                }
-            }
-            case MESSAGE_ALL -> {
-                UserManagement.INSTANCE.broadcastMessage(receivedPacket);
-            }
-            case MESSAGE_INDIVIDUAL -> {
-                UserManagement.INSTANCE.individualMessage(receivedPacket);
-            }
-            case JOIN_ROOM -> {
-                User user = receivedPacket.getUser();
-                String roomName = receivedPacket.getRoomName();
-                UserManagement.INSTANCE.joinRoom(roomName, user);
-                chatRooms.computeIfAbsent(roomName, k -> new HashSet<>()).add(this);
-                responsePacket = Packet.builder()
-                        .message("Joined room: " + roomName)
-                        .command(Command.JOIN_ROOM)
-                        .build();
-            }
-            case CREATE_ROOM -> {
-                String roomName = receivedPacket.getRoomName();
-                UserManagement.INSTANCE.createRoom(roomName);
-                chatRooms.putIfAbsent(roomName, new HashSet<>());
-                responsePacket = Packet.builder()
-                        .message("Room created: " + roomName)
-                        .command(Command.CREATE_ROOM)
-                        .build();
-            }
-            case MESSAGE_ROOM -> {
-                String roomName = receivedPacket.getRoomName();
-                Set<ClientThread> roomClients = chatRooms.get(roomName);
-                if (roomClients != null) {
-                    for (ClientThread client : roomClients) {
-                        if (!client.equals(this)) {
-                            client.sendPacket(receivedPacket);
-                        }
-                    }
+                    out.flush();
                 }
+                unflushed.forEach(OutboundFrame::written);
+                unflushed.clear();
+                ServerMetrics.INSTANCE.socketWrite(frames);
             }
-            default -> {
-                responsePacket = Packet.builder().message("Invalid command").build();
-            }
-        }
-
-        if (responsePacket != null) {
-            sendPacket(responsePacket);
+        } catch (InterruptedException | IOException e) {
+            close();
         }
     }
 
-    private void sendPacket(Packet packet) {
-        try {
-            out.writeObject(packet);
-            out.flush();
-        } catch (IOException e) {
-            throw new RuntimeException("Error sending packet", e);
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        IdleReaper.Handle handle = idle;
+        if (handle != null) {
+            handle.cancel();
         }
-    }
 
-    private void closeConnection() {
         try {
             if (socket != null && !socket.isClosed()) {
                 socket.close();
@@ -149,5 +191,11 @@ public class ClientThread extends Thread {
         } catch (IOException e) {
             System.out.println("Error closing connection.");
         }
+
+        Thread outboundWriter = this.writer;
+        if (outboundWriter != null && outboundWriter != Thread.currentThread()) {
+            outboundWriter.interrupt();
+        }
+        outbound.clear();
     }
 }
@@ -1,7 +1,24 @@
+import auth.AuthSettings;
+import cluster.ClusterSettings;
+import history.HistorySettings;
+import history.MailboxSettings;
+import metrics.MetricsSettings;
+import network.IdleSettings;
+import network.OutboundSettings;
+import network.ServerMode;
+import network.ShutdownSettings;
+import network.TlsSettings;
+import ratelimit.RateLimitSettings;
+import run_time_db.ShardSettings;
+import store.StoreSettings;
+
 public class Main
 {
     public static void main( String[] args )
     {
-        new Server().start();
+        new Server(ServerMode.fromArgs(args), OutboundSettings.fromArgs(args), MetricsSettings.fromArgs(args), HistorySettings.fromArgs(args),
+                StoreSettings.fromArgs(args), AuthSettings.fromArgs(args), ClusterSettings.fromArgs(args),
+                ShardSettings.fromArgs(args), IdleSettings.fromArgs(args), TlsSettings.fromArgs(args), RateLimitSettings.fromArgs(args),
+                MailboxSettings.fromArgs(args), ShutdownSettings.fromArgs(args)).start();
     }
 }
@@ -1,42 +1,217 @@
+import auth.AuthSettings;
+import auth.Authenticator;
+import cluster.Cluster;
+import cluster.ClusterSettings;
+import history.HistorySettings;
+import history.MailboxSettings;
+import history.Mailboxes;
+import history.MessageHistory;
+import metrics.MetricsEndpoint;
+import metrics.MetricsSettings;
+import metrics.PacketLog;
+import metrics.ServerMetrics;
+import network.IdleReaper;
+import network.IdleSettings;
+import network.NioServer;
+import network.OutboundSettings;
+import network.ServerMode;
+import network.ShutdownSettings;
+import network.TlsContext;
+import network.TlsSettings;
+import ratelimit.RateLimitSettings;
+import ratelimit.RateLimiter;
 import run_time_db.ClientThread;
+import run_time_db.ClusterNode;
+import run_time_db.CommandDispatcher;
+import run_time_db.RoomService;
+import run_time_db.ShardSettings;
+import run_time_db.Shards;
+import run_time_db.UserManagement;
+import store.StoreSettings;
+import store.UserStore;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class Server {
-    /* Arbitrary port number */
-    public static final int PORT = 6543;
+    /* Large enough to absorb reconnect bursts of thousands of clients */
+    private static final int ACCEPT_BACKLOG = 4096;
+    /* Pause after a failed accept, out of descriptors it would otherwise fail again right away */
+    private static final long ACCEPT_RETRY_MILLIS = 100;
 
-    // HashMap to manage chat rooms
-    private final HashMap<String, Set<ClientThread>> chatRooms = new HashMap<>();
+    private final ServerMode mode;
+    private final OutboundSettings outboundSettings;
+    private final MetricsSettings metricsSettings;
+    private final HistorySettings historySettings;
+    private final StoreSettings storeSettings;
+    private final AuthSettings authSettings;
+    /* Also holds the client port, which is arbitrary unless several nodes share a host */
+    private final ClusterSettings clusterSettings;
+    private final ShardSettings shardSettings;
+    private final IdleSettings idleSettings;
+    private final TlsSettings tlsSettings;
+    private final RateLimitSettings rateLimitSettings;
+    private final MailboxSettings mailboxSettings;
+    private final ShutdownSettings shutdownSettings;
+
+    private volatile boolean isRunning;
+    private volatile Authenticator authenticator;
+    private volatile ServerSocket serverSocket;
+    private volatile NioServer nioServer;
+
+    public Server() {
+        this(ServerMode.BLOCKING, OutboundSettings.builder().build(), MetricsSettings.builder().build(), HistorySettings.builder().build(),
+                StoreSettings.builder().build(), AuthSettings.builder().build(), ClusterSettings.builder().build(), ShardSettings.builder().build(),
+                IdleSettings.builder().build(), TlsSettings.builder().build(), RateLimitSettings.builder().build(), MailboxSettings.builder().build(),
+                ShutdownSettings.builder().build());
+    }
+
+    public Server(ServerMode mode, OutboundSettings outboundSettings, MetricsSettings metricsSettings, HistorySettings historySettings,
+                  StoreSettings storeSettings, AuthSettings authSettings, ClusterSettings clusterSettings, ShardSettings shardSettings,
+                  IdleSettings idleSettings, TlsSettings tlsSettings, RateLimitSettings rateLimitSettings, MailboxSettings mailboxSettings,
+                  ShutdownSettings shutdownSettings) {
+        this.mode = mode;
+        this.outboundSettings = outboundSettings;
+        this.metricsSettings = metricsSettings;
+        this.historySettings = historySettings;
+        this.storeSettings = storeSettings;
+        this.authSettings = authSettings;
+        this.clusterSettings = clusterSettings;
+        this.shardSettings = shardSettings;
+        this.idleSettings = idleSettings;
+        this.tlsSettings = tlsSettings;
+        this.rateLimitSettings = rateLimitSettings;
+        this.mailboxSettings = mailboxSettings;
+        this.shutdownSettings = shutdownSettings;
+    }
 
     public void start() {
+        ServerMetrics.INSTANCE.registerMBean();
+        if (metricsSettings.getPort() > 0) {
+            new MetricsEndpoint(metricsSettings.getPort()).start();
+        }
+        if (metricsSettings.isLogPackets()) {
+            PacketLog.INSTANCE.enable();
+        }
+        Shards.INSTANCE.start(shardSettings);
+        MessageHistory.INSTANCE.open(historySettings);
+        /* Inbox work runs on the recipient's shard, like the deposits and deliveries UserManagement makes there */
+        Mailboxes.INSTANCE.open(mailboxSettings, Shards.INSTANCE::executeFromShard);
+        if (storeSettings.isEnabled()) {
+            UserManagement.INSTANCE.attachStore(UserStore.open(storeSettings));
+        }
+        Cluster.INSTANCE.start(clusterSettings, new ClusterNode());
+        RoomService.INSTANCE.limitRooms(rateLimitSettings.getRoom());
+
+        authenticator = new Authenticator(authSettings);
+        if (shutdownSettings.getHandoffFile() != null) {
+            authenticator.takeOver(Path.of(shutdownSettings.getHandoffFile()));
+        }
+        CommandDispatcher dispatcher = new CommandDispatcher(authenticator, new RateLimiter(rateLimitSettings));
+        IdleReaper idleReaper = new IdleReaper(idleSettings);
+        idleReaper.start();
+        TlsContext tlsContext = tlsSettings.isEnabled() ? TlsContext.open(tlsSettings) : null;
+
+        isRunning = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "shutdown"));
+
+        switch (mode) {
+            case BLOCKING -> startBlocking(dispatcher, Thread.ofPlatform().factory(), idleReaper, tlsContext);
+            case VIRTUAL -> startBlocking(dispatcher, Thread.ofVirtual().factory(), idleReaper, tlsContext);
+            case NIO -> {
+                nioServer = new NioServer(clusterSettings.getPort(), dispatcher, Runtime.getRuntime().availableProcessors(), outboundSettings,
+                        idleReaper, tlsContext);
+                nioServer.start();
+            }
+        }
+    }
+
+    /*
+     * Runs on SIGTERM: stops accepting and tells every client to reconnect within the window (a new
+     * process can take the port meanwhile). Clients finish sending and close their side, so every
+     * message they sent is read, and what is queued for them goes out until they do; those still
+     * connected at the drain timeout are dropped. Sessions are then handed off, so clients resume
+     * without logging in again, and whatever they missed since is in the history.
+     */
+    private void shutdown() {
+        isRunning = false;
+        System.out.println("Shutting down, draining sessions");
         try {
-            ServerSocket serverSocket = new ServerSocket(PORT);
-            Socket clientConnection = null;
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+            if (nioServer != null) {
+                nioServer.stop();
+            }
+        } catch (IOException e) {
+            System.out.println("Error closing the server socket: " + e.getMessage());
+        }
 
-            boolean isRunning = true;
+        UserManagement.INSTANCE.announceRestart(shutdownSettings.getReconnectWindowMillis());
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shutdownSettings.getDrainTimeoutMillis());
+        try {
+            while ((!UserManagement.INSTANCE.getAuthenticatedUsers().isEmpty() || UserManagement.INSTANCE.outboundDepth() > 0)
+                    && deadline - System.nanoTime() > 0) {
+                Thread.sleep(10);
+            }
+            int remaining = UserManagement.INSTANCE.getAuthenticatedUsers().size();
+            if (remaining > 0) {
+                System.out.println("Drain timed out, dropping " + remaining + " sessions");
+            }
+            /* The last messages read are recorded before the history is flushed */
+            Shards.INSTANCE.awaitIdle(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (shutdownSettings.getHandoffFile() != null && authenticator != null) {
+            authenticator.handOff(Path.of(shutdownSettings.getHandoffFile()));
+        }
+        MessageHistory.INSTANCE.flush();
+        System.out.println("Server stopped");
+    }
+
+    private void startBlocking(CommandDispatcher dispatcher, ThreadFactory threadFactory, IdleReaper idleReaper, TlsContext tlsContext) {
+        try {
+            /* Sockets of a TLS server socket handshake on their own session thread, on first read */
+            serverSocket = tlsContext == null
+                    ? new ServerSocket(clusterSettings.getPort(), ACCEPT_BACKLOG)
+                    : tlsContext.openServerSocket(clusterSettings.getPort(), ACCEPT_BACKLOG);
+            Socket clientConnection = null;
 
-            System.out.println("Server is running");
-            /* An infinite loop is necessary in order keep the server awake */
+            System.out.println("Server is running (" + mode.name().toLowerCase() + (tlsContext == null ? "" : ", tls") + ")");
+            /* Keeps the server awake until shutdown closes the server socket */
             while (isRunning) {
                 /* Accepts connections */
-                clientConnection = serverSocket.accept();
-                /* Make a new thread for each client */
-                new Thread(new ClientThread(clientConnection, chatRooms)).start();
+                try {
+                    clientConnection = serverSocket.accept();
+                } catch (IOException e) {
+                    if (!isRunning || serverSocket.isClosed()) {
+                        return;
+                    }
+                    /* Too many open files and the like, connections are accepted again once some close */
+                    System.out.println("Error accepting a connection: " + e.getMessage());
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                    continue;
+                }
+                /* Make a new thread (platform or virtual, depending on the mode) for each client */
+                threadFactory.newThread(new ClientThread(clientConnection, dispatcher, threadFactory, outboundSettings, idleReaper)).start();
             }
 
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         } catch (IOException e) {
             /* Failed to create the Terminal */
             throw new RuntimeException(e);
         }
     }
 
+    /* Main wires the settings, this entry point only stays for launchers that still name Server */
     public static void main(String[] args) {
-        new Server().start();
+        Main.main(args);
     }
 }
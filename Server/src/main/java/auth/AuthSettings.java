@@ -0,0 +1,40 @@
+package auth;
+
+import lombok.Builder;
+import lombok.Data;
+
+/*
+ * Credential handling configuration, read from --hash-iterations, --auth-workers,
+ * --auth-queue and --session-ttl-seconds
+ */
+@Data
+@Builder
+public class AuthSettings {
+    /* PBKDF2-HMAC-SHA256 rounds for new hashes, existing hashes keep the count they were made with */
+    @Builder.Default
+    private int hashIterations = 310_000;
+    @Builder.Default
+    private int workers = Runtime.getRuntime().availableProcessors();
+    /* Logins waiting for a worker beyond this are refused instead of piling up */
+    @Builder.Default
+    private int queueCapacity = 1024;
+    /* How long a disconnected session token, or a verified password, is trusted without hashing again */
+    @Builder.Default
+    private long sessionTtlSeconds = 300;
+
+    public static AuthSettings fromArgs(String[] args) {
+        AuthSettingsBuilder settings = AuthSettings.builder();
+        for (String arg : args) {
+            if (arg.startsWith("--hash-iterations=")) {
+                settings.hashIterations(Integer.parseInt(arg.substring("--hash-iterations=".length())));
+            } else if (arg.startsWith("--auth-workers=")) {
+                settings.workers(Integer.parseInt(arg.substring("--auth-workers=".length())));
+            } else if (arg.startsWith("--auth-queue=")) {
+                settings.queueCapacity(Integer.parseInt(arg.substring("--auth-queue=".length())));
+            } else if (arg.startsWith("--session-ttl-seconds=")) {
+                settings.sessionTtlSeconds(Long.parseLong(arg.substring("--session-ttl-seconds=".length())));
+            }
+        }
+        return settings.build();
+    }
+}
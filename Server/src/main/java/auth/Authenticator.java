@@ -0,0 +1,254 @@
+package auth;
+
+import packet.User;
+import run_time_db.UserManagement;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/*
+ * REGISTER and LOGIN credential checks. Password hashing costs tens of milliseconds
+ * by design, so it runs on a small bounded worker pool and never on a session thread
+ * or event loop; results come back as futures.
+ *
+ * Two short-lived caches keep reconnect storms cheap: a client may resume with the
+ * session token it was issued (valid while connected and for the TTL after), and a
+ * password verified within the TTL is accepted again without hashing. Tokens survive a
+ * restart through a handoff file, written on shutdown and taken over by the next process.
+ */
+public class Authenticator {
+    private final PasswordHasher hasher;
+    private final ExecutorService workers;
+    private final long ttlNanos;
+    private final byte[] cacheKey = new byte[32];
+    /* Nickname to a keyed digest of the password last verified for it */
+    private final Map<String, VerifiedCredential> verifiedCredentials = new ConcurrentHashMap<>();
+    /* Nickname to when its session was last closed, its token stays valid for the TTL after */
+    private final Map<String, Long> closedSessions = new ConcurrentHashMap<>();
+
+    private record VerifiedCredential(byte[] digest, long verifiedAt) {
+    }
+
+    public Authenticator(AuthSettings settings) {
+        this.hasher = new PasswordHasher(settings.getHashIterations());
+        this.workers = new ThreadPoolExecutor(settings.getWorkers(), settings.getWorkers(), 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(settings.getQueueCapacity()),
+                Thread.ofPlatform().name("auth-worker-", 0).daemon().factory());
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(settings.getSessionTtlSeconds());
+        new SecureRandom().nextBytes(cacheKey);
+
+        if (settings.getSessionTtlSeconds() > 0) {
+            ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(
+                    Thread.ofPlatform().name("auth-sweeper").daemon().factory());
+            sweeper.scheduleAtFixedRate(this::sweep, settings.getSessionTtlSeconds(), settings.getSessionTtlSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    /* Completes with the registered user once it is stored, empty if the nickname is taken or the input invalid */
+    public CompletableFuture<Optional<User>> register(User credentials) {
+        if (credentials == null || isBlank(credentials.getNickname()) || isBlank(credentials.getPassword())) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        /* Taken nicknames are refused before paying for a hash, UserManagement.register still decides races */
+        if (UserManagement.INSTANCE.findUser(credentials.getNickname()).isPresent()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        String nickname = credentials.getNickname();
+        String password = credentials.getPassword();
+        return hashAsync(() -> hasher.hash(password))
+                .thenCompose(hash -> UserManagement.INSTANCE.register(User.builder().nickname(nickname).password(hash).build()))
+                .thenApply(registered -> {
+                    registered.ifPresent(user -> remember(user, password));
+                    return registered;
+                });
+    }
+
+    /*
+     * Completes with the user if the password, or a session token issued to it, checks out.
+     * Fails with RejectedExecutionException when every worker is busy and the queue is full.
+     */
+    public CompletableFuture<Optional<User>> login(User credentials) {
+        if (credentials == null || credentials.getNickname() == null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+
+        Optional<User> optionalUser = UserManagement.INSTANCE.findUser(credentials.getNickname());
+        if (optionalUser.isEmpty()) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        User user = optionalUser.get();
+
+        if (credentials.getPassword() == null) {
+            return CompletableFuture.completedFuture(resume(user, credentials.getSessionToken()));
+        }
+        if (isVerified(user, credentials.getPassword())) {
+            return CompletableFuture.completedFuture(Optional.of(user));
+        }
+
+        String password = credentials.getPassword();
+        return hashAsync(() -> {
+            String stored = user.getPassword();
+            if (!hasher.verify(password, stored)) {
+                return Optional.<User>empty();
+            }
+            if (hasher.needsRehash(stored)) {
+                UserManagement.INSTANCE.updatePassword(user, hasher.hash(password));
+            }
+            remember(user, password);
+            return Optional.of(user);
+        });
+    }
+
+    /* Starts the grace period during which the user's token can resume the session */
+    public void sessionClosed(User user) {
+        closedSessions.put(user.getNickname(), System.nanoTime());
+    }
+
+    /*
+     * Writes the token of every session still open, or closed within the TTL, for the next process
+     * to take over. The file holds live credentials, it is readable by its owner only.
+     */
+    public void handOff(Path file) {
+        Map<String, String> tokens = new LinkedHashMap<>();
+        for (User user : UserManagement.INSTANCE.getAuthenticatedUsers()) {
+            tokens.put(user.getNickname(), user.getSessionToken());
+        }
+        long now = System.nanoTime();
+        closedSessions.forEach((nickname, closedAt) -> {
+            if (now - closedAt < ttlNanos) {
+                UserManagement.INSTANCE.findUser(nickname).ifPresent(user -> tokens.putIfAbsent(nickname, user.getSessionToken()));
+            }
+        });
+        tokens.values().removeIf(token -> token == null);
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.deleteIfExists(temporary);
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.createFile(temporary, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+            }
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temporary))) {
+                out.writeInt(tokens.size());
+                for (Map.Entry<String, String> session : tokens.entrySet()) {
+                    out.writeUTF(session.getKey());
+                    out.writeUTF(session.getValue());
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("Handed off " + tokens.size() + " sessions");
+        } catch (IOException e) {
+            System.out.println("Error handing off sessions: " + e.getMessage());
+        }
+    }
+
+    /* Startup, once the accounts are loaded: the handed off tokens start a fresh grace period, the file is consumed */
+    public void takeOver(Path file) {
+        if (!Files.exists(file)) {
+            return;
+        }
+
+        int restored = 0;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            long now = System.nanoTime();
+            for (int count = in.readInt(); count > 0; count--) {
+                String nickname = in.readUTF();
+                String token = in.readUTF();
+                Optional<User> user = UserManagement.INSTANCE.findUser(nickname);
+                if (user.isPresent()) {
+                    user.get().setSessionToken(token);
+                    closedSessions.put(nickname, now);
+                    restored++;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error taking over sessions: " + e.getMessage());
+        }
+
+        try {
+            Files.delete(file);
+        } catch (IOException e) {
+            System.out.println("Error deleting " + file + ": " + e.getMessage());
+        }
+        System.out.println("Took over " + restored + " sessions");
+    }
+
+    private Optional<User> resume(User user, String token) {
+        String issued = user.getSessionToken();
+        if (token == null || issued == null
+                || !MessageDigest.isEqual(issued.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8))) {
+            return Optional.empty();
+        }
+
+        Long closedAt = closedSessions.remove(user.getNickname());
+        boolean live = user.getConnection() != null || (closedAt != null && System.nanoTime() - closedAt < ttlNanos);
+        return live ? Optional.of(user) : Optional.empty();
+    }
+
+    private boolean isVerified(User user, String password) {
+        VerifiedCredential credential = verifiedCredentials.get(user.getNickname());
+        return credential != null
+                && System.nanoTime() - credential.verifiedAt() < ttlNanos
+                && MessageDigest.isEqual(credential.digest(), digest(user, password));
+    }
+
+    private void remember(User user, String password) {
+        if (ttlNanos > 0) {
+            verifiedCredentials.put(user.getNickname(), new VerifiedCredential(digest(user, password), System.nanoTime()));
+        }
+    }
+
+    /* Keyed by a per-process secret and the stored hash, so a changed password never matches a stale entry */
+    private byte[] digest(User user, String password) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(cacheKey);
+            sha256.update(user.getPassword().getBytes(StandardCharsets.UTF_8));
+            sha256.update((byte) 0);
+            return sha256.digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    private <T> CompletableFuture<T> hashAsync(Supplier<T> task) {
+        try {
+            return CompletableFuture.supplyAsync(task, workers);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void sweep() {
+        long now = System.nanoTime();
+        verifiedCredentials.values().removeIf(credential -> now - credential.verifiedAt() >= ttlNanos);
+        closedSessions.values().removeIf(closedAt -> now - closedAt >= ttlNanos);
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.isEmpty();
+    }
+}
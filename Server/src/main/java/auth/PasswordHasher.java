@@ -0,0 +1,67 @@
+package auth;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/*
+ * Salted PBKDF2-HMAC-SHA256, JDK only. Hashes are self-describing so the iteration
+ * count can be raised later without invalidating stored accounts:
+ *
+ * pbkdf2-sha256$<iterations>$<base64 salt>$<base64 hash>
+ */
+public final class PasswordHasher {
+    private static final String PREFIX = "pbkdf2-sha256";
+    private static final int SALT_SIZE = 16;
+    private static final int HASH_BITS = 256;
+
+    private final int iterations;
+    private final SecureRandom random = new SecureRandom();
+
+    public PasswordHasher(int iterations) {
+        this.iterations = iterations;
+    }
+
+    public String hash(String password) {
+        byte[] salt = new byte[SALT_SIZE];
+        random.nextBytes(salt);
+        return PREFIX + "$" + iterations + "$" + Base64.getEncoder().encodeToString(salt)
+                + "$" + Base64.getEncoder().encodeToString(derive(password, salt, iterations));
+    }
+
+    public boolean verify(String password, String stored) {
+        if (!isHash(stored)) {
+            /* Account stored before hashing existed, see needsRehash */
+            return MessageDigest.isEqual(password.getBytes(StandardCharsets.UTF_8), stored.getBytes(StandardCharsets.UTF_8));
+        }
+
+        String[] parts = stored.split("\\$");
+        byte[] expected = Base64.getDecoder().decode(parts[3]);
+        byte[] actual = derive(password, Base64.getDecoder().decode(parts[2]), Integer.parseInt(parts[1]));
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    /* Plain-text legacy passwords and hashes weaker than the current setting get replaced on next login */
+    public boolean needsRehash(String stored) {
+        return !isHash(stored) || Integer.parseInt(stored.split("\\$")[1]) < iterations;
+    }
+
+    private static boolean isHash(String stored) {
+        return stored.startsWith(PREFIX + "$") && stored.split("\\$").length == 4;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("PBKDF2 unavailable", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package cluster;
+
+import network.OutboundFrame;
+import network.TlsContext;
+import packet.User;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/*
+ * Membership of this node in a cluster of servers. Every node dials every peer (outbound
+ * PeerLinks, used to send) and accepts their links on its cluster port (used to receive).
+ *
+ * Presence is replicated: each node announces who logs in and out locally, and keeps a
+ * routing table of which node holds every remote nickname, so a direct message travels
+ * to that node only. Public and room messages go to every peer, each delivers them to its
+ * own sessions and room members. Registrations are replicated too, every account record
+ * carries a version and the highest one wins (see UserManagement.applyReplicatedAccount).
+ *
+ * Only configured peers that pass the challenge (see LinkAuth) get a link accepted.
+ *
+ * Does nothing until started, a standalone server never opens a link.
+ */
+public enum Cluster {
+    INSTANCE;
+
+    private static final int ACCEPT_BACKLOG = 50;
+    /* Time a connecting peer has to answer the challenge */
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+
+    private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+    /* Remote nickname to the id of the node it is connected to, sorted for user listings */
+    private final NavigableMap<String, String> nodeByNickname = new ConcurrentSkipListMap<>();
+    /* The current inbound link of each peer, a redial supersedes a half-open one */
+    private final Map<String, Socket> inboundLinks = new ConcurrentHashMap<>();
+    private final LongAdder droppedMessages = new LongAdder();
+    private volatile LocalNode localNode;
+    private volatile ClusterSettings settings;
+
+    public synchronized void start(ClusterSettings settings, LocalNode localNode) {
+        if (this.localNode != null || !settings.isEnabled()) {
+            return;
+        }
+        this.localNode = localNode;
+        this.settings = settings;
+
+        SSLContext linkTls = settings.getKeystore() == null ? null : TlsContext.mutual(settings.getKeystore(), settings.getKeystorePassword());
+        try {
+            InetAddress bindAddress = InetAddress.getByName(settings.getBindAddress());
+            if (!bindAddress.isLoopbackAddress() && settings.getSecret() == null && linkTls == null) {
+                throw new IllegalStateException("Cluster port on " + bindAddress.getHostAddress() + " needs --cluster-secret or --cluster-keystore");
+            }
+            if (linkTls == null && !bindAddress.isLoopbackAddress()) {
+                System.out.println("Cluster links are not encrypted, account hashes cross the network in clear: use --cluster-keystore");
+            }
+
+            ServerSocket serverSocket;
+            if (linkTls == null) {
+                serverSocket = new ServerSocket(settings.getClusterPort(), ACCEPT_BACKLOG, bindAddress);
+            } else {
+                SSLServerSocket tlsSocket = (SSLServerSocket) linkTls.getServerSocketFactory().createServerSocket(settings.getClusterPort(), ACCEPT_BACKLOG, bindAddress);
+                tlsSocket.setNeedClientAuth(true);
+                serverSocket = tlsSocket;
+            }
+            Thread acceptor = new Thread(() -> acceptLinks(serverSocket), "cluster-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening cluster port " + settings.getClusterPort(), e);
+        }
+
+        settings.getPeers().forEach((peerId, address) -> {
+            SocketFactory sockets = linkTls == null ? SocketFactory.getDefault() : linkTls.getSocketFactory();
+            PeerLink link = new PeerLink(peerId, address, settings.getNodeId(), settings.getSecret(), sockets, localNode, droppedMessages);
+            links.put(peerId, link);
+            Thread dialer = new Thread(link, "cluster-link-" + peerId);
+            dialer.setDaemon(true);
+            dialer.start();
+        });
+        System.out.println("Cluster node " + settings.getNodeId() + " on " + settings.getBindAddress() + ":" + settings.getClusterPort()
+                + (linkTls == null ? "" : " (tls)") + ", peers " + settings.getPeers().keySet());
+    }
+
+    public void userOnline(String nickname) {
+        sendToAll(() -> LinkCodec.text(LinkCodec.ONLINE, nickname));
+    }
+
+    public void userOffline(String nickname) {
+        sendToAll(() -> LinkCodec.text(LinkCodec.OFFLINE, nickname));
+    }
+
+    public void accountChanged(User account) {
+        sendToAll(() -> LinkCodec.account(account));
+    }
+
+    public void forwardBroadcast(OutboundFrame frame) {
+        sendToAll(() -> LinkCodec.chat(LinkCodec.BROADCAST, frame));
+    }
+
+    public void forwardRoom(OutboundFrame frame) {
+        sendToAll(() -> LinkCodec.chat(LinkCodec.ROOM, frame));
+    }
+
+    /* Returns whether the recipient is online on another node */
+    public boolean forwardDirect(String recipient, OutboundFrame frame) {
+        Optional<PeerLink> link = Optional.ofNullable(nodeByNickname.get(recipient)).map(links::get).filter(PeerLink::isConnected);
+        link.ifPresent(peer -> peer.offer(LinkCodec.chat(LinkCodec.DIRECT, frame)));
+        return link.isPresent();
+    }
+
+    /* Nicknames online on other nodes, sorted and live: listings page through it without copying */
+    public NavigableSet<String> remoteNicknames() {
+        return nodeByNickname.navigableKeySet();
+    }
+
+    public boolean isOnlineElsewhere(String nickname) {
+        return nodeByNickname.containsKey(nickname);
+    }
+
+    public int getConnectedPeers() {
+        return (int) links.values().stream().filter(PeerLink::isConnected).count();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    /* Encodes at most once, and not at all while no peer is connected */
+    private void sendToAll(Supplier<ByteBuffer> message) {
+        ByteBuffer encoded = null;
+        for (PeerLink link : links.values()) {
+            if (link.isConnected()) {
+                if (encoded == null) {
+                    encoded = message.get();
+                }
+                link.offer(encoded);
+            }
+        }
+    }
+
+    private void acceptLinks(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> receive(socket), "cluster-inbound");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                System.out.println("Error accepting cluster link: " + e.getMessage());
+            }
+        }
+    }
+
+    /* Inbound half of a peer's link, applies its messages in the order they were sent */
+    private void receive(Socket socket) {
+        String peerId = null;
+        try (socket) {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            String nonce = LinkAuth.nonce();
+            OutputStream out = socket.getOutputStream();
+            ByteBuffer challenge = LinkCodec.text(LinkCodec.CHALLENGE, nonce);
+            out.write(challenge.array(), challenge.arrayOffset(), challenge.remaining());
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            LinkCodec.LinkMessage hello = LinkCodec.read(in);
+            if (hello.type() != LinkCodec.HELLO) {
+                throw new IOException("Cluster link did not start with HELLO");
+            }
+            if (!settings.getPeers().containsKey(hello.first())) {
+                throw new IOException("Unknown node " + hello.first());
+            }
+            if (settings.getSecret() != null && !LinkAuth.verify(settings.getSecret(), nonce, hello.first(), hello.second())) {
+                throw new IOException("Node " + hello.first() + " failed authentication");
+            }
+            LinkCodec.LinkMessage counterChallenge = LinkCodec.read(in);
+            if (counterChallenge.type() != LinkCodec.CHALLENGE) {
+                throw new IOException("Node " + hello.first() + " sent no CHALLENGE");
+            }
+            ByteBuffer reply = LinkCodec.text(LinkCodec.HELLO, settings.getNodeId(), LinkAuth.proof(settings.getSecret(), counterChallenge.first(), settings.getNodeId()));
+            out.write(reply.array(), reply.arrayOffset(), reply.remaining());
+            out.flush();
+            socket.setSoTimeout(0);
+            peerId = hello.first();
+            Socket superseded = inboundLinks.put(peerId, socket);
+            if (superseded != null) {
+                superseded.close();
+            }
+
+            while (true) {
+                LinkCodec.LinkMessage message = LinkCodec.read(in);
+                switch (message.type()) {
+                    case LinkCodec.ONLINE -> {
+                        if (nodeByNickname.put(message.first(), peerId) == null) {
+                            localNode.remotePresenceChanged(message.first(), true);
+                        }
+                    }
+                    case LinkCodec.OFFLINE -> {
+                        if (nodeByNickname.remove(message.first(), peerId)) {
+                            localNode.remotePresenceChanged(message.first(), false);
+                        }
+                    }
+                    case LinkCodec.ACCOUNT -> localNode.applyAccount(message.first(), message.second(), message.version());
+                    case LinkCodec.BROADCAST -> localNode.deliverBroadcast(message.frame());
+                    case LinkCodec.ROOM -> localNode.deliverRoom(message.frame());
+                    case LinkCodec.DIRECT -> localNode.deliverDirect(message.frame());
+                    default -> throw new IOException("Unexpected cluster message type " + message.type());
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Cluster link from " + (peerId == null ? socket.getRemoteSocketAddress() : peerId) + " closed: " + (e.getMessage() == null ? "end of stream" : e.getMessage()));
+        } catch (RuntimeException e) {
+            /* A malformed message (bad varint, truncated frame) ends the link too: the socket closes, and the peer's watcher dials again */
+            System.out.println("Cluster link from " + (peerId == null ? socket.getRemoteSocketAddress() : peerId) + " closed on a bad message: " + e);
+        } finally {
+            /* Nobody is reachable through a node we no longer hear from */
+            if (peerId != null && inboundLinks.remove(peerId, socket)) {
+                for (Map.Entry<String, String> entry : nodeByNickname.entrySet()) {
+                    if (entry.getValue().equals(peerId) && nodeByNickname.remove(entry.getKey(), peerId)) {
+                        localNode.remotePresenceChanged(entry.getKey(), false);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package cluster;
+
+import lombok.Builder;
+import lombok.Data;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Node configuration, read from --port (clients), --node-id, --cluster-port (0 runs standalone)
+ * and --peers=b@host:7002,c@host:7003. Nodes sharing one host also need their own
+ * --metrics-port, --history-dir and --store-dir.
+ *
+ * The cluster port listens on --cluster-bind (loopback unless set). Peers prove they hold
+ * --cluster-secret (or the contents of --cluster-secret-file), and with --cluster-keystore
+ * (--cluster-keystore-password) links run over mutual TLS between the holders of that keystore.
+ * A cluster port reachable from other hosts needs at least one of the two.
+ */
+@Data
+@Builder
+public class ClusterSettings {
+    @Builder.Default
+    private int port = 6543;
+    @Builder.Default
+    private String nodeId = "node-6543";
+    @Builder.Default
+    private int clusterPort = 0;
+    /* Node id to the address of its cluster port */
+    @Builder.Default
+    private Map<String, InetSocketAddress> peers = Map.of();
+    @Builder.Default
+    private String bindAddress = "127.0.0.1";
+    @Builder.Default
+    private String secret = null;
+    @Builder.Default
+    private String keystore = null;
+    @Builder.Default
+    private String keystorePassword = "changeit";
+
+    public boolean isEnabled() {
+        return clusterPort > 0;
+    }
+
+    public static ClusterSettings fromArgs(String[] args) {
+        ClusterSettingsBuilder settings = ClusterSettings.builder();
+        int port = 6543;
+        String nodeId = null;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--node-id=")) {
+                nodeId = arg.substring("--node-id=".length());
+            } else if (arg.startsWith("--cluster-port=")) {
+                settings.clusterPort(Integer.parseInt(arg.substring("--cluster-port=".length())));
+            } else if (arg.startsWith("--peers=")) {
+                settings.peers(parsePeers(arg.substring("--peers=".length())));
+            } else if (arg.startsWith("--cluster-bind=")) {
+                settings.bindAddress(arg.substring("--cluster-bind=".length()));
+            } else if (arg.startsWith("--cluster-secret=")) {
+                settings.secret(arg.substring("--cluster-secret=".length()));
+            } else if (arg.startsWith("--cluster-secret-file=")) {
+                settings.secret(readSecret(Path.of(arg.substring("--cluster-secret-file=".length()))));
+            } else if (arg.startsWith("--cluster-keystore=")) {
+                settings.keystore(arg.substring("--cluster-keystore=".length()));
+            } else if (arg.startsWith("--cluster-keystore-password=")) {
+                settings.keystorePassword(arg.substring("--cluster-keystore-password=".length()));
+            }
+        }
+        return settings.port(port).nodeId(nodeId != null ? nodeId : "node-" + port).build();
+    }
+
+    private static String readSecret(Path file) {
+        try {
+            return Files.readString(file).strip();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error reading cluster secret " + file, e);
+        }
+    }
+
+    private static Map<String, InetSocketAddress> parsePeers(String list) {
+        Map<String, InetSocketAddress> peers = new LinkedHashMap<>();
+        for (String peer : list.split(",")) {
+            if (peer.isBlank()) {
+                continue;
+            }
+            int at = peer.indexOf('@');
+            int colon = peer.lastIndexOf(':');
+            if (at <= 0 || colon < at) {
+                throw new IllegalArgumentException("Peer must look like id@host:port, got " + peer);
+            }
+            peers.put(peer.substring(0, at), InetSocketAddress.createUnresolved(peer.substring(at + 1, colon),
+                    Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return peers;
+    }
+}
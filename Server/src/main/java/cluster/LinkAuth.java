@@ -0,0 +1,51 @@
+package cluster;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/*
+ * Challenge-response between nodes sharing a secret, in both directions: each side sends a fresh
+ * nonce and the other answers with HMAC-SHA256(secret, nonce, its node id) in its HELLO. The secret
+ * never crosses the link, a recorded HELLO is worthless against the next nonce, and a node only
+ * sends its state once the node it dialled has proven itself too.
+ */
+final class LinkAuth {
+    private static final int NONCE_SIZE = 32;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private LinkAuth() {
+    }
+
+    static String nonce() {
+        byte[] nonce = new byte[NONCE_SIZE];
+        RANDOM.nextBytes(nonce);
+        return Base64.getEncoder().encodeToString(nonce);
+    }
+
+    /* Empty without a secret, the accepting node then has nothing to check it against */
+    static String proof(String secret, String nonce, String nodeId) {
+        if (secret == null) {
+            return "";
+        }
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            mac.update(nonce.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return Base64.getEncoder().encodeToString(mac.doFinal(nodeId.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HMAC-SHA256 unavailable", e);
+        }
+    }
+
+    /* Constant time, so the comparison leaks nothing about the expected proof */
+    static boolean verify(String secret, String nonce, String nodeId, String proof) {
+        return MessageDigest.isEqual(proof(secret, nonce, nodeId).getBytes(StandardCharsets.UTF_8), proof.getBytes(StandardCharsets.UTF_8));
+    }
+}
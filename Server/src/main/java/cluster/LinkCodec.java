@@ -0,0 +1,111 @@
+package cluster;
+
+import network.OutboundFrame;
+import packet.User;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Wire format between nodes: [int length][byte type][body], length covering type and body.
+ * Strings are [short length][UTF-8 bytes]. Chat messages carry the client frame exactly as
+ * PacketCodec encoded it, so a fan-out is encoded once on the sending node and never again.
+ *
+ * A link opens with a mutual challenge (see LinkAuth): the accepting node sends CHALLENGE [nonce],
+ * the dialling node answers HELLO [node id][proof] and its own CHALLENGE, the accepting node
+ * answers that with its HELLO. ACCOUNT is [nickname][password hash][long version].
+ *
+ * Chat bodies are [byte sequence slot][frame]: frames of a node keeping history are forwarded
+ * with their sequence slot still blank, the receiving node stamps its own in it.
+ */
+final class LinkCodec {
+    static final byte HELLO = 0;
+    static final byte ONLINE = 1;
+    static final byte OFFLINE = 2;
+    static final byte ACCOUNT = 3;
+    static final byte BROADCAST = 4;
+    static final byte ROOM = 5;
+    static final byte DIRECT = 6;
+    static final byte CHALLENGE = 7;
+
+    private static final int MAX_MESSAGE_SIZE = 2 << 20;
+
+    /* A decoded message, text fields and frame are null where the type has none */
+    record LinkMessage(byte type, String first, String second, long version, OutboundFrame frame) {
+    }
+
+    private LinkCodec() {
+    }
+
+    static ByteBuffer text(byte type, String first) {
+        return text(type, first, null);
+    }
+
+    static ByteBuffer text(byte type, String first, String second) {
+        byte[] firstBytes = first.getBytes(StandardCharsets.UTF_8);
+        byte[] secondBytes = second == null ? null : second.getBytes(StandardCharsets.UTF_8);
+        int bodySize = 2 + firstBytes.length + (secondBytes == null ? 0 : 2 + secondBytes.length);
+
+        ByteBuffer message = ByteBuffer.allocate(4 + 1 + bodySize);
+        message.putInt(1 + bodySize).put(type);
+        message.putShort((short) firstBytes.length).put(firstBytes);
+        if (secondBytes != null) {
+            message.putShort((short) secondBytes.length).put(secondBytes);
+        }
+        return message.flip();
+    }
+
+    /* Hash and version are read together, a concurrent change cannot pair one with the other's */
+    static ByteBuffer account(User account) {
+        String nickname;
+        String passwordHash;
+        long version;
+        synchronized (account) {
+            nickname = account.getNickname();
+            passwordHash = account.getPassword();
+            version = account.getVersion();
+        }
+        ByteBuffer text = text(ACCOUNT, nickname, passwordHash);
+        ByteBuffer message = ByteBuffer.allocate(text.remaining() + Long.BYTES);
+        message.putInt(text.getInt() + Long.BYTES).put(text).putLong(version);
+        return message.flip();
+    }
+
+    static ByteBuffer chat(byte type, OutboundFrame frame) {
+        ByteBuffer encoded = frame.buffer();
+        ByteBuffer message = ByteBuffer.allocate(4 + 1 + 1 + encoded.remaining());
+        message.putInt(1 + 1 + encoded.remaining()).put(type).put((byte) (frame.hasSequenceSlot() ? 1 : 0)).put(encoded);
+        return message.flip();
+    }
+
+    static LinkMessage read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_MESSAGE_SIZE) {
+            throw new IOException("Invalid cluster message length " + length);
+        }
+        byte type = in.readByte();
+        return switch (type) {
+            case CHALLENGE, ONLINE, OFFLINE -> new LinkMessage(type, readString(in), null, 0, null);
+            case HELLO -> new LinkMessage(type, readString(in), readString(in), 0, null);
+            case ACCOUNT -> new LinkMessage(type, readString(in), readString(in), in.readLong(), null);
+            case BROADCAST, ROOM, DIRECT -> {
+                if (length < 2) {
+                    throw new IOException("Empty cluster chat message");
+                }
+                boolean sequenceSlot = in.readByte() != 0;
+                byte[] frame = new byte[length - 2];
+                in.readFully(frame);
+                yield new LinkMessage(type, null, null, 0, OutboundFrame.ofEncoded(ByteBuffer.wrap(frame), sequenceSlot));
+            }
+            default -> throw new IOException("Unknown cluster message type " + type);
+        };
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,24 @@
+package cluster;
+
+import network.OutboundFrame;
+import packet.User;
+
+import java.util.Collection;
+
+/* What the cluster needs from this node: its state to announce and where to deliver what peers forward */
+public interface LocalNode {
+    Collection<String> onlineNicknames();
+
+    Collection<User> accounts();
+
+    void applyAccount(String nickname, String passwordHash, long version);
+
+    void deliverBroadcast(OutboundFrame frame);
+
+    void deliverRoom(OutboundFrame frame);
+
+    void deliverDirect(OutboundFrame frame);
+
+    /* A nickname came online on a peer, or went offline there */
+    void remotePresenceChanged(String nickname, boolean online);
+}
@@ -0,0 +1,157 @@
+package cluster;
+
+import packet.User;
+
+import javax.net.SocketFactory;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Outbound half of the link to one peer, owned by a single thread that dials, redials
+ * and is the only writer. Every (re)connection answers the peer's challenge, sends this
+ * node's presence and accounts, then streams whatever was queued meanwhile, coalesced
+ * into few writes. Nothing is queued while the peer is unreachable, it gets the full
+ * state on connect. The peer writes nothing after its challenge, a watcher reading the
+ * link only notices when it goes away, so a restarted peer is redialled at once rather
+ * than on the next failed write.
+ */
+final class PeerLink implements Runnable {
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final long REDIAL_MILLIS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    /* Queued by the watcher to wake the writer when the peer closed the link */
+    private static final ByteBuffer CLOSED = ByteBuffer.allocate(0);
+
+    private final String peerId;
+    private final InetSocketAddress address;
+    private final String localNodeId;
+    private final String secret;
+    private final SocketFactory sockets;
+    private final LocalNode localNode;
+    private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final LongAdder dropped;
+    private volatile boolean connected;
+
+    PeerLink(String peerId, InetSocketAddress address, String localNodeId, String secret, SocketFactory sockets, LocalNode localNode, LongAdder dropped) {
+        this.peerId = peerId;
+        this.address = address;
+        this.localNodeId = localNodeId;
+        this.secret = secret;
+        this.sockets = sockets;
+        this.localNode = localNode;
+        this.dropped = dropped;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    /* Messages are shared between links, each write goes through its own view */
+    void offer(ByteBuffer message) {
+        if (connected && !queue.offer(message.duplicate())) {
+            dropped.increment();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try (Socket socket = sockets.createSocket()) {
+                socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+                socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                authenticate(new DataInputStream(socket.getInputStream()), out);
+                socket.setSoTimeout(0);
+
+                queue.clear();
+                connected = true;
+                Thread.ofVirtual().name("cluster-watch-" + peerId).start(() -> watch(socket));
+                sendState(out);
+                System.out.println("Cluster link to " + peerId + " up");
+
+                while (true) {
+                    write(out, queue.take());
+                    ByteBuffer next;
+                    while ((next = queue.poll()) != null) {
+                        write(out, next);
+                    }
+                    out.flush();
+                }
+            } catch (IOException e) {
+                if (connected) {
+                    System.out.println("Cluster link to " + peerId + " down: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+            }
+
+            try {
+                TimeUnit.MILLISECONDS.sleep(REDIAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void watch(Socket socket) {
+        try {
+            while (socket.getInputStream().read() >= 0) {
+                // Nothing is expected, keep waiting for the end of the stream
+            }
+        } catch (IOException e) {
+            // Closed from either side, the writer finds out as well
+        }
+        queue.offer(CLOSED);
+    }
+
+    /* Unbuffered reads, nothing past the peer's HELLO may be read away from the watcher */
+    private void authenticate(DataInputStream in, OutputStream out) throws IOException {
+        LinkCodec.LinkMessage challenge = LinkCodec.read(in);
+        if (challenge.type() != LinkCodec.CHALLENGE) {
+            throw new IOException("Cluster link did not start with CHALLENGE");
+        }
+        String nonce = LinkAuth.nonce();
+        write(out, LinkCodec.text(LinkCodec.HELLO, localNodeId, LinkAuth.proof(secret, challenge.first(), localNodeId)));
+        write(out, LinkCodec.text(LinkCodec.CHALLENGE, nonce));
+        out.flush();
+
+        LinkCodec.LinkMessage hello = LinkCodec.read(in);
+        if (hello.type() != LinkCodec.HELLO || !hello.first().equals(peerId)) {
+            throw new IOException("Expected HELLO from " + peerId);
+        }
+        if (secret != null && !LinkAuth.verify(secret, nonce, peerId, hello.second())) {
+            throw new IOException("Node " + peerId + " failed authentication");
+        }
+    }
+
+    private void sendState(OutputStream out) throws IOException {
+        for (String nickname : localNode.onlineNicknames()) {
+            write(out, LinkCodec.text(LinkCodec.ONLINE, nickname));
+        }
+        for (User account : localNode.accounts()) {
+            write(out, LinkCodec.account(account));
+        }
+        out.flush();
+    }
+
+    private static void write(OutputStream out, ByteBuffer message) throws IOException {
+        if (message == CLOSED) {
+            throw new IOException("Peer closed the link");
+        }
+        out.write(message.array(), message.arrayOffset() + message.position(), message.remaining());
+    }
+}
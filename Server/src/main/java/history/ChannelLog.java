@@ -0,0 +1,151 @@
+package history;
+
+import network.OutboundFrame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/*
+ * Append-only log of one channel (the public chat or a room), split in mapped segments.
+ * Appends only copy the already encoded frame into the mapping under the channel lock,
+ * disk writes are left to the flusher, so fan-out never waits on I/O.
+ * Every use retains the log, MessageHistory only closes one that nobody retains.
+ */
+final class ChannelLog {
+    private final Path directory;
+    private final HistorySettings settings;
+    private final List<LogSegment> segments = new ArrayList<>();
+    private long lastSequence;
+    /* Uses in progress, -1 once closed */
+    private final AtomicInteger users = new AtomicInteger();
+    private volatile long lastUsed = System.nanoTime();
+
+    private ChannelLog(Path directory, HistorySettings settings) {
+        this.directory = directory;
+        this.settings = settings;
+    }
+
+    static ChannelLog open(Path directory, HistorySettings settings) throws IOException {
+        Files.createDirectories(directory);
+        ChannelLog log = new ChannelLog(directory, settings);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.filter(path -> path.toString().endsWith(".log")).sorted().toList()) {
+                log.segments.add(LogSegment.recover(file, settings.getSegmentSize()));
+            }
+        }
+        if (log.segments.isEmpty()) {
+            log.segments.add(LogSegment.create(directory, 1, settings.getSegmentSize()));
+        }
+        log.lastSequence = log.active().lastSequence();
+        return log;
+    }
+
+    /* False once the log is closed, it is then opened again */
+    boolean retain() {
+        while (true) {
+            int current = users.get();
+            if (current < 0) {
+                return false;
+            }
+            if (users.compareAndSet(current, current + 1)) {
+                lastUsed = System.nanoTime();
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        users.decrementAndGet();
+    }
+
+    boolean inUse() {
+        return users.get() != 0;
+    }
+
+    long lastUsed() {
+        return lastUsed;
+    }
+
+    /* Writes back and unmaps every segment, unless the log is in use */
+    boolean close() {
+        if (!users.compareAndSet(0, -1)) {
+            return false;
+        }
+        synchronized (this) {
+            segments.forEach(LogSegment::close);
+        }
+        return true;
+    }
+
+    /* Stamps the frame with the next sequence number, then stores its encoding */
+    synchronized void append(OutboundFrame frame) throws IOException {
+        long sequence = lastSequence + 1;
+        frame.stampSequence(sequence);
+        ByteBuffer bytes = frame.buffer();
+
+        long timestamp = System.currentTimeMillis();
+        if (!active().append(sequence, timestamp, bytes)) {
+            rollOver(sequence);
+            if (!active().append(sequence, timestamp, bytes)) {
+                throw new IOException("Frame larger than a history segment: " + bytes.remaining());
+            }
+        }
+        lastSequence = sequence;
+    }
+
+    synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    /* Sends the records after the given sequence, at most limit of them, and returns the last one sent */
+    long replay(long afterSequence, int limit, Consumer<OutboundFrame> consumer) {
+        List<LogSegment> snapshot;
+        int activeEnd;
+        synchronized (this) {
+            snapshot = List.copyOf(segments);
+            activeEnd = active().end();
+        }
+
+        /* Skip whole segments that end before the requested sequence */
+        int first = 0;
+        while (first + 1 < snapshot.size() && snapshot.get(first + 1).baseSequence() <= afterSequence + 1) {
+            first++;
+        }
+
+        Replay replay = new Replay(afterSequence, limit, consumer);
+        for (int i = first; i < snapshot.size() && replay.wantsMore(); i++) {
+            LogSegment segment = snapshot.get(i);
+            segment.replay(replay, i == snapshot.size() - 1 ? activeEnd : segment.end());
+        }
+        return replay.lastSequence();
+    }
+
+    void force() {
+        LogSegment segment;
+        synchronized (this) {
+            segment = active();
+        }
+        segment.force();
+    }
+
+    private void rollOver(long nextSequence) throws IOException {
+        active().force();
+        segments.add(LogSegment.create(directory, nextSequence, settings.getSegmentSize()));
+
+        while (segments.size() > Math.max(1, settings.getMaxSegments())) {
+            segments.remove(0).delete();
+        }
+    }
+
+    private LogSegment active() {
+        return segments.get(segments.size() - 1);
+    }
+}
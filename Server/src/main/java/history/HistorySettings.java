@@ -0,0 +1,52 @@
+package history;
+
+import lombok.Builder;
+import lombok.Data;
+
+/*
+ * Message history configuration, read from --history-dir, --history-segment-mb,
+ * --history-segments, --history-flush-ms, --history-replay-limit, --history-open-channels and --no-history
+ */
+@Data
+@Builder
+public class HistorySettings {
+    @Builder.Default
+    private boolean enabled = true;
+    @Builder.Default
+    private String directory = "history";
+    @Builder.Default
+    private int segmentSize = 4 << 20;
+    /* Retention, oldest segments of a channel are deleted past this count */
+    @Builder.Default
+    private int maxSegments = 8;
+    @Builder.Default
+    private long flushIntervalMillis = 1000;
+    /* Upper bound of messages sent back for one HISTORY request, page with the returned sequence */
+    @Builder.Default
+    private int replayLimit = 500;
+    /* Channel logs kept open (mapped, with their files), the least recently used idle ones are closed past it */
+    @Builder.Default
+    private int maxOpenChannels = 256;
+
+    public static HistorySettings fromArgs(String[] args) {
+        HistorySettingsBuilder settings = HistorySettings.builder();
+        for (String arg : args) {
+            if (arg.equals("--no-history")) {
+                settings.enabled(false);
+            } else if (arg.startsWith("--history-dir=")) {
+                settings.directory(arg.substring("--history-dir=".length()));
+            } else if (arg.startsWith("--history-segment-mb=")) {
+                settings.segmentSize(Integer.parseInt(arg.substring("--history-segment-mb=".length())) << 20);
+            } else if (arg.startsWith("--history-segments=")) {
+                settings.maxSegments(Integer.parseInt(arg.substring("--history-segments=".length())));
+            } else if (arg.startsWith("--history-flush-ms=")) {
+                settings.flushIntervalMillis(Long.parseLong(arg.substring("--history-flush-ms=".length())));
+            } else if (arg.startsWith("--history-replay-limit=")) {
+                settings.replayLimit(Integer.parseInt(arg.substring("--history-replay-limit=".length())));
+            } else if (arg.startsWith("--history-open-channels=")) {
+                settings.maxOpenChannels(Integer.parseInt(arg.substring("--history-open-channels=".length())));
+            }
+        }
+        return settings.build();
+    }
+}
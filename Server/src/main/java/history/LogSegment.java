@@ -0,0 +1,165 @@
+package history;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * One fixed-size, memory-mapped file of a channel log, named after the first sequence it holds.
+ *
+ * Record: [int frame length][long sequence][long timestamp millis][encoded frame]
+ *
+ * The frame is stored exactly as it goes on the wire, so replay hands out copies of
+ * the records without decoding anything. A zero length marks the end of the data,
+ * the mapped file being zero filled beyond it.
+ */
+final class LogSegment {
+    static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES;
+
+    /* Unmaps a buffer now instead of once it is collected, absent where the JDK does not allow it */
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field instance = unsafeClass.getDeclaredField("theUnsafe");
+            instance.setAccessible(true);
+            unsafe = instance.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("History segments are unmapped when collected: " + e);
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final Path path;
+    private final long baseSequence;
+    private final FileChannel file;
+    private final MappedByteBuffer buffer;
+    private volatile int end;
+    private int forced;
+    private long lastSequence;
+
+    private LogSegment(Path path, long baseSequence, int size) throws IOException {
+        this.path = path;
+        this.baseSequence = baseSequence;
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        this.lastSequence = baseSequence - 1;
+    }
+
+    static LogSegment create(Path directory, long baseSequence, int size) throws IOException {
+        return new LogSegment(directory.resolve(fileName(baseSequence)), baseSequence, size);
+    }
+
+    /* Maps an existing segment and finds where its data ends */
+    static LogSegment recover(Path path, int size) throws IOException {
+        String name = path.getFileName().toString();
+        LogSegment segment = new LogSegment(path, Long.parseLong(name.substring(0, name.indexOf('.'))), size);
+
+        int position = 0;
+        while (position + HEADER_SIZE <= size) {
+            int length = segment.buffer.getInt(position);
+            if (length <= 0 || position + HEADER_SIZE + length > size) {
+                break;
+            }
+            segment.lastSequence = segment.buffer.getLong(position + Integer.BYTES);
+            position += HEADER_SIZE + length;
+        }
+        segment.end = position;
+        segment.forced = position;
+        return segment;
+    }
+
+    static String fileName(long baseSequence) {
+        return "%020d.log".formatted(baseSequence);
+    }
+
+    long baseSequence() {
+        return baseSequence;
+    }
+
+    long lastSequence() {
+        return lastSequence;
+    }
+
+    /* Channel lock held. Returns false when the record does not fit and the log has to roll over */
+    boolean append(long sequence, long timestamp, ByteBuffer frame) {
+        int position = end;
+        int length = frame.remaining();
+        if (position + HEADER_SIZE + length > buffer.capacity()) {
+            return false;
+        }
+
+        buffer.putLong(position + Integer.BYTES, sequence);
+        buffer.putLong(position + Integer.BYTES + Long.BYTES, timestamp);
+        buffer.put(position + HEADER_SIZE, frame, frame.position(), length);
+        buffer.putInt(position, length); // Last, a record only counts once its length is set
+        lastSequence = sequence;
+        end = position + HEADER_SIZE + length;
+        return true;
+    }
+
+    /* Writes the dirty range back to disk, called by the flusher and on rollover */
+    synchronized void force() {
+        int limit = end;
+        if (limit > forced) {
+            buffer.force(forced, limit - forced);
+            forced = limit;
+        }
+    }
+
+    /* Feeds the records up to the end position captured under the channel lock into the replay */
+    void replay(Replay replay, int limit) {
+        int position = 0;
+        while (position < limit && replay.wantsMore()) {
+            int length = buffer.getInt(position);
+            long sequence = buffer.getLong(position + Integer.BYTES);
+            if (sequence > replay.afterSequence()) {
+                replay.accept(sequence, buffer.slice(position + HEADER_SIZE, length).asReadOnlyBuffer());
+            }
+            position += HEADER_SIZE + length;
+        }
+    }
+
+    int end() {
+        return end;
+    }
+
+    /* Only once nothing reads the mapping anymore: the log is closed and replays hand out copies */
+    void close() {
+        force();
+        try {
+            file.close();
+        } catch (IOException e) {
+            System.out.println("Error closing history segment " + path);
+        }
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("Error unmapping history segment " + path);
+            }
+        }
+    }
+
+    void delete() {
+        try {
+            /* A replay may still walk the mapping, it goes away once collected */
+            file.close();
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            System.out.println("Error deleting history segment " + path);
+        }
+    }
+}
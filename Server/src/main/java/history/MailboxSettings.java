@@ -0,0 +1,43 @@
+package history;
+
+import lombok.Builder;
+import lombok.Data;
+
+/*
+ * Offline direct message storage, read from --mailbox-dir, --mailbox-max-messages,
+ * --mailbox-max-kb, --mailbox-ttl-hours and --no-mailbox
+ */
+@Data
+@Builder
+public class MailboxSettings {
+    @Builder.Default
+    private boolean enabled = true;
+    @Builder.Default
+    private String directory = "mailboxes";
+    /* Below the outbound queue capacity, so the burst on login fits in it */
+    @Builder.Default
+    private int maxMessages = 500;
+    @Builder.Default
+    private int maxBytes = 512 * 1024;
+    /* Messages older than this are skipped on delivery, inboxes untouched for as long are deleted */
+    @Builder.Default
+    private long ttlHours = 7 * 24;
+
+    public static MailboxSettings fromArgs(String[] args) {
+        MailboxSettingsBuilder settings = MailboxSettings.builder();
+        for (String arg : args) {
+            if (arg.equals("--no-mailbox")) {
+                settings.enabled(false);
+            } else if (arg.startsWith("--mailbox-dir=")) {
+                settings.directory(arg.substring("--mailbox-dir=".length()));
+            } else if (arg.startsWith("--mailbox-max-messages=")) {
+                settings.maxMessages(Integer.parseInt(arg.substring("--mailbox-max-messages=".length())));
+            } else if (arg.startsWith("--mailbox-max-kb=")) {
+                settings.maxBytes(Integer.parseInt(arg.substring("--mailbox-max-kb=".length())) * 1024);
+            } else if (arg.startsWith("--mailbox-ttl-hours=")) {
+                settings.ttlHours(Long.parseLong(arg.substring("--mailbox-ttl-hours=".length())));
+            }
+        }
+        return settings.build();
+    }
+}
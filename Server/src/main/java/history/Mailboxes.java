@@ -0,0 +1,411 @@
+package history;
+
+import network.OutboundFrame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/*
+ * Direct messages for users that are offline, kept until their next login. One small file per recipient:
+ *
+ * Inbox:  [int message count][int end of the last record][record]...
+ * Record: [int frame length][long expiry millis][encoded frame]
+ *
+ * Frames are stored exactly as they go on the wire, and delivery maps the inbox and hands out
+ * slices of it, so a backlog streams to the connection without ever being read into the heap.
+ * The header is written after the records, records torn by a crash are not counted and the next
+ * ones overwrite them. Both are forced to disk before a deposit completes: nobody else holds the message.
+ * Deposits are group committed by a writer thread, as the user store does: one write and two fsyncs
+ * per inbox for everything deposited while the previous batch was written, off the recipient's shard.
+ *
+ * Delivered records leave the inbox only once their frames were written to the socket, by
+ * rewriting it without that prefix (or deleting it). Until then a new login delivers them again.
+ *
+ * Does no locking: every other operation on one recipient runs on its owner (UserManagement's shard
+ * of the recipient), in order, and waits there for the recipient's deposits still being written.
+ * Receipts, the writer and the sweeper hand their work to it. Does nothing until opened.
+ */
+public enum Mailboxes {
+    INSTANCE;
+
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    private static final String INBOX_SUFFIX = ".box";
+    private static final long SWEEP_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int MAX_BATCH = 4096;
+
+    private volatile MailboxSettings settings;
+    /* Runs a task on the recipient's owner, without blocking the caller */
+    private volatile BiConsumer<String, Runnable> owner;
+    /* Deliveries whose frames are not all written yet, by recipient */
+    private final Map<String, Delivery> deliveries = new ConcurrentHashMap<>();
+    private final BlockingQueue<PendingDeposit> pending = new LinkedBlockingQueue<>();
+    /* Recipients with deposits not on disk yet, and the owner tasks waiting for them */
+    private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+
+    /* Holds a reference to the frame until it is written */
+    private record PendingDeposit(String recipient, OutboundFrame frame, CompletableFuture<Boolean> kept) {
+    }
+
+    private static final class InFlight {
+        private int deposits;
+        private final List<Runnable> waiting = new ArrayList<>();
+    }
+
+    /*
+     * What a writer has written of one drain, records up to an offset of the inbox as it was then mapped.
+     * Only advances frame by frame: past a frame the queue dropped, nothing counts as delivered.
+     */
+    private static final class Delivery {
+        private int writtenFrames;
+        private int writtenEnd = HEADER_SIZE;
+        private int writtenCount;
+
+        /* True when every frame up to this one was written */
+        synchronized boolean written(int frame, int end, int count) {
+            if (frame != writtenFrames) {
+                return false;
+            }
+            writtenFrames++;
+            writtenEnd = end;
+            writtenCount = count;
+            return true;
+        }
+
+        synchronized int end() {
+            return writtenEnd;
+        }
+
+        synchronized int count() {
+            return writtenCount;
+        }
+    }
+
+    public synchronized void open(MailboxSettings settings, BiConsumer<String, Runnable> owner) {
+        if (this.settings != null || !settings.isEnabled()) {
+            return;
+        }
+        Path directory = Path.of(settings.getDirectory());
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new RuntimeException("Error creating mailbox directory " + directory, e);
+        }
+        this.owner = owner;
+        this.settings = settings;
+
+        Thread writer = new Thread(this::writeLoop, "mailbox-write");
+        writer.setDaemon(true);
+        writer.start();
+        if (settings.getTtlHours() > 0) {
+            Thread sweeper = new Thread(this::sweepPeriodically, "mailbox-sweep");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        }
+        System.out.println("Mailboxes in " + directory.toAbsolutePath());
+    }
+
+    /*
+     * Owner only. Completes on the writer thread, with false when the message could not be kept:
+     * mailboxes are off, the inbox is full or the write failed
+     */
+    public CompletableFuture<Boolean> deposit(String recipient, OutboundFrame frame) {
+        if (this.settings == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+
+        CompletableFuture<Boolean> kept = new CompletableFuture<>();
+        inFlight.computeIfAbsent(recipient, name -> new InFlight()).deposits++;
+        frame.retain();
+        pending.add(new PendingDeposit(recipient, frame, kept));
+        return kept;
+    }
+
+    /* Owner only: runs the task now, or on the owner once the recipient's deposits are written */
+    private void afterDeposits(String recipient, Runnable task) {
+        boolean[] waiting = {false};
+        inFlight.computeIfPresent(recipient, (name, writes) -> {
+            writes.waiting.add(task);
+            waiting[0] = true;
+            return writes;
+        });
+        if (!waiting[0]) {
+            task.run();
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingDeposit> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+
+            Map<String, List<PendingDeposit>> byRecipient = new LinkedHashMap<>();
+            for (PendingDeposit deposit : batch) {
+                byRecipient.computeIfAbsent(deposit.recipient(), recipient -> new ArrayList<>()).add(deposit);
+            }
+            byRecipient.forEach(this::write);
+            batch.clear();
+        }
+    }
+
+    /* Writer thread. Appends the recipient's deposits that fit, then hands the owner back what waited for them */
+    private void write(String recipient, List<PendingDeposit> deposits) {
+        MailboxSettings current = this.settings;
+        List<Boolean> kept = new ArrayList<>(deposits.size());
+        try (FileChannel inbox = FileChannel.open(inboxPath(current, recipient), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            int count = 0;
+            int end = HEADER_SIZE;
+            if (inbox.read(header, 0) == HEADER_SIZE) {
+                count = header.getInt(0);
+                end = header.getInt(Integer.BYTES);
+            }
+
+            long expiresAt = current.getTtlHours() > 0 ? System.currentTimeMillis() + TimeUnit.HOURS.toMillis(current.getTtlHours()) : Long.MAX_VALUE;
+            for (PendingDeposit deposit : deposits) {
+                ByteBuffer bytes = deposit.frame().buffer();
+                int recordEnd = end + RECORD_HEADER_SIZE + bytes.remaining();
+                if (count >= current.getMaxMessages() || recordEnd > current.getMaxBytes()) {
+                    kept.add(false);
+                    continue;
+                }
+
+                ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE).putInt(0, bytes.remaining()).putLong(Integer.BYTES, expiresAt);
+                inbox.position(end);
+                ByteBuffer[] record = {recordHeader, bytes};
+                while (recordHeader.hasRemaining() || bytes.hasRemaining()) {
+                    inbox.write(record);
+                }
+                count++;
+                end = recordEnd;
+                kept.add(true);
+            }
+            inbox.force(false);
+
+            header.clear().putInt(0, count).putInt(Integer.BYTES, end);
+            while (header.hasRemaining()) {
+                inbox.write(header, header.position());
+            }
+            inbox.force(false);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error keeping messages for " + recipient + ": " + e.getMessage());
+            kept.clear();
+            deposits.forEach(deposit -> kept.add(false));
+        }
+
+        deposits.forEach(deposit -> deposit.frame().release());
+
+        InFlight[] written = {null};
+        inFlight.computeIfPresent(recipient, (name, writes) -> {
+            writes.deposits -= deposits.size();
+            if (writes.deposits > 0) {
+                return writes;
+            }
+            written[0] = writes;
+            return null;
+        });
+        if (written[0] != null) {
+            /* Checked again on the owner, it may have deposited more meanwhile */
+            written[0].waiting.forEach(task -> owner.accept(recipient, () -> afterDeposits(recipient, task)));
+        }
+        for (int i = 0; i < deposits.size(); i++) {
+            deposits.get(i).kept().complete(kept.get(i));
+        }
+    }
+
+    /*
+     * Owner only. Hands the unexpired messages to the consumer in the order they came, each frame with a
+     * receipt for its writer; the inbox loses them once the last one is written. Deposits still being
+     * written are waited for, they come with the rest.
+     */
+    public void drain(String recipient, Consumer<OutboundFrame> consumer) {
+        if (this.settings != null) {
+            afterDeposits(recipient, () -> drainWritten(recipient, consumer));
+        }
+    }
+
+    private void drainWritten(String recipient, Consumer<OutboundFrame> consumer) {
+        MailboxSettings current = this.settings;
+        Path path = inboxPath(current, recipient);
+        /* What an earlier session was written before it ended is not delivered twice */
+        Delivery previous = deliveries.remove(recipient);
+        if (previous != null) {
+            removeDelivered(path, recipient, previous.end(), previous.count());
+        }
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        /* Handed out after the scan, so the last frame's receipt is known to be the last */
+        Delivery delivery = new Delivery();
+        List<OutboundFrame> frames = new ArrayList<>();
+        int scanned = 0;
+        int scannedEnd = HEADER_SIZE;
+        try (FileChannel inbox = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (inbox.size() >= HEADER_SIZE) {
+                /* The slices handed out keep the mapping alive once the file is replaced */
+                MappedByteBuffer mapped = inbox.map(FileChannel.MapMode.READ_ONLY, 0, inbox.size());
+                int count = mapped.getInt(0);
+                int end = Math.min(mapped.getInt(Integer.BYTES), mapped.capacity());
+                long now = System.currentTimeMillis();
+
+                int position = HEADER_SIZE;
+                for (int i = 0; i < count && position + RECORD_HEADER_SIZE <= end; i++) {
+                    int length = mapped.getInt(position);
+                    if (length <= 0 || position + RECORD_HEADER_SIZE + length > end) {
+                        break;
+                    }
+                    boolean expired = mapped.getLong(position + Integer.BYTES) <= now;
+                    position += RECORD_HEADER_SIZE + length;
+                    scanned = i + 1;
+                    scannedEnd = position;
+                    if (!expired) {
+                        int frame = frames.size();
+                        int recordEnd = position;
+                        int records = scanned;
+                        frames.add(OutboundFrame.ofEncoded(mapped.slice(recordEnd - length, length).asReadOnlyBuffer())
+                                .onWritten(() -> delivery.written(frame, recordEnd, records)));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error delivering the mailbox of " + recipient + ": " + e.getMessage());
+            return;
+        }
+
+        if (frames.isEmpty()) {
+            removeDelivered(path, recipient, scannedEnd, scanned);
+            return;
+        }
+        /* Expired records behind the last message go with it */
+        int last = frames.size() - 1;
+        int lastEnd = scannedEnd;
+        int lastCount = scanned;
+        frames.get(last).onWritten(() -> {
+            if (delivery.written(last, lastEnd, lastCount)) {
+                owner.accept(recipient, () -> afterDeposits(recipient, () -> acknowledge(recipient, delivery)));
+            }
+        });
+        deliveries.put(recipient, delivery);
+        frames.forEach(consumer);
+    }
+
+    /* Owner only, once every frame of the delivery was written: unless a later drain took it over */
+    private void acknowledge(String recipient, Delivery delivery) {
+        MailboxSettings current = this.settings;
+        if (deliveries.remove(recipient, delivery)) {
+            removeDelivered(inboxPath(current, recipient), recipient, delivery.end(), delivery.count());
+        }
+    }
+
+    /*
+     * Owner only. Drops the first records of the inbox, up to the end offset: the file is deleted when
+     * nothing was deposited after them, otherwise the rest is copied to a new one that replaces it.
+     */
+    private void removeDelivered(Path path, String recipient, int deliveredEnd, int deliveredCount) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (FileChannel inbox = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            /* Without a whole header (a first deposit torn by a crash) it holds nothing either */
+            if (inbox.read(header, 0) < HEADER_SIZE) {
+                Files.delete(path);
+                return;
+            }
+            int count = header.getInt(0);
+            int end = header.getInt(Integer.BYTES);
+            if (count <= deliveredCount || end <= deliveredEnd) {
+                Files.delete(path);
+                return;
+            }
+            if (deliveredCount == 0) {
+                return;
+            }
+
+            ByteBuffer rest = ByteBuffer.allocate(HEADER_SIZE + end - deliveredEnd);
+            rest.putInt(count - deliveredCount).putInt(rest.capacity());
+            for (long position = deliveredEnd; rest.hasRemaining(); ) {
+                int read = inbox.read(rest, position);
+                if (read < 0) {
+                    throw new IOException("Inbox shorter than its header");
+                }
+                position += read;
+            }
+            Path next = path.resolveSibling(path.getFileName() + ".next");
+            try (FileChannel replacement = FileChannel.open(next, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                rest.flip();
+                while (rest.hasRemaining()) {
+                    replacement.write(rest);
+                }
+                replacement.force(false);
+            }
+            Files.move(next, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error removing delivered messages of " + recipient + ": " + e.getMessage());
+        }
+    }
+
+    /* Inboxes nobody wrote to for a whole TTL hold nothing but expired messages */
+    private void sweepPeriodically() {
+        long ttlMillis = TimeUnit.HOURS.toMillis(settings.getTtlHours());
+        while (true) {
+            try {
+                Thread.sleep(Math.min(ttlMillis, SWEEP_INTERVAL_MILLIS));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long expiredBefore = System.currentTimeMillis() - ttlMillis;
+            try (Stream<Path> inboxes = Files.list(Path.of(settings.getDirectory()))) {
+                inboxes.forEach(inbox -> {
+                    String name = inbox.getFileName().toString();
+                    if (name.endsWith(INBOX_SUFFIX)) {
+                        String recipient = MessageHistory.channelName(name.substring(0, name.length() - INBOX_SUFFIX.length()));
+                        owner.accept(recipient, () -> afterDeposits(recipient, () -> sweep(inbox, recipient, expiredBefore)));
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println("Error sweeping mailboxes: " + e.getMessage());
+            }
+        }
+    }
+
+    /* Owner only, checked again there: a deposit or a delivery may have come in since the listing */
+    private void sweep(Path inbox, String recipient, long expiredBefore) {
+        try {
+            if (!deliveries.containsKey(recipient) && Files.getLastModifiedTime(inbox).toMillis() < expiredBefore) {
+                Files.deleteIfExists(inbox);
+            }
+        } catch (IOException e) {
+            System.out.println("Error sweeping mailbox " + inbox.getFileName() + ": " + e.getMessage());
+        }
+    }
+
+    private static Path inboxPath(MailboxSettings settings, String recipient) {
+        return Path.of(settings.getDirectory(), MessageHistory.directoryName(recipient) + INBOX_SUFFIX);
+    }
+}
@@ -0,0 +1,223 @@
+package history;
+
+import network.OutboundFrame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/*
+ * Persistent chat history: one append-only log per channel, in its own directory.
+ * Does nothing until opened, so code paths that record (and benchmarks) run without it.
+ * A flusher thread batches the fsyncs of every channel every flushIntervalMillis.
+ * Only recording opens a missing log, at most maxOpenChannels stay open (least recently used closed first).
+ */
+public enum MessageHistory {
+    INSTANCE;
+
+    public static final String BROADCAST_CHANNEL = "all";
+
+    private final Map<String, ChannelLog> channels = new ConcurrentHashMap<>();
+    private volatile HistorySettings settings;
+
+    public static String roomChannel(String roomName) {
+        return "room-" + roomName;
+    }
+
+    public synchronized void open(HistorySettings settings) {
+        if (this.settings != null || !settings.isEnabled()) {
+            return;
+        }
+        this.settings = settings;
+
+        Thread flusher = new Thread(this::flushPeriodically, "history-flush");
+        flusher.setDaemon(true);
+        flusher.start();
+        System.out.println("Message history in " + Path.of(settings.getDirectory()).toAbsolutePath());
+    }
+
+    /* Whether messages get a sequence, frames then reserve room for it (see OutboundFrame.message) */
+    public boolean isEnabled() {
+        return settings != null;
+    }
+
+    /* Assigns the frame its sequence in the channel and stores it, returns the same frame for fan-out */
+    public OutboundFrame record(String channel, OutboundFrame frame) {
+        HistorySettings current = this.settings;
+        if (current == null) {
+            return frame;
+        }
+
+        try {
+            ChannelLog log = retain(channel, current, true);
+            try {
+                log.append(frame);
+            } finally {
+                log.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            /* History is best effort, losing it must never lose the live message */
+            System.out.println("Error writing history of " + channel + ": " + e.getMessage());
+        }
+        return frame;
+    }
+
+    /* Sends the stored messages after the given sequence, returns the last sequence sent */
+    public long replay(String channel, long afterSequence, Consumer<OutboundFrame> consumer) {
+        HistorySettings current = this.settings;
+        if (current == null) {
+            return afterSequence;
+        }
+
+        try {
+            ChannelLog log = retain(channel, current, false);
+            if (log == null) {
+                return afterSequence;
+            }
+            try {
+                return log.replay(afterSequence, current.getReplayLimit(), consumer);
+            } finally {
+                log.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error reading history of " + channel + ": " + e.getMessage());
+            return afterSequence;
+        }
+    }
+
+    /* The sequence of the channel's latest message, 0 before the first one, null without history */
+    public Long lastSequence(String channel) {
+        HistorySettings current = this.settings;
+        if (current == null) {
+            return null;
+        }
+
+        try {
+            ChannelLog log = retain(channel, current, false);
+            if (log == null) {
+                return 0L;
+            }
+            try {
+                return log.lastSequence();
+            } finally {
+                log.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error reading history of " + channel + ": " + e.getMessage());
+            return 0L;
+        }
+    }
+
+    /* The open log of the channel, retained for the caller; null when reading a channel that has no log */
+    private ChannelLog retain(String channel, HistorySettings current, boolean create) throws IOException {
+        while (true) {
+            ChannelLog log = channels.get(channel);
+            if (log == null) {
+                log = open(channel, current, create);
+                if (log == null) {
+                    return null;
+                }
+            }
+            if (log.retain()) {
+                return log;
+            }
+            /* Closed meanwhile, open() removed it */
+        }
+    }
+
+    private synchronized ChannelLog open(String channel, HistorySettings current, boolean create) throws IOException {
+        ChannelLog log = channels.get(channel);
+        if (log != null) {
+            return log;
+        }
+        Path directory = Path.of(current.getDirectory(), directoryName(channel));
+        if (!create && !Files.isDirectory(directory)) {
+            return null;
+        }
+
+        log = ChannelLog.open(directory, current);
+        channels.put(channel, log);
+        closeLeastRecentlyUsed(current.getMaxOpenChannels());
+        return log;
+    }
+
+    int openChannels() {
+        return channels.size();
+    }
+
+    /* Logs in use are skipped, the next open tries again */
+    private void closeLeastRecentlyUsed(int limit) {
+        while (channels.size() > Math.max(1, limit)) {
+            Map.Entry<String, ChannelLog> eldest = null;
+            for (Map.Entry<String, ChannelLog> entry : channels.entrySet()) {
+                if (!entry.getValue().inUse() && (eldest == null || entry.getValue().lastUsed() < eldest.getValue().lastUsed())) {
+                    eldest = entry;
+                }
+            }
+            if (eldest == null || !eldest.getValue().close()) {
+                return;
+            }
+            channels.remove(eldest.getKey());
+        }
+    }
+
+    private void flushPeriodically() {
+        while (true) {
+            try {
+                Thread.sleep(settings.getFlushIntervalMillis());
+            } catch (InterruptedException e) {
+                return;
+            }
+            flush();
+        }
+    }
+
+    /* Writes every channel back to disk now, the flusher does so periodically and shutdown once more */
+    public void flush() {
+        for (ChannelLog log : channels.values()) {
+            if (!log.retain()) {
+                continue;
+            }
+            try {
+                log.force();
+            } catch (RuntimeException e) {
+                System.out.println("Error flushing history: " + e.getMessage());
+            } finally {
+                log.release();
+            }
+        }
+    }
+
+    /* Channel names (and mailbox owners) are user input, anything but a safe character is percent-encoded */
+    static String directoryName(String channel) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : channel.getBytes(StandardCharsets.UTF_8)) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '_') {
+                name.append((char) b);
+            } else {
+                name.append('%').append("%02X".formatted(b & 0xFF));
+            }
+        }
+        return name.toString();
+    }
+
+    /* The channel (or mailbox owner) a directoryName() was made of */
+    static String channelName(String directoryName) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < directoryName.length(); i++) {
+            char c = directoryName.charAt(i);
+            if (c == '%' && i + 2 < directoryName.length()) {
+                bytes.write(Integer.parseInt(directoryName, i + 1, i + 3, 16));
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
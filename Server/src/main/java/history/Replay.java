@@ -0,0 +1,40 @@
+package history;
+
+import network.OutboundFrame;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/* State of one HISTORY request while it walks the segments of a channel */
+final class Replay {
+    private final long afterSequence;
+    private final Consumer<OutboundFrame> consumer;
+    private int remaining;
+    private long lastSequence;
+
+    Replay(long afterSequence, int limit, Consumer<OutboundFrame> consumer) {
+        this.afterSequence = afterSequence;
+        this.remaining = limit;
+        this.consumer = consumer;
+        this.lastSequence = afterSequence;
+    }
+
+    long afterSequence() {
+        return afterSequence;
+    }
+
+    boolean wantsMore() {
+        return remaining > 0;
+    }
+
+    /* Copied out of the mapping, the frame is written after the log may have been closed and unmapped */
+    void accept(long sequence, ByteBuffer frame) {
+        consumer.accept(OutboundFrame.ofEncoded(ByteBuffer.allocate(frame.remaining()).put(frame).flip()));
+        lastSequence = sequence;
+        remaining--;
+    }
+
+    long lastSequence() {
+        return lastSequence;
+    }
+}
@@ -0,0 +1,30 @@
+package metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/* Counts socket bytes read by blocking sessions, meant to sit below any buffering */
+public class MeteredInputStream extends FilterInputStream {
+    public MeteredInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            ServerMetrics.INSTANCE.bytesReceived(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = in.read(b, off, len);
+        if (read > 0) {
+            ServerMetrics.INSTANCE.bytesReceived(read);
+        }
+        return read;
+    }
+}
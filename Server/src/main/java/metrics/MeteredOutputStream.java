@@ -0,0 +1,25 @@
+package metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/* Counts socket bytes written by blocking sessions, meant to sit below any buffering */
+public class MeteredOutputStream extends FilterOutputStream {
+    public MeteredOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        ServerMetrics.INSTANCE.bytesSent(1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        /* FilterOutputStream would otherwise write byte by byte */
+        out.write(b, off, len);
+        ServerMetrics.INSTANCE.bytesSent(len);
+    }
+}
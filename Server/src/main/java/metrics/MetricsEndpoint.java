@@ -0,0 +1,42 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Plain-text scrape endpoint (GET /metrics), bound to the loopback interface only.
+ * Served by the JDK's built-in HTTP server on its own single thread, away from the chat engines.
+ */
+public class MetricsEndpoint {
+    private final int port;
+
+    public MetricsEndpoint(int port) {
+        this.port = port;
+    }
+
+    public void start() {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", this::handle);
+            server.start();
+            System.out.println("Metrics on http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            throw new RuntimeException("Error starting metrics endpoint", e);
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = ServerMetrics.INSTANCE.scrape().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
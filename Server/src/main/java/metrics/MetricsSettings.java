@@ -0,0 +1,26 @@
+package metrics;
+
+import lombok.Builder;
+import lombok.Data;
+
+/* Observability configuration, read from --metrics-port (0 disables the endpoint) and --log-packets */
+@Data
+@Builder
+public class MetricsSettings {
+    @Builder.Default
+    private int port = 9100;
+    @Builder.Default
+    private boolean logPackets = false;
+
+    public static MetricsSettings fromArgs(String[] args) {
+        MetricsSettingsBuilder settings = MetricsSettings.builder();
+        for (String arg : args) {
+            if (arg.startsWith("--metrics-port=")) {
+                settings.port(Integer.parseInt(arg.substring("--metrics-port=".length())));
+            } else if (arg.equals("--log-packets")) {
+                settings.logPackets(true);
+            }
+        }
+        return settings.build();
+    }
+}
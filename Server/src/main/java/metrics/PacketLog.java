@@ -0,0 +1,58 @@
+package metrics;
+
+import packet.Packet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Opt-in packet trace (--log-packets). Off by default, and when on the hot path only
+ * enqueues the packet: formatting and console output happen on a single daemon thread.
+ * A full queue drops the entry instead of slowing the server down to console speed.
+ */
+public enum PacketLog {
+    INSTANCE;
+
+    private static final int CAPACITY = 8192;
+
+    private final BlockingQueue<Packet> entries = new ArrayBlockingQueue<>(CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private volatile boolean enabled;
+
+    public synchronized void enable() {
+        if (enabled) {
+            return;
+        }
+
+        Thread writer = new Thread(this::drain, "packet-log");
+        writer.setDaemon(true);
+        writer.start();
+        enabled = true;
+    }
+
+    public void received(Packet packet) {
+        if (!enabled) {
+            return;
+        }
+        /* Logged later, detached from the receive buffer first */
+        packet.getMessage();
+        if (!entries.offer(packet)) {
+            dropped.increment();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                System.out.println("Received: " + entries.take());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
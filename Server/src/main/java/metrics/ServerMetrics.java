@@ -0,0 +1,237 @@
+package metrics;
+
+import cluster.Cluster;
+import network.OutboundMetrics;
+import packet.Command;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Server-wide counters and histograms, recorded from the hot paths of every engine.
+ * Everything is a striped adder or accumulator, so recording never takes a lock and
+ * never contends on a single cache line. Read through JMX or the MetricsEndpoint.
+ */
+public enum ServerMetrics implements ServerMetricsMXBean {
+    INSTANCE;
+
+    private final Map<Command, LongAdder> packetsReceived = new EnumMap<>(Command.class);
+    /* Packets refused by a rate limit, never dispatched */
+    private final Map<Command, LongAdder> packetsThrottled = new EnumMap<>(Command.class);
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final AtomicLong activeConnections = new AtomicLong();
+    /* Nanoseconds spent handling one inbound packet, fan-out included */
+    private final Histogram dispatchNanos = new Histogram();
+    /* Nanoseconds to hand one frame to one recipient's outbound queue */
+    private final Histogram sendNanos = new Histogram();
+    private final Histogram roomFanout = new Histogram();
+    private final Histogram broadcastFanout = new Histogram();
+    /* Frames coalesced into one socket write (or one flush of a blocking session) */
+    private final Histogram framesPerWrite = new Histogram();
+
+    ServerMetrics() {
+        for (Command command : Command.values()) {
+            packetsReceived.put(command, new LongAdder());
+            packetsThrottled.put(command, new LongAdder());
+        }
+    }
+
+    public void packetReceived(Command command, long dispatchNanos) {
+        if (command != null) {
+            packetsReceived.get(command).increment();
+        }
+        this.dispatchNanos.record(dispatchNanos);
+    }
+
+    public void packetThrottled(Command command) {
+        if (command != null) {
+            packetsThrottled.get(command).increment();
+        }
+    }
+
+    public void bytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    public void bytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public void frameSent(long nanos) {
+        sendNanos.record(nanos);
+    }
+
+    public void socketWrite(int frames) {
+        framesPerWrite.record(frames);
+    }
+
+    public void roomFanout(int recipients) {
+        roomFanout.record(recipients);
+    }
+
+    public void broadcastFanout(int recipients) {
+        broadcastFanout.record(recipients);
+    }
+
+    public void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("chat:type=ServerMetrics"));
+        } catch (JMException e) {
+            throw new RuntimeException("Error registering metrics MBean", e);
+        }
+    }
+
+    /* Prometheus text exposition format */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(2048);
+        packetsReceived.forEach((command, count) ->
+                out.append("chat_packets_received_total{command=\"").append(command).append("\"} ").append(count.sum()).append('\n'));
+        packetsThrottled.forEach((command, count) ->
+                out.append("chat_packets_throttled_total{command=\"").append(command).append("\"} ").append(count.sum()).append('\n'));
+        gauge(out, "chat_bytes_received_total", getBytesReceived());
+        gauge(out, "chat_bytes_sent_total", getBytesSent());
+        gauge(out, "chat_active_connections", getActiveConnections());
+        gauge(out, "chat_outbound_queued_frames", getQueuedFrames());
+        gauge(out, "chat_outbound_max_queue_depth", getMaxQueueDepth());
+        gauge(out, "chat_outbound_dropped_frames_total", getDroppedFrames());
+        gauge(out, "chat_outbound_slow_consumer_disconnects_total", getSlowConsumerDisconnects());
+        gauge(out, "chat_packet_log_dropped_total", getPacketLogDropped());
+        gauge(out, "chat_cluster_connected_peers", getClusterConnectedPeers());
+        gauge(out, "chat_cluster_dropped_total", getClusterDropped());
+        summary(out, "chat_dispatch_nanos", dispatchNanos);
+        summary(out, "chat_send_nanos", sendNanos);
+        summary(out, "chat_room_fanout", roomFanout);
+        summary(out, "chat_broadcast_fanout", broadcastFanout);
+        summary(out, "chat_frames_per_write", framesPerWrite);
+        return out.toString();
+    }
+
+    private static void gauge(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, Histogram histogram) {
+        for (String quantile : new String[]{"0.5", "0.99", "0.999"}) {
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                    .append(histogram.percentile(Double.parseDouble(quantile) * 100)).append('\n');
+        }
+        gauge(out, name + "_max", histogram.max());
+        gauge(out, name + "_sum", histogram.sum());
+        gauge(out, name + "_count", histogram.count());
+    }
+
+    @Override
+    public Map<String, Long> getPacketsReceived() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        packetsReceived.forEach((command, count) -> counts.put(command.name(), count.sum()));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getPacketsThrottled() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        packetsThrottled.forEach((command, count) -> counts.put(command.name(), count.sum()));
+        return counts;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    @Override
+    public long getQueuedFrames() {
+        return OutboundMetrics.INSTANCE.getQueuedFrames();
+    }
+
+    @Override
+    public long getMaxQueueDepth() {
+        return OutboundMetrics.INSTANCE.getMaxQueueDepth();
+    }
+
+    @Override
+    public long getDroppedFrames() {
+        return OutboundMetrics.INSTANCE.getDroppedFrames();
+    }
+
+    @Override
+    public long getSlowConsumerDisconnects() {
+        return OutboundMetrics.INSTANCE.getSlowConsumerDisconnects();
+    }
+
+    @Override
+    public long getDispatchP50Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(dispatchNanos.percentile(50));
+    }
+
+    @Override
+    public long getDispatchP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(dispatchNanos.percentile(99));
+    }
+
+    @Override
+    public long getSendP99Micros() {
+        return TimeUnit.NANOSECONDS.toMicros(sendNanos.percentile(99));
+    }
+
+    @Override
+    public long getRoomFanoutP99() {
+        return roomFanout.percentile(99);
+    }
+
+    @Override
+    public long getBroadcastFanoutP99() {
+        return broadcastFanout.percentile(99);
+    }
+
+    @Override
+    public long getSocketWrites() {
+        return framesPerWrite.count();
+    }
+
+    @Override
+    public long getFramesPerWriteP50() {
+        return framesPerWrite.percentile(50);
+    }
+
+    @Override
+    public long getPacketLogDropped() {
+        return PacketLog.INSTANCE.getDropped();
+    }
+
+    @Override
+    public long getClusterConnectedPeers() {
+        return Cluster.INSTANCE.getConnectedPeers();
+    }
+
+    @Override
+    public long getClusterDropped() {
+        return Cluster.INSTANCE.getDroppedMessages();
+    }
+}
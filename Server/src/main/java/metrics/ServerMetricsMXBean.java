@@ -0,0 +1,44 @@
+package metrics;
+
+import java.util.Map;
+
+/* JMX view of ServerMetrics, registered as chat:type=ServerMetrics */
+public interface ServerMetricsMXBean {
+    Map<String, Long> getPacketsReceived();
+
+    Map<String, Long> getPacketsThrottled();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getActiveConnections();
+
+    long getQueuedFrames();
+
+    long getMaxQueueDepth();
+
+    long getDroppedFrames();
+
+    long getSlowConsumerDisconnects();
+
+    long getDispatchP50Micros();
+
+    long getDispatchP99Micros();
+
+    long getSendP99Micros();
+
+    long getRoomFanoutP99();
+
+    long getBroadcastFanoutP99();
+
+    long getSocketWrites();
+
+    long getFramesPerWriteP50();
+
+    long getPacketLogDropped();
+
+    long getClusterConnectedPeers();
+
+    long getClusterDropped();
+}
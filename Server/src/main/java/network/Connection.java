@@ -0,0 +1,23 @@
+package network;
+
+import packet.Packet;
+
+/*
+ * A single client session, independent of the engine serving it.
+ * The blocking engine backs it with a socket and a dedicated thread,
+ * the NIO engine with a non-blocking channel owned by an event loop.
+ */
+public interface Connection {
+    /* A direct reply, flushed without waiting to coalesce with other frames */
+    default void send(Packet packet) {
+        sendFrame(OutboundFrame.urgent(packet));
+    }
+
+    /* Fan-out paths build one frame and hand the same instance to every recipient */
+    void sendFrame(OutboundFrame frame);
+
+    /* Frames queued and not yet written, shutdown waits for it to reach zero */
+    int outboundDepth();
+
+    void close();
+}
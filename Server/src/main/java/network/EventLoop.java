@@ -0,0 +1,164 @@
+package network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A single selector thread multiplexing many connections. Flushes wait out the
+ * connection's coalescing window (to the selector's millisecond resolution)
+ * unless an urgent frame or a full batch is queued.
+ */
+public class EventLoop implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /* Threads of the running loops, which must never wait for room in another thread's queue */
+    private static final Set<Thread> THREADS = ConcurrentHashMap.newKeySet();
+
+    private final Selector selector;
+    private final PacketHandler handler;
+    private final OutboundSettings outboundSettings;
+    private final IdleReaper idleReaper;
+    private final TlsContext tlsContext; // Null unless serving TLS
+    /* Shared by every connection of this loop, idle connections therefore hold no read buffer */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    /* Decrypted records land here, one at a time, so again nothing per connection */
+    private final ByteBuffer plaintextBuffer;
+    private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> flushes = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<NioConnection> delayedFlushes = new ArrayDeque<>(); // Loop thread only
+
+    private volatile Thread thread;
+
+    public EventLoop(PacketHandler handler, OutboundSettings outboundSettings, IdleReaper idleReaper, TlsContext tlsContext) {
+        this.handler = handler;
+        this.outboundSettings = outboundSettings;
+        this.idleReaper = idleReaper;
+        this.tlsContext = tlsContext;
+        this.plaintextBuffer = tlsContext == null ? null : tlsContext.newApplicationBuffer();
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening selector", e);
+        }
+    }
+
+    void register(SocketChannel channel) {
+        registrations.add(channel);
+        selector.wakeup();
+    }
+
+    void scheduleFlush(NioConnection connection) {
+        flushes.add(connection);
+        selector.wakeup();
+    }
+
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    ByteBuffer plaintextBuffer() {
+        return plaintextBuffer;
+    }
+
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /* Whether the caller is any event loop, see Shards.execute */
+    public static boolean isEventLoopThread() {
+        return THREADS.contains(Thread.currentThread());
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        THREADS.add(thread);
+        try {
+            loop();
+        } finally {
+            THREADS.remove(thread);
+        }
+    }
+
+    private void loop() {
+        long selectTimeout = 0; // Millis until the next delayed flush, 0 blocks until woken
+        while (selector.isOpen()) {
+            try {
+                selector.select(selectTimeout);
+            } catch (IOException e) {
+                throw new RuntimeException("Selector failed", e);
+            }
+
+            registerPending();
+            selectTimeout = flushPending();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.read(readBuffer);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.flush();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Client disconnected or error: " + e.getMessage());
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    private void registerPending() {
+        SocketChannel channel;
+        while ((channel = registrations.poll()) != null) {
+            NioConnection connection = new NioConnection(channel, this, handler, outboundSettings, idleReaper, tlsContext);
+            try {
+                connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    /* Flushes every connection that is due, returns the select timeout until the next one */
+    private long flushPending() {
+        NioConnection connection;
+        while ((connection = flushes.poll()) != null) {
+            delayedFlushes.add(connection);
+        }
+
+        long now = System.nanoTime();
+        long nextDue = Long.MAX_VALUE;
+        for (int i = delayedFlushes.size(); i > 0; i--) {
+            connection = delayedFlushes.poll();
+            long wait = connection.flushDueAt() - now;
+            if (wait > 0) {
+                delayedFlushes.add(connection);
+                nextDue = Math.min(nextDue, wait);
+                continue;
+            }
+
+            try {
+                connection.flush();
+            } catch (IOException | CancelledKeyException e) {
+                connection.close();
+            }
+        }
+        return delayedFlushes.isEmpty() ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextDue + 999_999));
+    }
+}
@@ -0,0 +1,119 @@
+package network;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Closes connections that sent nothing (not even a PING) for the idle timeout.
+ *
+ * A hashed timer wheel: one slot per tick, each slot a queue of the connections due in it.
+ * Traffic never touches the wheel, a connection only stamps its last activity; when its
+ * slot comes up the wheel either closes it or files it again under its new deadline.
+ * Each connection therefore costs O(1) once per timeout instead of a timer per packet,
+ * and 100k connections are a single thread walking one slot per tick.
+ */
+public class IdleReaper implements Runnable {
+    private final boolean enabled;
+    private final long timeoutNanos;
+    private final long tickNanos;
+    private final List<Queue<Handle>> wheel;
+    private final long startNanos = System.nanoTime();
+    private volatile long currentTick;
+
+    /* What a connection holds: stamp it on every inbound packet, cancel it on close */
+    public final class Handle {
+        private final Connection connection;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile boolean cancelled;
+
+        private Handle(Connection connection) {
+            this.connection = connection;
+        }
+
+        public void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    public IdleReaper(IdleSettings settings) {
+        this.enabled = settings.isEnabled();
+        this.timeoutNanos = TimeUnit.SECONDS.toNanos(Math.max(0, settings.getIdleTimeoutSeconds()));
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, settings.getTickMillis()));
+        /* One more slot than a timeout spans, so a fresh deadline never lands on the slot being walked */
+        int slots = (int) Math.min(Integer.MAX_VALUE, timeoutNanos / tickNanos + 2);
+        this.wheel = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) {
+            wheel.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        Thread reaper = new Thread(this, "idle-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    public Handle track(Connection connection) {
+        Handle handle = new Handle(connection);
+        if (enabled) {
+            schedule(handle);
+        }
+        return handle;
+    }
+
+    @Override
+    public void run() {
+        long tick = 0;
+        while (true) {
+            long wakeAt = startNanos + (tick + 1) * tickNanos;
+            long sleep = wakeAt - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+
+            tick++;
+            currentTick = tick;
+            expire(wheel.get((int) (tick % wheel.size())));
+        }
+    }
+
+    private void expire(Queue<Handle> slot) {
+        long now = System.nanoTime();
+        Handle handle;
+        /* Filing a handle again never targets the slot being walked, so this ends */
+        while ((handle = slot.poll()) != null) {
+            if (handle.cancelled) {
+                continue;
+            }
+
+            if (now - handle.lastActivity >= timeoutNanos) {
+                handle.cancelled = true;
+                System.out.println("Closing connection idle for " + TimeUnit.NANOSECONDS.toSeconds(now - handle.lastActivity) + "s");
+                handle.connection.close();
+            } else {
+                schedule(handle);
+            }
+        }
+    }
+
+    private void schedule(Handle handle) {
+        long deadlineTick = (handle.lastActivity + timeoutNanos - startNanos) / tickNanos + 1;
+        /* Never a slot already walked, nor one more than a wheel turn ahead */
+        long tick = Math.min(Math.max(deadlineTick, currentTick + 1), currentTick + wheel.size() - 1);
+        wheel.get((int) (tick % wheel.size())).add(handle);
+    }
+}
@@ -0,0 +1,32 @@
+package network;
+
+import lombok.Builder;
+import lombok.Data;
+
+/* Idle connection reaping, read from --idle-timeout-seconds (0 never reaps) and --idle-tick-ms */
+@Data
+@Builder
+public class IdleSettings {
+    /* Clients ping well within it, see ChatSession.startHeartbeat */
+    @Builder.Default
+    private long idleTimeoutSeconds = 120;
+    /* Timer wheel resolution, a connection is closed at most one tick after its timeout */
+    @Builder.Default
+    private long tickMillis = 1000;
+
+    public boolean isEnabled() {
+        return idleTimeoutSeconds > 0;
+    }
+
+    public static IdleSettings fromArgs(String[] args) {
+        IdleSettingsBuilder settings = IdleSettings.builder();
+        for (String arg : args) {
+            if (arg.startsWith("--idle-timeout-seconds=")) {
+                settings.idleTimeoutSeconds(Long.parseLong(arg.substring("--idle-timeout-seconds=".length())));
+            } else if (arg.startsWith("--idle-tick-ms=")) {
+                settings.tickMillis(Long.parseLong(arg.substring("--idle-tick-ms=".length())));
+            }
+        }
+        return settings.build();
+    }
+}
@@ -0,0 +1,294 @@
+package network;
+
+import metrics.ServerMetrics;
+import packet.Packet;
+import packet.PacketCodec;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Connection served by an EventLoop. Reads and writes only happen on the owning loop;
+ * send() may be called from any thread and just queues the frame in the bounded outbound queue.
+ * A flush gathers the queued frames, up to --coalesce-bytes, into a single channel write,
+ * or into as few TLS records as they fit when the connection is encrypted.
+ */
+public class NioConnection implements Connection {
+    private static final int MAX_GATHER = 64;
+
+    private final SocketChannel channel;
+    private final EventLoop eventLoop;
+    private final PacketHandler handler;
+    private final OutboundQueue outbound;
+    private final IdleReaper.Handle idle;
+    private final TlsSession tls; // Null for plaintext connections
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final long coalesceNanos;
+    private final int coalesceBytes;
+    private final int compressAbove;
+    private int deflateAbove; // Event loop only, compressAbove once the client announced it can inflate
+    private final AtomicInteger queuedBytes = new AtomicInteger(); // Only tracked with a coalescing window
+    private volatile long flushScheduledAt;
+    private volatile boolean flushNow; // An urgent frame or a full batch is waiting, skip the coalescing window
+    private SelectionKey key;
+    private ByteBuffer pending; // Bytes of an incomplete inbound frame, only allocated while one is in flight
+    /* Frames of the current gathering write, batchStart..batchEnd are not fully written yet */
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+    private final OutboundFrame[] batchFrames = new OutboundFrame[MAX_GATHER]; // Released once written, none for the HELLO
+    private int batchStart;
+    private int batchEnd;
+    private boolean negotiated;
+
+    NioConnection(SocketChannel channel, EventLoop eventLoop, PacketHandler handler, OutboundSettings outboundSettings, IdleReaper idleReaper,
+                  TlsContext tlsContext) {
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+        this.handler = handler;
+        this.outbound = new OutboundQueue(outboundSettings);
+        this.coalesceNanos = TimeUnit.MICROSECONDS.toNanos(outboundSettings.getCoalesceMicros());
+        this.coalesceBytes = outboundSettings.getCoalesceBytes();
+        this.compressAbove = outboundSettings.getCompressAbove();
+        this.idle = idleReaper.track(this);
+        this.tls = tlsContext == null ? null : new TlsSession(tlsContext, this::handshakeTasksDone);
+        ServerMetrics.INSTANCE.connectionOpened();
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    @Override
+    public void sendFrame(OutboundFrame frame) {
+        if (closed.get()) {
+            return;
+        }
+
+        if (!outbound.offer(frame)) {
+            System.out.println("Disconnecting slow client, outbound queue full");
+            close();
+            return;
+        }
+
+        if (frame.isUrgent() || (coalesceNanos > 0 && queuedBytes.addAndGet(frame.size()) >= coalesceBytes)) {
+            flushNow = true;
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            flushScheduledAt = System.nanoTime();
+            eventLoop.scheduleFlush(this);
+        } else if (flushNow) {
+            /* Already waiting out the coalescing window, let the loop see it is due now */
+            eventLoop.wakeup();
+        }
+    }
+
+    /* When the scheduled flush is due, in System.nanoTime() terms */
+    long flushDueAt() {
+        return flushNow ? flushScheduledAt : flushScheduledAt + coalesceNanos;
+    }
+
+    @Override
+    public int outboundDepth() {
+        return outbound.depth();
+    }
+
+    /* Event loop only: reads what is available into the shared loop buffer and dispatches complete frames */
+    void read(ByteBuffer readBuffer) throws IOException {
+        readBuffer.clear();
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            throw new EOFException("Client closed the connection");
+        }
+        ServerMetrics.INSTANCE.bytesReceived(read);
+        idle.touch();
+        readBuffer.flip();
+
+        if (tls == null) {
+            receive(readBuffer);
+            return;
+        }
+
+        tls.receive(readBuffer, eventLoop.plaintextBuffer(), this::receive);
+        /* A handshake reply is due, or frames were held back until the handshake completes */
+        if (tls.wantsWrap() || batchStart < batchEnd) {
+            flush();
+        }
+    }
+
+    /* Dispatches the complete frames among the received plaintext and keeps the rest for the next read */
+    private void receive(ByteBuffer plaintext) throws IOException {
+        if (pending == null) {
+            dispatchFrames(plaintext);
+            if (plaintext.hasRemaining()) {
+                pending = ByteBuffer.allocate(Math.max(plaintext.remaining(), expectedFrameSize(plaintext)));
+                pending.put(plaintext);
+            }
+            return;
+        }
+
+        if (pending.remaining() < plaintext.remaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(pending.position() + plaintext.remaining());
+            grown.put(pending.flip());
+            pending = grown;
+        }
+        pending.put(plaintext);
+        pending.flip();
+        dispatchFrames(pending);
+        pending = pending.hasRemaining() ? pending.compact() : null;
+    }
+
+    private void dispatchFrames(ByteBuffer buffer) throws IOException {
+        if (!negotiated) {
+            if (buffer.remaining() < PacketCodec.HELLO_SIZE) {
+                return;
+            }
+
+            byte[] preamble = new byte[PacketCodec.HELLO_SIZE];
+            buffer.get(preamble);
+            if (!PacketCodec.isHello(preamble)) {
+                /* A continuous object stream cannot be decoded without blocking */
+                throw new IOException("Legacy object stream clients are only served in blocking or virtual mode");
+            }
+            negotiated = true;
+            deflateAbove = (PacketCodec.features(preamble) & PacketCodec.FEATURE_DEFLATE) != 0 ? compressAbove : 0;
+            batch[batchEnd++] = ByteBuffer.wrap(PacketCodec.hello(deflateAbove > 0 ? PacketCodec.FEATURE_DEFLATE : 0));
+            flushNow = true;
+            scheduleFlush();
+        }
+
+        while (true) {
+            int frameSize = PacketCodec.frameSize(buffer);
+            if (frameSize < 0 || buffer.remaining() < frameSize) {
+                return;
+            }
+
+            Packet receivedPacket = PacketCodec.decodeFrame(buffer);
+            handler.onPacket(this, receivedPacket);
+        }
+    }
+
+    private static int expectedFrameSize(ByteBuffer buffer) throws IOException {
+        return Math.max(PacketCodec.frameSize(buffer), PacketCodec.HELLO_SIZE);
+    }
+
+    /* Event loop only: writes queued frames until the socket buffer is full */
+    void flush() throws IOException {
+        if (closed.get()) {
+            return;
+        }
+
+        while (true) {
+            while (batchStart < batchEnd || fillBatch() || (tls != null && tls.wantsWrap())) {
+                if (!writeBatch()) {
+                    /* Socket buffer is full, resume when the channel becomes writable again; a handshake resumes on read */
+                    key.interestOps(tls == null || tls.hasUnwritten() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+                    return;
+                }
+            }
+            /* Bytes held back while the handshake wrote may decrypt now, and be answered in this flush */
+            if (tls != null && tls.resume(eventLoop.plaintextBuffer(), this::receive)) {
+                continue;
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+            flushNow = false;
+            queuedBytes.set(0);
+            flushScheduled.set(false);
+
+            /* A sender may have queued a frame after the last poll but before the flag was cleared */
+            if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    /* Returns whether the whole batch went out */
+    private boolean writeBatch() throws IOException {
+        if (tls == null) {
+            ServerMetrics.INSTANCE.bytesSent(channel.write(batch, batchStart, batchEnd - batchStart));
+        } else {
+            tls.write(channel, batch, batchStart, batchEnd - batchStart);
+        }
+
+        while (batchStart < batchEnd && !batch[batchStart].hasRemaining()) {
+            OutboundFrame frame = batchFrames[batchStart];
+            if (frame != null) {
+                frame.written();
+            }
+            releaseBatchFrame(batchStart);
+            batch[batchStart++] = null;
+        }
+        return batchStart == batchEnd && (tls == null || !tls.hasUnwritten());
+    }
+
+    private void releaseBatchFrame(int index) {
+        OutboundFrame frame = batchFrames[index];
+        if (frame != null) {
+            batchFrames[index] = null;
+            frame.release();
+        }
+    }
+
+    /* Handshake threads: the engine may continue, on the loop */
+    private void handshakeTasksDone() {
+        flushNow = true;
+        flushScheduledAt = System.nanoTime();
+        eventLoop.scheduleFlush(this);
+    }
+
+    private boolean fillBatch() {
+        batchStart = 0;
+        batchEnd = 0;
+        int bytes = 0;
+        OutboundFrame frame;
+        while (batchEnd < MAX_GATHER && bytes < coalesceBytes && (frame = outbound.poll()) != null) {
+            ByteBuffer buffer = frame.buffer(deflateAbove);
+            bytes += buffer.remaining();
+            batchFrames[batchEnd] = frame;
+            batch[batchEnd++] = buffer;
+        }
+
+        if (batchEnd == 0) {
+            return false;
+        }
+        ServerMetrics.INSTANCE.socketWrite(batchEnd);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        idle.cancel();
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing connection.");
+        }
+        /* Pooled buffers may only go back from the loop that uses them, elsewhere they are left to the GC */
+        if (eventLoop.inLoop()) {
+            while (batchStart < batchEnd) {
+                releaseBatchFrame(batchStart);
+                batch[batchStart++] = null;
+            }
+            if (tls != null) {
+                tls.release();
+            }
+        }
+        outbound.clear();
+        handler.onDisconnect(this);
+        ServerMetrics.INSTANCE.connectionClosed();
+    }
+}
@@ -0,0 +1,106 @@
+package network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/*
+ * Non-blocking engine: one acceptor thread hands channels round-robin
+ * to a fixed pool of event loops, by default one per core. With a TLS context
+ * every connection is encrypted, handshakes included, by its event loop.
+ * Stopping only stops accepting, open connections are served until the process exits.
+ */
+public class NioServer {
+    private static final int ACCEPT_BACKLOG = 4096;
+    /* Pause after a failed accept, out of descriptors it would otherwise fail again right away */
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    private final int port;
+    private final PacketHandler handler;
+    private final OutboundSettings outboundSettings;
+    private final IdleReaper idleReaper;
+    private final TlsContext tlsContext;
+    private final EventLoop[] eventLoops;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile boolean stopped;
+
+    /* A null tlsContext serves plaintext */
+    public NioServer(int port, PacketHandler handler, int eventLoopCount, OutboundSettings outboundSettings, IdleReaper idleReaper,
+                     TlsContext tlsContext) {
+        this.port = port;
+        this.handler = handler;
+        this.outboundSettings = outboundSettings;
+        this.idleReaper = idleReaper;
+        this.tlsContext = tlsContext;
+        this.eventLoops = new EventLoop[eventLoopCount];
+    }
+
+    public void start() {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(handler, outboundSettings, idleReaper, tlsContext);
+            new Thread(eventLoops[i], "nio-event-loop-" + i).start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.serverChannel = serverChannel;
+            if (stopped) {
+                return;
+            }
+            serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+
+            System.out.println("Server is running (nio, " + eventLoops.length + " event loops" + (tlsContext == null ? "" : ", tls") + ")");
+            int next = 0;
+            while (!stopped && serverChannel.isOpen()) {
+                SocketChannel channel;
+                try {
+                    channel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    /* Closed by stop() */
+                    return;
+                } catch (IOException e) {
+                    /* Too many open files and the like, connections are accepted again once some close */
+                    System.out.println("Error accepting a connection: " + e.getMessage());
+                    pauseAccepting();
+                    continue;
+                }
+
+                try {
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    System.out.println("Error setting up a connection: " + e.getMessage());
+                    channel.close();
+                    continue;
+                }
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void pauseAccepting() {
+        try {
+            Thread.sleep(ACCEPT_RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            stopped = true;
+        }
+    }
+
+    public void stop() {
+        stopped = true;
+        ServerSocketChannel channel = serverChannel;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing the server socket: " + e.getMessage());
+            }
+        }
+    }
+}
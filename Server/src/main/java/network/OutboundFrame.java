@@ -0,0 +1,236 @@
+package network;
+
+import packet.Packet;
+import packet.PacketCodec;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/*
+ * A packet headed to one or many connections. The binary encoding is produced
+ * at most once and shared read-only by every recipient, so a fan-out to N
+ * sessions costs one encode instead of N.
+ *
+ * Urgent frames (direct replies such as a LOGIN answer) make the writer flush right away
+ * instead of waiting for more frames to coalesce with.
+ *
+ * Chat messages are encoded into pooled direct buffers and reference counted: the creator
+ * holds one reference until it has handed the frame out, every outbound queue holding it
+ * another until the frame is written or dropped. The last release returns the buffer.
+ * Other frames are on the heap and retain()/release() do nothing for them.
+ *
+ * Connections that negotiated compression are written a second encoding with the message
+ * deflated, made by the first of their writers to need it and shared like the first.
+ *
+ * A frame sent to a single connection may carry a receipt, run by the writer once the frame
+ * has gone to the socket (mailbox deliveries only remove what was actually written).
+ */
+public final class OutboundFrame {
+    /* Covers chat messages of any usual length, longer ones go to the heap */
+    private static final int POOLED_FRAME_SIZE = 1024;
+    private static final BufferPool POOL = new BufferPool(POOLED_FRAME_SIZE, 16 * 1024);
+    private static final AtomicIntegerFieldUpdater<OutboundFrame> REFERENCES = AtomicIntegerFieldUpdater.newUpdater(OutboundFrame.class, "references");
+    /* The message does not deflate to anything smaller, no writer tries again */
+    private static final ByteBuffer NOT_DEFLATED = ByteBuffer.allocate(0);
+
+    private volatile Packet packet;
+    private volatile ByteBuffer encoded;
+    private volatile ByteBuffer deflated; // Heap bytes, the pooled buffer is only ever the plain encoding
+    private final boolean urgent;
+    private final boolean pooled;
+    private final boolean sequenceSlot;
+    private volatile int references = 1;
+    private Runnable receipt; // Set before the frame is handed out
+
+    public OutboundFrame(Packet packet) {
+        this(packet, false);
+    }
+
+    private OutboundFrame(Packet packet, boolean urgent) {
+        this.packet = packet;
+        this.urgent = urgent;
+        this.pooled = false;
+        this.sequenceSlot = false;
+    }
+
+    private OutboundFrame(ByteBuffer encoded, boolean pooled, boolean sequenceSlot) {
+        this.encoded = encoded;
+        this.urgent = false;
+        this.pooled = pooled;
+        this.sequenceSlot = sequenceSlot;
+    }
+
+    /* A reply the requester is waiting on */
+    public static OutboundFrame urgent(Packet packet) {
+        return new OutboundFrame(packet, true);
+    }
+
+    /* A frame that is already encoded, e.g. replayed straight from the message history segments */
+    public static OutboundFrame ofEncoded(ByteBuffer frame) {
+        return ofEncoded(frame, false);
+    }
+
+    /* With a sequence slot the bytes are stamped in place, so they must be this frame's own */
+    public static OutboundFrame ofEncoded(ByteBuffer frame, boolean sequenceSlot) {
+        return new OutboundFrame(frame.slice(), false, sequenceSlot);
+    }
+
+    /*
+     * A chat message for fan-out, encoded right away: the packet may still be a view of
+     * a receive buffer. With a sequence slot, history stamps the frame's sequence in place.
+     * The caller owns the one reference the frame starts with.
+     */
+    public static OutboundFrame message(Packet packet, boolean sequenceSlot) {
+        int size = PacketCodec.encodedSize(packet, sequenceSlot);
+        boolean pooled = size <= POOLED_FRAME_SIZE;
+        ByteBuffer buffer = pooled ? POOL.acquire() : ByteBuffer.allocate(size);
+        PacketCodec.encode(packet, buffer, sequenceSlot);
+        return new OutboundFrame(buffer.flip(), pooled, sequenceSlot);
+    }
+
+    /* The receipt runs on the writer's thread (an event loop too), it must not block */
+    public OutboundFrame onWritten(Runnable receipt) {
+        this.receipt = receipt;
+        return this;
+    }
+
+    public boolean hasReceipt() {
+        return receipt != null;
+    }
+
+    /* Writers only, once the frame's bytes went to the socket; a frame dropped or cleared from a queue never is */
+    public void written() {
+        if (receipt != null) {
+            receipt.run();
+        }
+    }
+
+    public boolean isUrgent() {
+        return urgent;
+    }
+
+    public boolean hasSequenceSlot() {
+        return sequenceSlot;
+    }
+
+    /* Encoded size in bytes */
+    public int size() {
+        return encoded().remaining();
+    }
+
+    public void retain() {
+        if (pooled) {
+            REFERENCES.incrementAndGet(this);
+        }
+    }
+
+    /* The frame must not be used afterwards unless another reference is still held */
+    public void release() {
+        if (!pooled) {
+            return;
+        }
+
+        int remaining = REFERENCES.decrementAndGet(this);
+        if (remaining == 0) {
+            POOL.release(encoded);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released more often than retained");
+        }
+    }
+
+    /* Position of the message in its channel's history, set before the frame is sent to anyone */
+    public void stampSequence(long sequence) {
+        if (sequenceSlot) {
+            PacketCodec.stampSequence(encoded, sequence);
+            ByteBuffer variant = deflated;
+            if (variant != null && variant != NOT_DEFLATED) {
+                PacketCodec.stampSequence(variant, sequence);
+            }
+        }
+        Packet decoded = packet;
+        if (decoded != null || !sequenceSlot) {
+            packet().setSequence(sequence);
+        }
+    }
+
+    /*
+     * For legacy object stream sessions, which have to serialize the packet themselves. Decoded once,
+     * message included, before it is published: their writers serialize the same packet concurrently.
+     */
+    public Packet packet() {
+        Packet decoded = packet;
+        if (decoded != null) {
+            return decoded;
+        }
+        synchronized (this) {
+            decoded = packet;
+            if (decoded == null) {
+                try {
+                    decoded = PacketCodec.decodeFrame(encoded.duplicate());
+                } catch (IOException e) {
+                    throw new IllegalStateException("Corrupt encoded frame", e);
+                }
+                decoded.getMessage();
+                packet = decoded;
+            }
+            return decoded;
+        }
+    }
+
+    /* A private read-only view over the shared bytes, positioned at the frame start */
+    public ByteBuffer buffer() {
+        return encoded().asReadOnlyBuffer();
+    }
+
+    /* As written to a connection that deflates frames of deflateAbove bytes and more, 0 for one that does not */
+    public ByteBuffer buffer(int deflateAbove) {
+        return bytesFor(deflateAbove).asReadOnlyBuffer();
+    }
+
+    /* Direct and mapped bytes are copied through the scratch array, streams cannot take them as they are */
+    public void writeTo(OutputStream out, byte[] scratch, int deflateAbove) throws IOException {
+        ByteBuffer bytes = bytesFor(deflateAbove);
+        if (bytes.hasArray()) {
+            out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+            return;
+        }
+
+        for (int offset = 0; offset < bytes.remaining(); offset += scratch.length) {
+            int length = Math.min(scratch.length, bytes.remaining() - offset);
+            bytes.get(bytes.position() + offset, scratch, 0, length);
+            out.write(scratch, 0, length);
+        }
+    }
+
+    /* Deflated once for every recipient, later writers wait for the first rather than compress again */
+    private ByteBuffer bytesFor(int deflateAbove) {
+        ByteBuffer bytes = encoded();
+        if (deflateAbove <= 0 || bytes.remaining() < deflateAbove) {
+            return bytes;
+        }
+
+        ByteBuffer variant = deflated;
+        if (variant == null) {
+            synchronized (this) {
+                variant = deflated;
+                if (variant == null) {
+                    variant = PacketCodec.deflate(bytes);
+                    deflated = variant = variant == null ? NOT_DEFLATED : variant;
+                }
+            }
+        }
+        return variant == NOT_DEFLATED ? bytes : variant;
+    }
+
+    private ByteBuffer encoded() {
+        ByteBuffer bytes = encoded;
+        if (bytes == null) {
+            /* Racing encoders produce identical bytes, so the last write simply wins */
+            bytes = PacketCodec.encode(packet);
+            encoded = bytes;
+        }
+        return bytes;
+    }
+}
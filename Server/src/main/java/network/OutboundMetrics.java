@@ -0,0 +1,50 @@
+package network;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/* Server-wide outbound queue counters, fed by every OutboundQueue */
+public enum OutboundMetrics {
+    INSTANCE;
+
+    private final AtomicLong queuedFrames = new AtomicLong();
+    private final LongAccumulator maxQueueDepth = new LongAccumulator(Math::max, 0);
+    private final LongAdder droppedFrames = new LongAdder();
+    private final LongAdder slowConsumerDisconnects = new LongAdder();
+
+    void queued(int depth) {
+        queuedFrames.incrementAndGet();
+        maxQueueDepth.accumulate(depth);
+    }
+
+    void dequeued(int count) {
+        queuedFrames.addAndGet(-count);
+    }
+
+    void dropped() {
+        droppedFrames.increment();
+    }
+
+    void slowConsumerDisconnected() {
+        slowConsumerDisconnects.increment();
+    }
+
+    /* Frames currently waiting across all connections */
+    public long getQueuedFrames() {
+        return queuedFrames.get();
+    }
+
+    /* Deepest single queue seen since startup */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.sum();
+    }
+
+    public long getSlowConsumerDisconnects() {
+        return slowConsumerDisconnects.sum();
+    }
+}
@@ -0,0 +1,105 @@
+package network;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Bounded per-connection queue between the threads producing frames (any
+ * sender, any broadcast) and the single writer draining them to the socket.
+ * A stalled client can therefore only fill its own queue, never block a broadcaster
+ * beyond what its overflow policy allows.
+ *
+ * A queued frame holds a reference (see OutboundFrame.retain): polling hands it to the
+ * writer, which releases the frame once written; dropped and cleared frames are released here.
+ */
+public class OutboundQueue {
+    private final BlockingQueue<OutboundFrame> frames;
+    private final OutboundSettings settings;
+
+    public OutboundQueue(OutboundSettings settings) {
+        this.frames = new ArrayBlockingQueue<>(settings.getCapacity());
+        this.settings = settings;
+    }
+
+    /* Returns false when the policy decided the connection has to be closed */
+    public boolean offer(OutboundFrame frame) {
+        /* Taken before the frame is visible, the writer may release it as soon as it is */
+        frame.retain();
+        if (frames.offer(frame)) {
+            OutboundMetrics.INSTANCE.queued(frames.size());
+            return true;
+        }
+
+        switch (settings.getOverflow()) {
+            case DROP_OLDEST -> {
+                while (!frames.offer(frame)) {
+                    OutboundFrame oldest = frames.poll();
+                    if (oldest != null) {
+                        oldest.release();
+                        OutboundMetrics.INSTANCE.dequeued(1);
+                        OutboundMetrics.INSTANCE.dropped();
+                    }
+                }
+                OutboundMetrics.INSTANCE.queued(frames.size());
+                return true;
+            }
+            case BLOCK -> {
+                try {
+                    if (frames.offer(frame, settings.getBlockTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                        OutboundMetrics.INSTANCE.queued(frames.size());
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            case DISCONNECT -> {
+            }
+        }
+
+        frame.release();
+        OutboundMetrics.INSTANCE.slowConsumerDisconnected();
+        return false;
+    }
+
+    public OutboundFrame poll() {
+        OutboundFrame frame = frames.poll();
+        if (frame != null) {
+            OutboundMetrics.INSTANCE.dequeued(1);
+        }
+        return frame;
+    }
+
+    public OutboundFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        OutboundFrame frame = frames.poll(timeout, unit);
+        if (frame != null) {
+            OutboundMetrics.INSTANCE.dequeued(1);
+        }
+        return frame;
+    }
+
+    public OutboundFrame take() throws InterruptedException {
+        OutboundFrame frame = frames.take();
+        OutboundMetrics.INSTANCE.dequeued(1);
+        return frame;
+    }
+
+    public boolean isEmpty() {
+        return frames.isEmpty();
+    }
+
+    public int depth() {
+        return frames.size();
+    }
+
+    public void clear() {
+        int cleared = 0;
+        OutboundFrame frame;
+        while ((frame = frames.poll()) != null) {
+            frame.release();
+            cleared++;
+        }
+        OutboundMetrics.INSTANCE.dequeued(cleared);
+    }
+}
@@ -0,0 +1,48 @@
+package network;
+
+import lombok.Builder;
+import lombok.Data;
+
+/*
+ * Per-connection outbound queue configuration, read from --outbound-capacity, --overflow and --block-timeout-ms.
+ * Writers coalesce queued frames into one socket write of up to --coalesce-bytes; with --coalesce-us above zero
+ * they also wait that long for more frames before writing, trading a little latency for fewer writes.
+ * Clients that announce compression get frames of --compress-above bytes or more deflated (0 never compresses).
+ */
+@Data
+@Builder
+public class OutboundSettings {
+    @Builder.Default
+    private int capacity = 1024;
+    @Builder.Default
+    private OverflowPolicy overflow = OverflowPolicy.DROP_OLDEST;
+    @Builder.Default
+    private long blockTimeoutMillis = 1000;
+    @Builder.Default
+    private long coalesceMicros = 0;
+    @Builder.Default
+    private int coalesceBytes = 64 * 1024;
+    /* Below this, deflating saves less than it costs the writer */
+    @Builder.Default
+    private int compressAbove = 512;
+
+    public static OutboundSettings fromArgs(String[] args) {
+        OutboundSettingsBuilder settings = OutboundSettings.builder();
+        for (String arg : args) {
+            if (arg.startsWith("--outbound-capacity=")) {
+                settings.capacity(Integer.parseInt(arg.substring("--outbound-capacity=".length())));
+            } else if (arg.startsWith("--overflow=")) {
+                settings.overflow(OverflowPolicy.valueOf(arg.substring("--overflow=".length()).toUpperCase()));
+            } else if (arg.startsWith("--block-timeout-ms=")) {
+                settings.blockTimeoutMillis(Long.parseLong(arg.substring("--block-timeout-ms=".length())));
+            } else if (arg.startsWith("--coalesce-us=")) {
+                settings.coalesceMicros(Long.parseLong(arg.substring("--coalesce-us=".length())));
+            } else if (arg.startsWith("--coalesce-bytes=")) {
+                settings.coalesceBytes(Integer.parseInt(arg.substring("--coalesce-bytes=".length())));
+            } else if (arg.startsWith("--compress-above=")) {
+                settings.compressAbove(Integer.parseInt(arg.substring("--compress-above=".length())));
+            }
+        }
+        return settings.build();
+    }
+}
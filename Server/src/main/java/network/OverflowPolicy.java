@@ -0,0 +1,11 @@
+package network;
+
+/* What a full outbound queue does with the next frame */
+public enum OverflowPolicy {
+    /* Evict the oldest queued frame, the slow client just misses messages */
+    DROP_OLDEST,
+    /* Close the slow client's connection */
+    DISCONNECT,
+    /* Make the sender wait for room, up to OutboundSettings.blockTimeoutMillis, then disconnect */
+    BLOCK
+}
@@ -0,0 +1,11 @@
+package network;
+
+import packet.Packet;
+
+/* Callbacks invoked by an engine for every decoded packet and for every closed connection */
+public interface PacketHandler {
+    void onPacket(Connection connection, Packet packet);
+
+    default void onDisconnect(Connection connection) {
+    }
+}
@@ -0,0 +1,17 @@
+package network;
+
+/* Engine selected at startup with --mode=<name> */
+public enum ServerMode {
+    BLOCKING,
+    VIRTUAL,
+    NIO;
+
+    public static ServerMode fromArgs(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--mode=")) {
+                return valueOf(arg.substring("--mode=".length()).toUpperCase());
+            }
+        }
+        return BLOCKING;
+    }
+}
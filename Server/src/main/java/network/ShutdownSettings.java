@@ -0,0 +1,38 @@
+package network;
+
+import lombok.Builder;
+import lombok.Data;
+
+/*
+ * Graceful shutdown on SIGTERM, read from --drain-timeout-ms, --reconnect-window-ms,
+ * --session-handoff and --no-session-handoff
+ */
+@Data
+@Builder
+public class ShutdownSettings {
+    /* How long queued messages get to reach their clients before the process exits */
+    @Builder.Default
+    private long drainTimeoutMillis = 5_000;
+    /* Clients spread their reconnects at random over this window, so a restart is not a login storm */
+    @Builder.Default
+    private long reconnectWindowMillis = 10_000;
+    /* Session tokens are written here on shutdown and taken over on startup, null to let sessions end with the process */
+    @Builder.Default
+    private String handoffFile = "session-handoff";
+
+    public static ShutdownSettings fromArgs(String[] args) {
+        ShutdownSettingsBuilder settings = ShutdownSettings.builder();
+        for (String arg : args) {
+            if (arg.equals("--no-session-handoff")) {
+                settings.handoffFile(null);
+            } else if (arg.startsWith("--drain-timeout-ms=")) {
+                settings.drainTimeoutMillis(Long.parseLong(arg.substring("--drain-timeout-ms=".length())));
+            } else if (arg.startsWith("--reconnect-window-ms=")) {
+                settings.reconnectWindowMillis(Long.parseLong(arg.substring("--reconnect-window-ms=".length())));
+            } else if (arg.startsWith("--session-handoff=")) {
+                settings.handoffFile(arg.substring("--session-handoff=".length()));
+            }
+        }
+        return settings.build();
+    }
+}
@@ -0,0 +1,98 @@
+package network;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Server side TLS shared by all connections: the key material, the pool of buffers that
+ * hold encrypted records, and the threads running handshake crypto (key exchange and
+ * signatures take milliseconds, far too long for an event loop serving thousands).
+ */
+public final class TlsContext {
+    /* Enough for a burst of writes across many connections, idle ones hold no buffer */
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
+    private final SSLContext sslContext;
+    private final ExecutorService handshakeExecutor;
+    private final BufferPool recordBuffers;
+    private final int applicationBufferSize;
+
+    private TlsContext(SSLContext sslContext, int handshakeThreads) {
+        this.sslContext = sslContext;
+        this.handshakeExecutor = Executors.newFixedThreadPool(Math.max(1, handshakeThreads), Thread.ofPlatform().name("tls-handshake-", 0).daemon().factory());
+
+        SSLEngine probe = sslContext.createSSLEngine();
+        this.recordBuffers = new BufferPool(probe.getSession().getPacketBufferSize(), MAX_POOLED_BUFFERS);
+        this.applicationBufferSize = probe.getSession().getApplicationBufferSize();
+    }
+
+    public static TlsContext open(TlsSettings settings) {
+        try {
+            char[] password = settings.getPassword().toCharArray();
+            KeyStore keyStore = KeyStore.getInstance(new File(settings.getKeystore()), password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), null, null);
+            return new TlsContext(sslContext, settings.getHandshakeThreads());
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException("Error loading TLS keystore " + settings.getKeystore(), e);
+        }
+    }
+
+    /*
+     * For cluster links, both ends present a key from the keystore and trust nothing but its
+     * certificates: only nodes holding it can connect, in either direction.
+     */
+    public static SSLContext mutual(String keystore, String password) {
+        try {
+            char[] secret = password.toCharArray();
+            KeyStore keyStore = KeyStore.getInstance(new File(keystore), secret);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, secret);
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(keyStore);
+
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+            return sslContext;
+        } catch (IOException | GeneralSecurityException e) {
+            throw new RuntimeException("Error loading cluster keystore " + keystore, e);
+        }
+    }
+
+    /* For the blocking modes, each session thread runs its own handshake */
+    public ServerSocket openServerSocket(int port, int backlog) throws IOException {
+        return sslContext.getServerSocketFactory().createServerSocket(port, backlog);
+    }
+
+    SSLEngine newEngine() {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /* Large enough for any decrypted record */
+    ByteBuffer newApplicationBuffer() {
+        return ByteBuffer.allocateDirect(applicationBufferSize);
+    }
+
+    BufferPool recordBuffers() {
+        return recordBuffers;
+    }
+
+    void runHandshakeTasks(Runnable tasks) {
+        handshakeExecutor.execute(tasks);
+    }
+}
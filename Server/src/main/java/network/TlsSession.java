@@ -0,0 +1,198 @@
+package network;
+
+import metrics.ServerMetrics;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/*
+ * The TLS state of one NioConnection, event loop only unless noted. Received bytes are
+ * decrypted straight from the loop's read buffer, and outbound frames are encrypted straight
+ * from their shared encoded bytes: there is no per-connection plaintext copy either way.
+ * Record buffers are borrowed from the pool only while they hold bytes (a partial record
+ * received, an encrypted record the socket did not take yet).
+ *
+ * Handshake tasks run on the context's handshake threads; meanwhile the session neither
+ * reads nor writes, and onTasksDone asks the loop to pick up where it stopped.
+ */
+final class TlsSession {
+    interface PlaintextSink {
+        void accept(ByteBuffer plaintext) throws IOException;
+    }
+
+    private final SSLEngine engine;
+    private final TlsContext context;
+    private final BufferPool recordBuffers;
+    private final Runnable onTasksDone;
+    private ByteBuffer received; // Write mode, bytes of a record not complete yet
+    private ByteBuffer unwritten; // Read mode, encrypted bytes the socket did not take yet
+    private volatile boolean runningTasks;
+
+    TlsSession(TlsContext context, Runnable onTasksDone) {
+        this.engine = context.newEngine();
+        this.context = context;
+        this.recordBuffers = context.recordBuffers();
+        this.onTasksDone = onTasksDone;
+    }
+
+    /* Decrypts what was read, behind whatever earlier reads left undecrypted */
+    void receive(ByteBuffer bytes, ByteBuffer plaintext, PlaintextSink sink) throws IOException {
+        if (received == null) {
+            unwrap(bytes, plaintext, sink);
+            hold(bytes);
+            return;
+        }
+        hold(bytes);
+        resume(plaintext, sink);
+    }
+
+    /* Decrypts bytes held back while the handshake had to write or run tasks first, returns whether any were */
+    boolean resume(ByteBuffer plaintext, PlaintextSink sink) throws IOException {
+        if (received == null) {
+            return false;
+        }
+        received.flip();
+        unwrap(received, plaintext, sink);
+        boolean consumed = received.position() > 0;
+        if (received.hasRemaining()) {
+            received.compact();
+        } else {
+            recordBuffers.release(received);
+            received = null;
+        }
+        return consumed;
+    }
+
+    /* The handshake has a message to send, even if there is no plaintext */
+    boolean wantsWrap() {
+        return !runningTasks && engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP;
+    }
+
+    /* Encrypted bytes are waiting for the socket to become writable */
+    boolean hasUnwritten() {
+        return unwritten != null;
+    }
+
+    /*
+     * Writes what the socket did not take last time, then encrypts and writes the sources.
+     * Returns true once everything is written; false when the socket is full (see hasUnwritten)
+     * or when the handshake has to hear from the client or finish its tasks first.
+     */
+    boolean write(SocketChannel channel, ByteBuffer[] sources, int offset, int length) throws IOException {
+        while (true) {
+            if (unwritten != null) {
+                ServerMetrics.INSTANCE.bytesSent(channel.write(unwritten));
+                if (unwritten.hasRemaining()) {
+                    return false;
+                }
+                recordBuffers.release(unwritten);
+                unwritten = null;
+            }
+
+            boolean hasPlaintext = hasRemaining(sources, offset, length);
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (runningTasks || status == HandshakeStatus.NEED_UNWRAP || (!hasPlaintext && status != HandshakeStatus.NEED_WRAP)) {
+                return !hasPlaintext;
+            }
+
+            ByteBuffer record = recordBuffers.acquire();
+            SSLEngineResult result = engine.wrap(sources, offset, length, record);
+            switch (result.getStatus()) {
+                case CLOSED -> throw new EOFException("TLS session closed");
+                case BUFFER_OVERFLOW -> throw new IOException("TLS record larger than its buffer");
+                default -> {
+                }
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+
+            if (record.flip().hasRemaining()) {
+                unwritten = record;
+            } else {
+                recordBuffers.release(record);
+            }
+        }
+    }
+
+    /* Returns the borrowed buffers, the session is not used afterwards */
+    void release() {
+        if (received != null) {
+            recordBuffers.release(received);
+            received = null;
+        }
+        if (unwritten != null) {
+            recordBuffers.release(unwritten);
+            unwritten = null;
+        }
+    }
+
+    private void unwrap(ByteBuffer source, ByteBuffer plaintext, PlaintextSink sink) throws IOException {
+        /* A handshake message to send comes first, the caller writes it and resumes */
+        while (source.hasRemaining() && !runningTasks && engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+            plaintext.clear();
+            SSLEngineResult result = engine.unwrap(source, plaintext);
+            plaintext.flip();
+            if (plaintext.hasRemaining()) {
+                sink.accept(plaintext);
+            }
+
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW -> {
+                    return; // The rest of the record is still in flight
+                }
+                case BUFFER_OVERFLOW -> throw new IOException("TLS record larger than the plaintext buffer");
+                case CLOSED -> throw new EOFException("Client closed the TLS session");
+                default -> {
+                }
+            }
+            if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+        }
+    }
+
+    /* Keeps what could not be decrypted yet, in a pooled buffer unless it is unusually large */
+    private void hold(ByteBuffer bytes) {
+        if (!bytes.hasRemaining()) {
+            return;
+        }
+
+        int needed = (received == null ? 0 : received.position()) + bytes.remaining();
+        if (received == null || received.capacity() < needed) {
+            ByteBuffer grown = needed <= recordBuffers.bufferSize() ? recordBuffers.acquire() : ByteBuffer.allocateDirect(needed);
+            if (received != null) {
+                grown.put(received.flip());
+                recordBuffers.release(received);
+            }
+            received = grown;
+        }
+        received.put(bytes);
+    }
+
+    private void runTasks() {
+        runningTasks = true;
+        context.runHandshakeTasks(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            runningTasks = false;
+            onTasksDone.run();
+        });
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
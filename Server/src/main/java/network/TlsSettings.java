@@ -0,0 +1,39 @@
+package network;
+
+import lombok.Builder;
+import lombok.Data;
+
+/*
+ * Client TLS, read from --tls-keystore (PKCS12 or JKS, enables TLS), --tls-password and --tls-handshake-threads.
+ * A self-signed keystore for trying it out:
+ *   keytool -genkeypair -alias chat -keyalg EC -dname CN=localhost -validity 365 -keystore chat.p12 -storepass changeit
+ */
+@Data
+@Builder
+public class TlsSettings {
+    @Builder.Default
+    private String keystore = null;
+    @Builder.Default
+    private String password = "changeit";
+    /* Handshake crypto runs here instead of on the event loops */
+    @Builder.Default
+    private int handshakeThreads = 2;
+
+    public boolean isEnabled() {
+        return keystore != null;
+    }
+
+    public static TlsSettings fromArgs(String[] args) {
+        TlsSettingsBuilder settings = TlsSettings.builder();
+        for (String arg : args) {
+            if (arg.startsWith("--tls-keystore=")) {
+                settings.keystore(arg.substring("--tls-keystore=".length()));
+            } else if (arg.startsWith("--tls-password=")) {
+                settings.password(arg.substring("--tls-password=".length()));
+            } else if (arg.startsWith("--tls-handshake-threads=")) {
+                settings.handshakeThreads(Integer.parseInt(arg.substring("--tls-handshake-threads=".length())));
+            }
+        }
+        return settings.build();
+    }
+}
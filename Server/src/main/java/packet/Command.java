@@ -9,5 +9,21 @@ public enum Command { /* implements Serializable is optional, enum is Serializab
     MESSAGE_INDIVIDUAL,
     JOIN_ROOM,
     CREATE_ROOM,
-    MESSAGE_ROOM
+    MESSAGE_ROOM,
+    LEAVE_ROOM,
+    /* Appended from here on, ordinals are on the wire */
+    HISTORY,
+    PING, /* Heartbeat, answered with a PING carrying the same correlation id */
+    THROTTLED, /* Answer to a packet refused by a rate limit, the message names the limit */
+    RECONNECT, /* The server is going away, reconnect at a random point of the window carried as the sequence, in milliseconds */
+    /*
+     * Listings are paged by cursor: the request's message is the last name of the previous page (none for the first)
+     * and its sequence the page size; the answer's names are the page, its message the cursor of the next page, if any
+     */
+    LIST_ROOMS,
+    LIST_MEMBERS, /* Of the room named in the request */
+    LIST_USERS, /* Online on any node */
+    SUBSCRIBE_PRESENCE,
+    UNSUBSCRIBE_PRESENCE,
+    PRESENCE /* Pushed to subscribers: names are "+nickname" for who came online and "-nickname" for who went offline */
 }
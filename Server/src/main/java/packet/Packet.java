@@ -2,15 +2,61 @@ package packet;
 
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serial;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 
 @Data
 @Builder /* https://refactoring.guru/design-patterns/builder */
 public class Packet implements Serializable {
+    @Serial
+    private static final long serialVersionUID = 1L; // Pinned so the Client and Server copies stay wire compatible
+
     private String message;
+    /*
+     * The message as decoded off the wire, still UTF-8 and possibly a view of the receive buffer
+     * (only valid while the packet is being dispatched). A forwarded message is re-encoded from
+     * these bytes and never becomes a String; getMessage() decodes it on first use.
+     */
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private transient ByteBuffer messageUtf8;
     private Command command;
     private User user;
     private User userRecipient;
     private String roomName;
+    /* Position of a chat message in its channel's history log, or the starting point of a HISTORY request */
+    private Long sequence;
+    /* Chosen by the client per request and echoed on the server's answer, lets requests be pipelined */
+    private Integer correlationId;
+    /* A page of a listing, or a batch of presence changes; a concrete list, legacy clients get it serialized */
+    private ArrayList<String> names;
+
+    /* Also detaches the packet from the receive buffer, call it before keeping the packet beyond dispatch */
+    public String getMessage() {
+        ByteBuffer utf8 = messageUtf8;
+        if (message == null && utf8 != null) {
+            message = StandardCharsets.UTF_8.decode(utf8.duplicate()).toString();
+            messageUtf8 = null;
+        }
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+        this.messageUtf8 = null;
+    }
+
+    @Serial
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getMessage();
+        out.defaultWriteObject();
+    }
 }
@@ -0,0 +1,73 @@
+package ratelimit;
+
+import lombok.Builder;
+import lombok.Data;
+import packet.Command;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/*
+ * Inbound rate limits, read from --rate-session=PER_SECOND:BURST, --rate-room=PER_SECOND:BURST
+ * and --rate-command=COMMAND:PER_SECOND:BURST (repeatable); a rate of 0 lifts that limit,
+ * --no-rate-limit lifts them all
+ */
+@Data
+@Builder
+public class RateLimitSettings {
+    /* Every packet of one connection, PINGs included */
+    @Builder.Default
+    private Limit session = new Limit(200, 400);
+    /* One connection's packets of a command, on top of the session limit */
+    @Builder.Default
+    private Map<Command, Limit> commands = defaultCommandLimits();
+    /* Messages into one room, from every sender together */
+    @Builder.Default
+    private Limit room = new Limit(1000, 2000);
+
+    public record Limit(double perSecond, int burst) {
+        public static final Limit NONE = new Limit(0, 0);
+
+        public boolean isEnabled() {
+            return perSecond > 0;
+        }
+
+        public TokenBucket newBucket() {
+            return isEnabled() ? new TokenBucket(perSecond, burst) : null;
+        }
+
+        static Limit parse(String value) {
+            String[] parts = value.split(":");
+            double perSecond = Double.parseDouble(parts[0]);
+            return new Limit(perSecond, parts.length > 1 ? Integer.parseInt(parts[1]) : (int) Math.ceil(perSecond));
+        }
+    }
+
+    /* Public chat reaches everyone, and each login or registration costs a password hash */
+    private static Map<Command, Limit> defaultCommandLimits() {
+        Map<Command, Limit> limits = new EnumMap<>(Command.class);
+        limits.put(Command.MESSAGE_ALL, new Limit(20, 40));
+        limits.put(Command.LOGIN, new Limit(1, 5));
+        limits.put(Command.REGISTER, new Limit(1, 5));
+        return limits;
+    }
+
+    public static RateLimitSettings fromArgs(String[] args) {
+        RateLimitSettingsBuilder settings = RateLimitSettings.builder();
+        Map<Command, Limit> commands = defaultCommandLimits();
+        for (String arg : args) {
+            if (arg.equals("--no-rate-limit")) {
+                return RateLimitSettings.builder().session(Limit.NONE).commands(new EnumMap<>(Command.class)).room(Limit.NONE).build();
+            } else if (arg.startsWith("--rate-session=")) {
+                settings.session(Limit.parse(arg.substring("--rate-session=".length())));
+            } else if (arg.startsWith("--rate-room=")) {
+                settings.room(Limit.parse(arg.substring("--rate-room=".length())));
+            } else if (arg.startsWith("--rate-command=")) {
+                String value = arg.substring("--rate-command=".length());
+                int separator = value.indexOf(':');
+                commands.put(Command.valueOf(value.substring(0, separator)), Limit.parse(value.substring(separator + 1)));
+            }
+        }
+        return settings.commands(commands).build();
+    }
+}
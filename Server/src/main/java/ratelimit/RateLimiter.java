@@ -0,0 +1,60 @@
+package ratelimit;
+
+import network.Connection;
+import packet.Command;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Per connection limits: one bucket for everything the connection sends and one per
+ * limited command, created with the connection's first packet and dropped with it.
+ * A check is a map lookup and one or two bucket takes, nothing is allocated.
+ * Room limits live with the rooms, see RoomService.
+ */
+public class RateLimiter {
+    public static final String SESSION = "session";
+
+    private final RateLimitSettings settings;
+    private final Map<Connection, SessionBuckets> sessions = new ConcurrentHashMap<>();
+
+    /* Buckets of one connection, those of unlimited commands are null */
+    private static final class SessionBuckets {
+        private final TokenBucket session;
+        private final TokenBucket[] byCommand = new TokenBucket[Command.values().length];
+
+        private SessionBuckets(RateLimitSettings settings) {
+            this.session = settings.getSession().newBucket();
+            settings.getCommands().forEach((command, limit) -> byCommand[command.ordinal()] = limit.newBucket());
+        }
+    }
+
+    public RateLimiter(RateLimitSettings settings) {
+        this.settings = settings;
+    }
+
+    /* Null when the packet may go through, the name of the exhausted limit otherwise */
+    public String check(Connection connection, Command command) {
+        SessionBuckets buckets = sessions.get(connection);
+        if (buckets == null) {
+            SessionBuckets created = new SessionBuckets(settings);
+            buckets = sessions.putIfAbsent(connection, created);
+            if (buckets == null) {
+                buckets = created;
+            }
+        }
+
+        if (buckets.session != null && !buckets.session.tryAcquire()) {
+            return SESSION;
+        }
+        TokenBucket commandBucket = command == null ? null : buckets.byCommand[command.ordinal()];
+        if (commandBucket != null && !commandBucket.tryAcquire()) {
+            return command.name();
+        }
+        return null;
+    }
+
+    public void forget(Connection connection) {
+        sessions.remove(connection);
+    }
+}
@@ -0,0 +1,37 @@
+package ratelimit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A token bucket kept as a single timestamp: the time at which the bucket would be full
+ * again if nothing else were taken (the generic cell rate algorithm). Taking a token moves
+ * it one refill interval later, and a take is refused while that would put it more than
+ * the burst ahead of now. One compare-and-set per check, no lock and nothing allocated,
+ * so any number of threads can draw from the same bucket.
+ */
+public final class TokenBucket {
+    private final long refillNanos;
+    /* How far ahead of now the full time may run, burst - 1 tokens taken at once */
+    private final long toleranceNanos;
+    private final AtomicLong fullAt = new AtomicLong(System.nanoTime());
+
+    public TokenBucket(double perSecond, int burst) {
+        this.refillNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        this.toleranceNanos = refillNanos * (Math.max(1, burst) - 1);
+    }
+
+    public boolean tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long base = current - now > 0 ? current : now;
+            if (base - now > toleranceNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, base + refillNanos)) {
+                return true;
+            }
+        }
+    }
+}
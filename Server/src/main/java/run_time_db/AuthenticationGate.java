@@ -0,0 +1,82 @@
+package run_time_db;
+
+import packet.Packet;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.function.Supplier;
+
+/*
+ * Keeps a connection's packets in order while its LOGIN or REGISTER is verified off-thread.
+ * Whatever the client pipelined behind it (create room, join rooms...) is held here and
+ * replayed once the answer is out, so it runs against the session the login opened.
+ * It also tells a verification finishing late that its connection closed meanwhile.
+ */
+final class AuthenticationGate {
+    private final Queue<Packet> held = new ArrayDeque<>();
+    private boolean verifying;
+    /* A packet handed out by next() is being dispatched, it may be a LOGIN that reuses this gate */
+    private boolean dispatching;
+    private boolean open;
+    private boolean connectionClosed;
+
+    /* False once the gate is open, the caller then dispatches the packet itself */
+    synchronized boolean hold(Packet packet) {
+        if (open) {
+            return false;
+        }
+        /* Decoded now, its bytes may be a view of a receive buffer that is reused once dispatch returns */
+        packet.getMessage();
+        held.add(packet);
+        return true;
+    }
+
+    synchronized boolean isOpen() {
+        return open;
+    }
+
+    /* The connection's teardown marks it before taking its session offline, held packets are dropped */
+    synchronized void connectionClosed() {
+        connectionClosed = true;
+        held.clear();
+    }
+
+    /* Nothing left that could use this gate, it can leave the connection's entry */
+    synchronized boolean isDone() {
+        return open || (connectionClosed && !verifying && !dispatching);
+    }
+
+    /*
+     * Runs the action (bringing the session online) unless the connection has closed, null then.
+     * The teardown waits for it otherwise, so it always sees the session it has to take offline.
+     */
+    synchronized <T> T unlessClosed(Supplier<T> action) {
+        return connectionClosed ? null : action.get();
+    }
+
+    synchronized void verificationStarted() {
+        verifying = true;
+    }
+
+    synchronized void verificationFinished() {
+        verifying = false;
+    }
+
+    /*
+     * The next held packet to dispatch, or null when there is none: either a held
+     * LOGIN started another verification, or the queue is drained and the gate opens.
+     */
+    synchronized Packet next() {
+        dispatching = false;
+        if (verifying || connectionClosed) {
+            return null;
+        }
+
+        Packet packet = held.poll();
+        if (packet == null) {
+            open = true;
+        }
+        dispatching = packet != null;
+        return packet;
+    }
+}
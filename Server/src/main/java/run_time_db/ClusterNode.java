@@ -0,0 +1,70 @@
+package run_time_db;
+
+import cluster.LocalNode;
+import history.MessageHistory;
+import network.OutboundFrame;
+import packet.Packet;
+import packet.User;
+
+import java.util.Collection;
+
+/* This node as the cluster sees it, backed by the local registries */
+public class ClusterNode implements LocalNode {
+    @Override
+    public Collection<String> onlineNicknames() {
+        return UserManagement.INSTANCE.getAuthenticatedUsers().stream().map(User::getNickname).toList();
+    }
+
+    @Override
+    public Collection<User> accounts() {
+        return UserManagement.INSTANCE.getRegisteredUsers();
+    }
+
+    @Override
+    public void applyAccount(String nickname, String passwordHash, long version) {
+        UserManagement.INSTANCE.applyReplicatedAccount(nickname, passwordHash, version);
+    }
+
+    @Override
+    public void deliverBroadcast(OutboundFrame frame) {
+        OutboundFrame local = withLocalSequenceSlot(frame);
+        UserManagement.INSTANCE.deliverBroadcast(local, local.packet().getUser().getNickname());
+    }
+
+    @Override
+    public void deliverRoom(OutboundFrame frame) {
+        OutboundFrame local = withLocalSequenceSlot(frame);
+        Packet packet = local.packet();
+        RoomService.INSTANCE.deliverRoomMessage(local, packet.getRoomName(), packet.getUser().getNickname());
+    }
+
+    /*
+     * Sequences are per node, this node's history stamps its own into the slot the origin left blank.
+     * Only when one of the two keeps history and the other does not is the frame encoded again.
+     */
+    private static OutboundFrame withLocalSequenceSlot(OutboundFrame frame) {
+        boolean historyEnabled = MessageHistory.INSTANCE.isEnabled();
+        if (frame.hasSequenceSlot() == historyEnabled) {
+            return frame;
+        }
+        /* The blank slot of the origin decodes as sequence 0, it is no sequence of this node */
+        Packet packet = frame.packet();
+        packet.setSequence(null);
+        OutboundFrame local = OutboundFrame.message(packet, historyEnabled);
+        frame.release();
+        return local;
+    }
+
+    @Override
+    public void deliverDirect(OutboundFrame frame) {
+        UserManagement.INSTANCE.deliverDirect(frame);
+    }
+
+    @Override
+    public void remotePresenceChanged(String nickname, boolean online) {
+        /* Whoever is still online here has not gone anywhere */
+        if (online || UserManagement.INSTANCE.findOnlineUser(nickname).isEmpty()) {
+            Presence.INSTANCE.changed(nickname, online);
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package run_time_db;
+
+import auth.Authenticator;
+import history.MessageHistory;
+import metrics.PacketLog;
+import metrics.ServerMetrics;
+import network.Connection;
+import network.OutboundFrame;
+import network.PacketHandler;
+import packet.Command;
+import packet.Packet;
+import packet.User;
+import ratelimit.RateLimiter;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * Command dispatch shared by every engine (blocking threads and NIO event loops).
+ * Room and message work is handed to the room's (or recipient's) shard, so replies
+ * to room commands are sent from there once the shard has applied them.
+ */
+public class CommandDispatcher implements PacketHandler {
+    /* Refusals of uncorrelated packets (messages) share one notice per limit */
+    private static final Map<String, OutboundFrame> THROTTLE_NOTICES = new ConcurrentHashMap<>();
+
+    private final Authenticator authenticator;
+    private final RateLimiter rateLimiter;
+    /* Only connections with a LOGIN or REGISTER in flight have an entry */
+    private final Map<Connection, AuthenticationGate> gates = new ConcurrentHashMap<>();
+
+    public CommandDispatcher(Authenticator authenticator, RateLimiter rateLimiter) {
+        this.authenticator = authenticator;
+        this.rateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void onPacket(Connection connection, Packet receivedPacket) {
+        PacketLog.INSTANCE.received(receivedPacket);
+
+        /* Checked on arrival, so a flood is refused even while a login holds the connection's packets */
+        String exhausted = rateLimiter.check(connection, receivedPacket.getCommand());
+        if (exhausted != null) {
+            throttle(connection, receivedPacket, exhausted);
+            return;
+        }
+
+        AuthenticationGate gate = gates.get(connection);
+        if (gate != null && gate.hold(receivedPacket)) {
+            return;
+        }
+        dispatch(connection, receivedPacket);
+    }
+
+    private void dispatch(Connection connection, Packet receivedPacket) {
+        long start = System.nanoTime();
+        try {
+            execute(connection, receivedPacket);
+        } catch (RejectedExecutionException e) {
+            /* An event loop found a shard's queue full, it must not wait for it (see Shards) */
+            respond(connection, receivedPacket, Packet.builder().message("Server busy").build());
+        } finally {
+            ServerMetrics.INSTANCE.packetReceived(receivedPacket.getCommand(), System.nanoTime() - start);
+        }
+    }
+
+    private void execute(Connection connection, Packet receivedPacket) {
+        if (receivedPacket.getCommand() == null) {
+            respond(connection, receivedPacket, Packet.builder().message("Invalid command").build());
+            return;
+        }
+        if (receivedPacket.getCommand() != Command.LOGIN && receivedPacket.getCommand() != Command.REGISTER) {
+            Optional<User> sender = UserManagement.INSTANCE.resolveSender(connection, receivedPacket.getUser());
+            if (sender.isEmpty() && receivedPacket.getUser() != null) {
+                respond(connection, receivedPacket, Packet.builder().message("Unknown session").build());
+                return;
+            }
+            receivedPacket.setUser(sender.orElse(null));
+        }
+
+        String rejection = rejection(receivedPacket);
+        if (rejection != null) {
+            respond(connection, receivedPacket, Packet.builder().message(rejection).build());
+            return;
+        }
+
+        Packet responsePacket = null;
+
+        switch (receivedPacket.getCommand()) {
+            /* Both are answered from the hashing workers (or the store's commit thread), never blocking this one */
+            case LOGIN -> authenticate(connection, receivedPacket, authenticator.login(receivedPacket.getUser()), "User not found");
+            case REGISTER -> authenticate(connection, receivedPacket, authenticator.register(receivedPacket.getUser()), "User not registered");
+            case MESSAGE_ALL -> {
+                UserManagement.INSTANCE.broadcastMessage(receivedPacket);
+            }
+            case MESSAGE_INDIVIDUAL -> {
+                UserManagement.INSTANCE.individualMessage(receivedPacket);
+            }
+            case JOIN_ROOM -> {
+                String roomName = receivedPacket.getRoomName();
+                /* Where the room stands, on its shard: a client that reconnects catches up from there */
+                RoomService.INSTANCE.joinRoom(roomName, receivedPacket.getUser()).thenRun(() -> respond(connection, receivedPacket, Packet.builder()
+                        .message("Joined room: " + roomName)
+                        .sequence(MessageHistory.INSTANCE.lastSequence(MessageHistory.roomChannel(roomName)))
+                        .command(Command.JOIN_ROOM)
+                        .build()));
+            }
+            case LEAVE_ROOM -> {
+                String roomName = receivedPacket.getRoomName();
+                RoomService.INSTANCE.leaveRoom(roomName, receivedPacket.getUser()).thenAccept(left -> respond(connection, receivedPacket, Packet.builder()
+                        .message((left ? "Left room: " : "Not a member of room: ") + roomName)
+                        .command(Command.LEAVE_ROOM)
+                        .build()));
+            }
+            case CREATE_ROOM -> {
+                String roomName = receivedPacket.getRoomName();
+                RoomService.INSTANCE.createRoom(roomName, receivedPacket.getUser()).thenRun(() -> respond(connection, receivedPacket, Packet.builder()
+                        .message("Room created: " + roomName)
+                        .command(Command.CREATE_ROOM)
+                        .build()));
+            }
+            case MESSAGE_ROOM -> {
+                if (!RoomService.INSTANCE.roomMessage(receivedPacket)) {
+                    throttle(connection, receivedPacket, RoomService.ROOM_LIMIT);
+                }
+            }
+            case PING -> {
+                /* Any packet keeps a connection alive, this one only exists to do so and to measure round trips */
+                responsePacket = Packet.builder().command(Command.PING).build();
+            }
+            case HISTORY -> {
+                /* Public chat history without a room name, the room's otherwise (members only) */
+                String roomName = receivedPacket.getRoomName();
+                if (roomName == null) {
+                    Shards.INSTANCE.execute(MessageHistory.BROADCAST_CHANNEL, () -> replayHistory(connection, receivedPacket));
+                } else {
+                    /* Replayed on the room's shard, so no live message slips in between the replay and the reply */
+                    RoomService.INSTANCE.isMember(roomName, receivedPacket.getUser()).thenAccept(isMember -> {
+                        if (isMember) {
+                            replayHistory(connection, receivedPacket);
+                        } else {
+                            respond(connection, receivedPacket, Packet.builder().message("Not a member of room: " + roomName).build());
+                        }
+                    });
+                }
+            }
+            case LIST_ROOMS, LIST_USERS -> {
+                int size = Pages.size(receivedPacket.getSequence());
+                String cursor = receivedPacket.getMessage();
+                responsePacket = page(receivedPacket.getCommand(), null, receivedPacket.getCommand() == Command.LIST_ROOMS
+                        ? RoomService.INSTANCE.roomsAfter(cursor, size)
+                        : UserManagement.INSTANCE.onlineNicknamesAfter(cursor, size), size);
+            }
+            case LIST_MEMBERS -> {
+                String roomName = receivedPacket.getRoomName();
+                int size = Pages.size(receivedPacket.getSequence());
+                RoomService.INSTANCE.membersAfter(roomName, receivedPacket.getMessage(), size).thenAccept(members ->
+                        respond(connection, receivedPacket, page(Command.LIST_MEMBERS, roomName, members, size)));
+            }
+            case SUBSCRIBE_PRESENCE, UNSUBSCRIBE_PRESENCE -> {
+                /* Subscribe first, then list the users: a change in between arrives as a delta */
+                boolean subscribe = receivedPacket.getCommand() == Command.SUBSCRIBE_PRESENCE;
+                if (subscribe) {
+                    Presence.INSTANCE.subscribe(connection);
+                } else {
+                    Presence.INSTANCE.unsubscribe(connection);
+                }
+                responsePacket = Packet.builder()
+                        .message(subscribe ? "Subscribed to presence" : "Unsubscribed from presence")
+                        .command(receivedPacket.getCommand())
+                        .build();
+            }
+            default -> {
+                responsePacket = Packet.builder().message("Invalid command").build();
+            }
+        }
+
+        if (responsePacket != null) {
+            respond(connection, receivedPacket, responsePacket);
+        }
+    }
+
+    /* Why a packet cannot be executed, checked before any of it is dereferenced; null when it can */
+    private static String rejection(Packet packet) {
+        Command command = packet.getCommand();
+        if (command == Command.LOGIN || command == Command.REGISTER || command == Command.PING) {
+            return null;
+        }
+        if (packet.getUser() == null) {
+            return "Login required";
+        }
+        return switch (command) {
+            case MESSAGE_ROOM, JOIN_ROOM, LEAVE_ROOM, CREATE_ROOM, LIST_MEMBERS -> packet.getRoomName() == null ? "Room name required" : null;
+            case MESSAGE_INDIVIDUAL -> packet.getUserRecipient() == null || packet.getUserRecipient().getNickname() == null ? "Recipient required" : null;
+            default -> null;
+        };
+    }
+
+    private void replayHistory(Connection connection, Packet request) {
+        String roomName = request.getRoomName();
+        String channel = roomName == null ? MessageHistory.BROADCAST_CHANNEL : MessageHistory.roomChannel(roomName);
+        long since = request.getSequence() == null ? 0 : request.getSequence();
+        long last = MessageHistory.INSTANCE.replay(channel, since, connection::sendFrame);
+        /* Carries the last sequence sent, the next page starts from there */
+        respond(connection, request, Packet.builder()
+                .message("History end")
+                .roomName(roomName)
+                .sequence(last)
+                .command(Command.HISTORY)
+                .build());
+    }
+
+    /* The message is where the next page starts, absent on the last one */
+    private static Packet page(Command command, String roomName, ArrayList<String> names, int size) {
+        return Packet.builder()
+                .message(Pages.nextCursor(names, size))
+                .roomName(roomName)
+                .names(names)
+                .command(command)
+                .build();
+    }
+
+    /* Answers carry the request's correlation id, so pipelining clients can match them */
+    private void respond(Connection connection, Packet request, Packet response) {
+        response.setCorrelationId(request.getCorrelationId());
+        connection.send(response);
+    }
+
+    private void throttle(Connection connection, Packet request, String exhausted) {
+        ServerMetrics.INSTANCE.packetThrottled(request.getCommand());
+        if (request.getCorrelationId() == null) {
+            connection.sendFrame(THROTTLE_NOTICES.computeIfAbsent(exhausted, limit -> new OutboundFrame(throttleNotice(limit))));
+        } else {
+            respond(connection, request, throttleNotice(exhausted));
+        }
+    }
+
+    private static Packet throttleNotice(String exhausted) {
+        return Packet.builder()
+                .message("Rate limit exceeded: " + exhausted)
+                .command(Command.THROTTLED)
+                .build();
+    }
+
+    private void authenticate(Connection connection, Packet request, CompletableFuture<Optional<User>> authentication, String failure) {
+        AuthenticationGate gate = gates.compute(connection, (c, current) -> current == null || current.isOpen() ? new AuthenticationGate() : current);
+        gate.verificationStarted();
+
+        authentication.whenComplete((optionalUser, error) -> {
+            respond(connection, request, authenticationResponse(connection, gate, request.getCommand(), optionalUser, error, failure));
+            if (error == null && optionalUser.isPresent()) {
+                /* After the answer, the client knows who it is before its missed messages arrive */
+                UserManagement.INSTANCE.deliverMailbox(optionalUser.get());
+            }
+            gate.verificationFinished();
+            release(connection, gate);
+        });
+    }
+
+    private Packet authenticationResponse(Connection connection, AuthenticationGate gate, Command command, Optional<User> optionalUser, Throwable error, String failure) {
+        if (error != null) {
+            boolean busy = error instanceof RejectedExecutionException || error.getCause() instanceof RejectedExecutionException;
+            return Packet.builder().message(busy ? "Server busy, try again" : failure).build();
+        }
+        if (optionalUser.isEmpty()) {
+            return Packet.builder().message(failure).build();
+        }
+
+        /* The connection may have closed while the password was hashed, its session must not come online then */
+        Packet success = gate.unlessClosed(() -> openSession(connection, command, optionalUser.get()));
+        return success != null ? success : Packet.builder().message("Connection closed").build();
+    }
+
+    private Packet openSession(Connection connection, Command command, User user) {
+        String token = UserManagement.INSTANCE.openSession(user);
+        /* Read before going online: every later message is either sent live or after this sequence for a catch-up */
+        Long publicSequence = MessageHistory.INSTANCE.lastSequence(MessageHistory.BROADCAST_CHANNEL);
+        UserManagement.INSTANCE.connect(user, connection);
+
+        /* Never echo the stored hash, the client gets its nickname, the token to use from now on and where the public chat stands */
+        return Packet.builder()
+                .message("Success")
+                .user(User.builder().nickname(user.getNickname()).sessionToken(token).build())
+                .sequence(publicSequence)
+                .command(command)
+                .build();
+    }
+
+    /* Replays what was held during the verification, on the thread that finished it */
+    private void release(Connection connection, AuthenticationGate gate) {
+        Packet next;
+        while ((next = gate.next()) != null) {
+            dispatch(connection, next);
+        }
+        gates.computeIfPresent(connection, (c, current) -> current == gate && gate.isDone() ? null : current);
+    }
+
+    @Override
+    public void onDisconnect(Connection connection) {
+        /* A gate with a verification in flight stays until its release, a LOGIN it still replays finds it closed */
+        gates.computeIfPresent(connection, (c, gate) -> {
+            gate.connectionClosed();
+            return gate.isDone() ? null : gate;
+        });
+        rateLimiter.forget(connection);
+        Presence.INSTANCE.unsubscribe(connection);
+        UserManagement.INSTANCE.disconnect(connection).ifPresent(user -> {
+            RoomService.INSTANCE.leaveAllRooms(user);
+            authenticator.sessionClosed(user);
+        });
+    }
+}
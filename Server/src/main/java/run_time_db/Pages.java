@@ -0,0 +1,65 @@
+package run_time_db;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+
+/*
+ * Cursor pagination over sorted indexes. The cursor is the last name of the previous page,
+ * a page is whatever follows it: O(log n + page size) however deep into the listing it is,
+ * and nothing is copied but the page itself.
+ */
+final class Pages {
+    static final int DEFAULT_SIZE = 100;
+    static final int MAX_SIZE = 1000;
+
+    private Pages() {
+    }
+
+    /* The page size a request asked for, within bounds */
+    static int size(Long requested) {
+        return requested == null || requested <= 0 ? DEFAULT_SIZE : (int) Math.min(requested, MAX_SIZE);
+    }
+
+    static NavigableSet<String> after(NavigableSet<String> names, String cursor) {
+        return cursor == null ? names : names.tailSet(cursor, false);
+    }
+
+    static ArrayList<String> first(Iterable<String> names, int size) {
+        ArrayList<String> page = new ArrayList<>(size);
+        Iterator<String> iterator = names.iterator();
+        while (page.size() < size && iterator.hasNext()) {
+            page.add(iterator.next());
+        }
+        return page;
+    }
+
+    /* The first names of two sorted sequences together, a name found in both is listed once */
+    static ArrayList<String> merged(Iterable<String> first, Iterable<String> second, int size) {
+        ArrayList<String> page = new ArrayList<>(size);
+        Iterator<String> left = first.iterator();
+        Iterator<String> right = second.iterator();
+        String nextLeft = left.hasNext() ? left.next() : null;
+        String nextRight = right.hasNext() ? right.next() : null;
+        while (page.size() < size && (nextLeft != null || nextRight != null)) {
+            int order = nextLeft == null ? 1 : nextRight == null ? -1 : nextLeft.compareTo(nextRight);
+            if (order <= 0) {
+                page.add(nextLeft);
+                nextLeft = left.hasNext() ? left.next() : null;
+            }
+            if (order >= 0) {
+                if (order > 0) {
+                    page.add(nextRight);
+                }
+                nextRight = right.hasNext() ? right.next() : null;
+            }
+        }
+        return page;
+    }
+
+    /* Where the page after this one starts, null when this one is the last */
+    static String nextCursor(List<String> page, int size) {
+        return page.size() < size ? null : page.get(page.size() - 1);
+    }
+}
@@ -0,0 +1,103 @@
+package run_time_db;
+
+import network.Connection;
+import network.OutboundFrame;
+import packet.Command;
+import packet.Packet;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Presence deltas pushed to the sessions that subscribed, so nobody polls the user listing.
+ * Changes are coalesced per nickname, only the latest state counts, and published every
+ * PUBLISH_INTERVAL_MILLIS as PRESENCE frames of "+nickname" (came online) and "-nickname"
+ * (went offline). Each frame is encoded once for every subscriber, and a login storm costs
+ * them a few frames rather than one per login. Nothing is recorded while nobody subscribed.
+ */
+public enum Presence {
+    INSTANCE;
+
+    private static final long PUBLISH_INTERVAL_MILLIS = 250;
+    /* Keeps frames well below PacketCodec.MAX_FRAME_SIZE */
+    private static final int NAMES_PER_FRAME = 1000;
+
+    private final Set<Connection> subscribers = ConcurrentHashMap.newKeySet();
+    /* Nickname to whether it is online now */
+    private final Map<String, Boolean> pending = new ConcurrentHashMap<>();
+    private Thread publisher;
+
+    public void subscribe(Connection connection) {
+        subscribers.add(connection);
+        startPublisher();
+    }
+
+    public void unsubscribe(Connection connection) {
+        subscribers.remove(connection);
+    }
+
+    public void changed(String nickname, boolean online) {
+        if (!subscribers.isEmpty()) {
+            pending.put(nickname, online);
+        }
+    }
+
+    private synchronized void startPublisher() {
+        if (publisher != null) {
+            return;
+        }
+        publisher = new Thread(this::publishPeriodically, "presence-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    private void publishPeriodically() {
+        while (true) {
+            try {
+                Thread.sleep(PUBLISH_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            publish();
+        }
+    }
+
+    private void publish() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (subscribers.isEmpty()) {
+            pending.clear();
+            return;
+        }
+
+        ArrayList<String> names = new ArrayList<>();
+        for (String nickname : pending.keySet()) {
+            /* A change made after this remove stays pending for the next round */
+            Boolean online = pending.remove(nickname);
+            if (online == null) {
+                continue;
+            }
+            names.add((online ? "+" : "-") + nickname);
+            if (names.size() == NAMES_PER_FRAME) {
+                send(names);
+                names = new ArrayList<>();
+            }
+        }
+        if (!names.isEmpty()) {
+            send(names);
+        }
+    }
+
+    private void send(ArrayList<String> names) {
+        OutboundFrame frame = new OutboundFrame(Packet.builder()
+                .names(names)
+                .command(Command.PRESENCE)
+                .build());
+        for (Connection subscriber : subscribers) {
+            subscriber.sendFrame(frame);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package run_time_db;
+
+import cluster.Cluster;
+import history.MessageHistory;
+import metrics.ServerMetrics;
+import network.EventLoop;
+import network.OutboundFrame;
+import packet.Command;
+import packet.Packet;
+import packet.User;
+import ratelimit.RateLimitSettings;
+import ratelimit.TokenBucket;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/*
+ * Single owner of room membership. Every room belongs to one dispatch shard (see Shards),
+ * and only that shard's thread ever reads or changes its members: joins, leaves and
+ * fan-out are plain map operations without locks or copies, applied in the order they
+ * were submitted. Methods can be called from any thread, they hand the work to the shard;
+ * results the caller has to wait for come back as futures completed on the shard thread.
+ *
+ * The exceptions are each room's rate limit, taken by senders on their own threads
+ * before the message is handed over, and the sorted index of room names for listings;
+ * both are lock-free and updated when the room is made or removed.
+ *
+ * A room only exists while it has members: its creator is the first, and it goes away
+ * with the last one, so joining and leaving names cannot pile up rooms.
+ */
+public enum RoomService {
+    INSTANCE;
+
+    public static final String ROOM_LIMIT = "room";
+
+    private volatile RoomShard[] shards;
+    private volatile RateLimitSettings.Limit roomLimit = RateLimitSettings.Limit.NONE;
+    /* Only rooms with members have one, it is removed with the room */
+    private final Map<String, TokenBucket> roomBuckets = new ConcurrentHashMap<>();
+    /* Names of the rooms that have members, so listings never page through emptied ones */
+    private final NavigableSet<String> roomNames = new ConcurrentSkipListSet<>();
+
+    /* State owned by one shard thread */
+    private static final class RoomShard {
+        /* Room name to its members, sorted by nickname for listings */
+        private final Map<String, NavigableMap<String, User>> rooms = new HashMap<>();
+        /* Reverse index so a closing session leaves every room it joined without scanning all rooms */
+        private final Map<String, Set<String>> roomsByMember = new HashMap<>();
+    }
+
+    /* Applies to rooms created from now on */
+    public void limitRooms(RateLimitSettings.Limit limit) {
+        roomLimit = limit;
+    }
+
+    /* The creator joins it, an empty room would be removed again */
+    public CompletableFuture<Void> createRoom(String roomName, User creator) {
+        return joinRoom(roomName, creator);
+    }
+
+    public CompletableFuture<Void> joinRoom(String roomName, User user) {
+        return onShard(roomName, shard -> {
+            room(shard, roomName).put(user.getNickname(), user);
+            shard.roomsByMember.computeIfAbsent(user.getNickname(), k -> new HashSet<>()).add(roomName);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Boolean> leaveRoom(String roomName, User user) {
+        return onShard(roomName, shard -> {
+            Set<String> memberRooms = shard.roomsByMember.get(user.getNickname());
+            if (memberRooms != null && memberRooms.remove(roomName) && memberRooms.isEmpty()) {
+                shard.roomsByMember.remove(user.getNickname());
+            }
+            return removeMember(shard, roomName, user);
+        });
+    }
+
+    /* Completes on the room's shard, so whatever the caller chains runs in order with the room's messages */
+    public CompletableFuture<Boolean> isMember(String roomName, User user) {
+        return onShard(roomName, shard -> {
+            Map<String, User> members = shard.rooms.get(roomName);
+            return members != null && members.get(user.getNickname()) == user;
+        });
+    }
+
+    /* The rooms of this node with members, named after the cursor, from any thread */
+    public ArrayList<String> roomsAfter(String cursor, int size) {
+        return Pages.first(Pages.after(roomNames, cursor), size);
+    }
+
+    /* Members of a room named after the cursor, read on the room's shard; empty when there is no such room */
+    public CompletableFuture<ArrayList<String>> membersAfter(String roomName, String cursor, int size) {
+        return onShard(roomName, shard -> {
+            NavigableMap<String, User> members = shard.rooms.get(roomName);
+            return members == null ? new ArrayList<String>() : Pages.first(Pages.after(members.navigableKeySet(), cursor), size);
+        });
+    }
+
+    /*
+     * Disconnect cleanup, so dead sessions are never iterated by room fan-out again. A fan-out that
+     * overflows a client closes it on the shard thread, which must then hand the cleanup over without
+     * blocking, and not run it inline either: the fan-out may be iterating one of these rooms.
+     * An event loop must not block either, and the cleanup cannot be refused.
+     */
+    public void leaveAllRooms(User user) {
+        RoomShard[] current = shards();
+        boolean fromShard = Shards.INSTANCE.isShardThread() || EventLoop.isEventLoopThread();
+        for (int i = 0; i < current.length; i++) {
+            RoomShard shard = current[i];
+            Runnable leave = () -> {
+                Set<String> memberRooms = shard.roomsByMember.remove(user.getNickname());
+                if (memberRooms == null) {
+                    return;
+                }
+
+                for (String roomName : memberRooms) {
+                    removeMember(shard, roomName, user);
+                }
+            };
+            if (fromShard) {
+                Shards.INSTANCE.executeFromShard(i, leave);
+            } else {
+                Shards.INSTANCE.execute(i, leave);
+            }
+        }
+    }
+
+    /* Returns false when the room's rate limit refused the message */
+    public boolean roomMessage(Packet packet) {
+        TokenBucket bucket = roomBuckets.get(packet.getRoomName());
+        if (bucket != null && !bucket.tryAcquire()) {
+            return false;
+        }
+
+        OutboundFrame frame = UserManagement.INSTANCE.messageFrame(packet, Command.MESSAGE_ROOM);
+        /* Membership is per node, every peer delivers to the members it holds */
+        Cluster.INSTANCE.forwardRoom(frame);
+        deliverRoomMessage(frame, packet.getRoomName(), packet.getUser().getNickname());
+        return true;
+    }
+
+    /* Fan-out to the room members of this node, for local messages and those forwarded by a peer; takes over the caller's frame reference */
+    void deliverRoomMessage(OutboundFrame frame, String roomName, String sender) {
+        int index = Shards.INSTANCE.shardOf(roomName);
+        RoomShard shard = shards()[index];
+        Shards.INSTANCE.execute(index, frame, () -> {
+            try {
+                Map<String, User> roomUsers = shard.rooms.get(roomName);
+                if (roomUsers == null) {
+                    return;
+                }
+
+                MessageHistory.INSTANCE.record(MessageHistory.roomChannel(roomName), frame);
+                int recipients = 0;
+                for (User user : roomUsers.values()) {
+                    boolean isNotSameUser = !sender.equals(user.getNickname());
+
+                    if (isNotSameUser && UserManagement.INSTANCE.sendMessageToUser(frame, user)) {
+                        recipients++;
+                    }
+                }
+                ServerMetrics.INSTANCE.roomFanout(recipients);
+            } finally {
+                frame.release();
+            }
+        });
+    }
+
+    /* Shard thread only. The room, its name and its rate limit go with its last member */
+    private boolean removeMember(RoomShard shard, String roomName, User user) {
+        Map<String, User> members = shard.rooms.get(roomName);
+        if (members == null || !members.remove(user.getNickname(), user)) {
+            return false;
+        }
+        if (members.isEmpty()) {
+            shard.rooms.remove(roomName);
+            roomNames.remove(roomName);
+            roomBuckets.remove(roomName);
+        }
+        return true;
+    }
+
+    /* Members of a room, the room (and its rate limit) made on first use */
+    private Map<String, User> room(RoomShard shard, String roomName) {
+        NavigableMap<String, User> members = shard.rooms.get(roomName);
+        if (members == null) {
+            members = new TreeMap<>();
+            shard.rooms.put(roomName, members);
+            roomNames.add(roomName);
+            TokenBucket bucket = roomLimit.newBucket();
+            if (bucket != null) {
+                roomBuckets.put(roomName, bucket);
+            }
+        }
+        return members;
+    }
+
+    private <T> CompletableFuture<T> onShard(String roomName, Function<RoomShard, T> operation) {
+        int index = Shards.INSTANCE.shardOf(roomName);
+        RoomShard shard = shards()[index];
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Shards.INSTANCE.execute(index, () -> {
+            try {
+                result.complete(operation.apply(shard));
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+
+    /* One state per shard, created once the shard count is settled */
+    private RoomShard[] shards() {
+        RoomShard[] current = shards;
+        if (current == null) {
+            synchronized (this) {
+                if (shards == null) {
+                    RoomShard[] created = new RoomShard[Shards.INSTANCE.count()];
+                    for (int i = 0; i < created.length; i++) {
+                        created[i] = new RoomShard();
+                    }
+                    shards = created;
+                }
+                current = shards;
+            }
+        }
+        return current;
+    }
+}
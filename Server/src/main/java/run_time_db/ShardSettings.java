@@ -0,0 +1,27 @@
+package run_time_db;
+
+import lombok.Builder;
+import lombok.Data;
+
+/* Dispatch shard configuration, read from --shards and --shard-queue */
+@Data
+@Builder
+public class ShardSettings {
+    @Builder.Default
+    private int shards = Runtime.getRuntime().availableProcessors();
+    /* Tasks waiting per shard, submitters block beyond it so a hot room slows its senders down */
+    @Builder.Default
+    private int queueCapacity = 64 * 1024;
+
+    public static ShardSettings fromArgs(String[] args) {
+        ShardSettingsBuilder settings = ShardSettings.builder();
+        for (String arg : args) {
+            if (arg.startsWith("--shards=")) {
+                settings.shards(Integer.parseInt(arg.substring("--shards=".length())));
+            } else if (arg.startsWith("--shard-queue=")) {
+                settings.queueCapacity(Integer.parseInt(arg.substring("--shard-queue=".length())));
+            }
+        }
+        return settings.build();
+    }
+}
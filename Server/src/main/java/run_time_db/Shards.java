@@ -0,0 +1,166 @@
+package run_time_db;
+
+import network.EventLoop;
+import network.OutboundFrame;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Fixed set of single-threaded workers. All work keyed by one room (or one direct message
+ * recipient) runs on the same worker in submission order: the state it owns needs no locks,
+ * and every member of a room sees two senders' messages in the same order. Distinct rooms
+ * spread over the workers, so throughput grows with cores when traffic spans many rooms.
+ *
+ * Shard tasks must never block submitting to a shard, their own queue or another's may be
+ * full and only they can drain it: from a shard thread use executeFromShard(). Neither may
+ * event loops, a shard may be waiting for them to drain a connection: execute() refuses
+ * their task when the queue is full, work that cannot be refused goes through executeFromShard().
+ */
+public enum Shards {
+    INSTANCE;
+
+    private volatile Worker[] workers;
+
+    /* Startup only, before the first task; without it the defaults are used */
+    public synchronized void start(ShardSettings settings) {
+        if (workers == null) {
+            workers = createWorkers(settings);
+        }
+    }
+
+    public int count() {
+        return workers().length;
+    }
+
+    public int shardOf(String key) {
+        int hash = key.hashCode();
+        return Math.floorMod(hash ^ (hash >>> 16), workers().length);
+    }
+
+    public void execute(String key, Runnable task) {
+        execute(shardOf(key), task);
+    }
+
+    /* Waits for room in the shard's queue, or throws RejectedExecutionException on an event loop */
+    public void execute(int shard, Runnable task) {
+        Worker worker = workers()[shard];
+        if (!EventLoop.isEventLoopThread()) {
+            worker.execute(task);
+        } else if (!worker.tasks.offer(task)) {
+            throw new RejectedExecutionException("Shard " + shard + " is full");
+        }
+    }
+
+    public void execute(String key, OutboundFrame frame, Runnable task) {
+        execute(shardOf(key), frame, task);
+    }
+
+    /* For a task that takes over the caller's frame reference: a refused task releases it */
+    public void execute(int shard, OutboundFrame frame, Runnable task) {
+        try {
+            execute(shard, task);
+        } catch (RejectedExecutionException e) {
+            frame.release();
+            throw e;
+        }
+    }
+
+    public boolean isShardThread() {
+        for (Worker worker : workers()) {
+            if (worker.thread == Thread.currentThread()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void executeFromShard(String key, Runnable task) {
+        executeFromShard(shardOf(key), task);
+    }
+
+    /*
+     * Never blocks: when the queue is full, a virtual thread waits for room in it instead of the caller.
+     * For shards, and for event loops and writers a shard may be waiting on.
+     */
+    public void executeFromShard(int shard, Runnable task) {
+        Worker worker = workers()[shard];
+        if (!worker.tasks.offer(task)) {
+            Thread.ofVirtual().name("shard-" + shard + "-handoff").start(() -> worker.execute(task));
+        }
+    }
+
+    /* Waits until every worker has run what was submitted before the call, false if the timeout passed first */
+    public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        Worker[] current = workers();
+        CountDownLatch idle = new CountDownLatch(current.length);
+        for (Worker worker : current) {
+            worker.execute(idle::countDown);
+        }
+        return idle.await(timeout, unit);
+    }
+
+    private Worker[] workers() {
+        Worker[] current = workers;
+        if (current == null) {
+            synchronized (this) {
+                if (workers == null) {
+                    workers = createWorkers(ShardSettings.builder().build());
+                }
+                current = workers;
+            }
+        }
+        return current;
+    }
+
+    private static Worker[] createWorkers(ShardSettings settings) {
+        Worker[] created = new Worker[Math.max(1, settings.getShards())];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new Worker(settings.getQueueCapacity());
+            Thread thread = new Thread(created[i], "shard-" + i);
+            thread.setDaemon(true);
+            created[i].thread = thread;
+            thread.start();
+        }
+        return created;
+    }
+
+    private static final class Worker implements Runnable {
+        private final BlockingQueue<Runnable> tasks;
+        private Thread thread;
+
+        Worker(int capacity) {
+            this.tasks = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void execute(Runnable task) {
+            try {
+                tasks.put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = tasks.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    /* One failing task must not take the shard, and all of its rooms, down */
+                    System.out.println("Error in " + Thread.currentThread().getName() + ": " + e);
+                }
+            }
+        }
+    }
+}
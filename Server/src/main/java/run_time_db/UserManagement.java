@@ -1,112 +1,415 @@
 package run_time_db;
 
+import cluster.Cluster;
+import history.Mailboxes;
+import history.MessageHistory;
+import metrics.ServerMetrics;
+import network.Connection;
+import network.OutboundFrame;
 import packet.Command;
 import packet.Packet;
 import packet.User;
+import store.UserStore;
 
-import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+/*
+ * Thread-safe user registry, mutated concurrently by every session thread and event loop.
+ * Registered users and online sessions are separate concurrent indexes keyed by nickname,
+ * so lookups are O(1) and broadcasts only ever walk live sessions. Online nicknames are
+ * also kept sorted, so a page of the user listing is read without copying the others.
+ */
 public enum UserManagement {
     INSTANCE;
 
-    private List<User> users;
-    private Map<String, Set<User>> chatRooms;
+    private static final int SESSION_TOKEN_SIZE = 16;
+
+    private Map<String, User> users;
+    /* Users with a live connection, the only ones broadcasts iterate */
+    private Map<String, User> onlineUsers;
+    private Map<Connection, User> usersByConnection;
+    /* The keys of onlineUsers in order, changed under the lock of their onlineUsers entry */
+    private final NavigableSet<String> onlineNicknames = new ConcurrentSkipListSet<>();
+    /* Null when running purely in memory */
+    private volatile UserStore store;
+    private final SecureRandom random = new SecureRandom();
 
     UserManagement() {
-        this.users = new ArrayList<>(List.of(
-                User.builder().nickname("Mock 1").password("1234").build(),
-                User.builder().nickname("Mock 2").password("1234").build(),
-                User.builder().nickname("Mock 3").password("1234").build()
-        ));
-        this.chatRooms = new HashMap<>();
+        this.users = new ConcurrentHashMap<>();
+        this.onlineUsers = new ConcurrentHashMap<>();
+        this.usersByConnection = new ConcurrentHashMap<>();
+    }
+
+    /* Startup only: loads the stored accounts and makes every later registration durable */
+    public synchronized void attachStore(UserStore store) {
+        List<User> storedUsers = store.load();
+
+        /* Sized up front, a million accounts never trigger a rehash */
+        Map<String, User> loadedUsers = new ConcurrentHashMap<>(Math.max(16, storedUsers.size() + this.users.size()));
+        storedUsers.forEach(user -> loadedUsers.put(user.getNickname(), user));
+        loadedUsers.putAll(this.users);
+        this.users = loadedUsers;
+
+        store.compactFrom(() -> this.users.values());
+        this.store = store;
     }
 
-    public List<User> getAuthenticatedUsers() {
-        return this.users
-                .stream()
-                .filter(user -> Objects.nonNull(user.getSocket()))
-                .toList();
+    /* Live view, nothing is copied per call */
+    public Collection<User> getAuthenticatedUsers() {
+        return Collections.unmodifiableCollection(this.onlineUsers.values());
     }
 
-    public Optional<User> register(User userToRegister) {
+    /* Every account, for the cluster to replicate to a peer that (re)connects */
+    public Collection<User> getRegisteredUsers() {
+        return Collections.unmodifiableCollection(this.users.values());
+    }
+
+    /* Completes once the account is durable, empty if the nickname is taken or could not be stored */
+    public CompletableFuture<Optional<User>> register(User userToRegister) {
         if (userToRegister.getNickname().isEmpty() || userToRegister.getPassword().isEmpty()) {
             throw new IllegalArgumentException("User must have a nickname and a password");
         }
 
-        this.users.add(userToRegister);
-        return Optional.of(userToRegister);
+        userToRegister.setVersion(nextVersion(0));
+        /* putIfAbsent makes concurrent registrations of one nickname race safely, exactly one wins */
+        if (this.users.putIfAbsent(userToRegister.getNickname(), userToRegister) != null) {
+            return CompletableFuture.completedFuture(Optional.empty());
+        }
+        UserStore userStore = this.store;
+        if (userStore == null) {
+            Cluster.INSTANCE.accountChanged(userToRegister);
+            return CompletableFuture.completedFuture(Optional.of(userToRegister));
+        }
+        return userStore.append(userToRegister)
+                .thenApply(durable -> {
+                    Cluster.INSTANCE.accountChanged(userToRegister);
+                    return Optional.of(userToRegister);
+                })
+                .exceptionally(e -> {
+                    /* Not on disk, so it must not exist in memory either */
+                    this.users.remove(userToRegister.getNickname(), userToRegister);
+                    return Optional.empty();
+                });
     }
 
-    public Optional<User> login(User userToLogin) {
-        return this.users
-                .stream()
-                .filter(user -> user.equals(userToLogin))
-                .findFirst();
+    /*
+     * An account registered or rehashed on another node of the cluster, stored here without being sent back.
+     * Only a newer record replaces the one held here; on equal versions the greater hash wins, so two nodes
+     * that changed one account at once settle on the same record instead of swapping theirs.
+     */
+    void applyReplicatedAccount(String nickname, String passwordHash, long version) {
+        User replicated = User.builder().nickname(nickname).password(passwordHash).version(version).build();
+        User existing = this.users.putIfAbsent(nickname, replicated);
+        if (existing == null) {
+            storeAccount(replicated);
+            return;
+        }
+
+        boolean newer;
+        synchronized (existing) {
+            newer = version > existing.getVersion()
+                    || (version == existing.getVersion() && passwordHash.compareTo(existing.getPassword()) > 0);
+            if (newer) {
+                existing.setPassword(passwordHash);
+                existing.setVersion(version);
+            }
+        }
+        if (newer) {
+            storeAccount(existing);
+        }
     }
 
-    public void createRoom(String roomName) {
-        this.chatRooms.putIfAbsent(roomName, new HashSet<>());
+    /* Wall clock based so nodes agree on which change came last, and always past the version it replaces */
+    private static long nextVersion(long current) {
+        return Math.max(System.currentTimeMillis(), current + 1);
     }
 
-    public void joinRoom(String roomName, User user) {
-        this.chatRooms.computeIfAbsent(roomName, k -> new HashSet<>()).add(user);
+    /* Credentials are checked by the Authenticator, off the session threads */
+    public Optional<User> findUser(String nickname) {
+        return Optional.ofNullable(this.users.get(nickname));
     }
 
-    public void broadcastMessage(Packet packet) {
-        for (User user : users) {
-            boolean isNotSameUser = !packet.getUser().getNickname().equals(user.getNickname());
+    /* Replaces a legacy or outdated password hash, later log records win on startup */
+    public void updatePassword(User user, String passwordHash) {
+        synchronized (user) {
+            user.setPassword(passwordHash);
+            user.setVersion(nextVersion(user.getVersion()));
+        }
+        storeAccount(user);
+        Cluster.INSTANCE.accountChanged(user);
+    }
 
-            if (Objects.nonNull(user.getSocket()) && isNotSameUser) {
-                sendMessageToUser(packet, user, Command.MESSAGE_ALL);
+    private void storeAccount(User user) {
+        UserStore userStore = this.store;
+        if (userStore != null) {
+            userStore.append(user).exceptionally(e -> {
+                System.out.println("Error storing account of " + user.getNickname());
+                return null;
+            });
+        }
+    }
+
+    /* Issues a fresh session token, any token handed out before stops working */
+    public String openSession(User user) {
+        byte[] token = new byte[SESSION_TOKEN_SIZE];
+        this.random.nextBytes(token);
+        user.setSessionToken(Base64.getUrlEncoder().withoutPadding().encodeToString(token));
+        return user.getSessionToken();
+    }
+
+    /*
+     * Binds a logged in user to the connection it came from and makes it visible to message routing.
+     * A nickname has one User for all its sessions, so its connection only changes under the lock
+     * of its onlineUsers entry, where disconnect compares it. A session it replaces loses the user
+     * there too, and is closed: its packets would otherwise still act as the account.
+     */
+    public void connect(User user, Connection connection) {
+        AtomicReference<Connection> replaced = new AtomicReference<>();
+        this.onlineUsers.compute(user.getNickname(), (nickname, previous) -> {
+            Connection previousConnection = previous == null ? null : previous.getConnection();
+            if (previousConnection != null && previousConnection != connection) {
+                this.usersByConnection.remove(previousConnection, previous);
+                replaced.set(previousConnection);
             }
+            this.usersByConnection.put(connection, user);
+            user.setConnection(connection);
+            this.onlineNicknames.add(nickname);
+            return user;
+        });
+        /* Outside the lock, the close runs its disconnect */
+        if (replaced.get() != null) {
+            replaced.get().close();
         }
+        Cluster.INSTANCE.userOnline(user.getNickname());
+        Presence.INSTANCE.changed(user.getNickname(), true);
     }
 
-    public void roomMessage(Packet packet) {
-        Set<User> roomUsers = chatRooms.get(packet.getRoomName());
-        if (roomUsers != null) {
-            for (User user : roomUsers) {
-                boolean isNotSameUser = !packet.getUser().getNickname().equals(user.getNickname());
+    /* Returns the user that went offline, if the connection was logged in and not superseded by a newer one */
+    public Optional<User> disconnect(Connection connection) {
+        User user = this.usersByConnection.remove(connection);
+        if (user == null) {
+            return Optional.empty();
+        }
 
-                if (Objects.nonNull(user.getSocket()) && isNotSameUser) {
-                    sendMessageToUser(packet, user, Command.MESSAGE_ROOM);
-                }
+        /* Only tear down if the user did not log in again from a newer connection meanwhile */
+        if (goOffline(user, connection)) {
+            Cluster.INSTANCE.userOffline(user.getNickname());
+            if (!Cluster.INSTANCE.isOnlineElsewhere(user.getNickname())) {
+                Presence.INSTANCE.changed(user.getNickname(), false);
             }
+            return Optional.of(user);
+        }
+        return Optional.empty();
+    }
+
+    /* Removes the session if the connection is still the user's current one, together with its place in the sorted index */
+    private boolean goOffline(User user, Connection connection) {
+        AtomicBoolean removed = new AtomicBoolean();
+        this.onlineUsers.computeIfPresent(user.getNickname(), (nickname, current) -> {
+            if (current != user || current.getConnection() != connection) {
+                return current;
+            }
+            current.setConnection(null);
+            this.onlineNicknames.remove(nickname);
+            removed.set(true);
+            return null;
+        });
+        return removed.get();
+    }
+
+    /* Nicknames online on any node that sort after the cursor */
+    public ArrayList<String> onlineNicknamesAfter(String cursor, int size) {
+        return Pages.merged(Pages.after(this.onlineNicknames, cursor), Pages.after(Cluster.INSTANCE.remoteNicknames(), cursor), size);
+    }
+
+    public Optional<User> findOnlineUser(String nickname) {
+        return Optional.ofNullable(this.onlineUsers.get(nickname));
+    }
+
+    /*
+     * The registered user behind a packet: whoever logged in on the connection.
+     * A token carried by the packet has to be the one issued to that user.
+     */
+    public Optional<User> resolveSender(Connection connection, User user) {
+        Optional<User> connectedUser = Optional.ofNullable(this.usersByConnection.get(connection));
+        if (user == null || user.getSessionToken() == null) {
+            return connectedUser;
         }
+        return connectedUser.filter(connected -> user.getSessionToken().equals(connected.getSessionToken()));
     }
 
+    public void broadcastMessage(Packet packet) {
+        OutboundFrame frame = messageFrame(packet, Command.MESSAGE_ALL);
+        Cluster.INSTANCE.forwardBroadcast(frame);
+        deliverBroadcast(frame, packet.getUser().getNickname());
+    }
+
+    /*
+     * Fan-out to the sessions of this node, for local messages and those forwarded by a peer.
+     * The public chat is sharded like a room, so everyone sees its messages in one order.
+     * Takes over the caller's frame reference.
+     */
+    void deliverBroadcast(OutboundFrame frame, String sender) {
+        Shards.INSTANCE.execute(MessageHistory.BROADCAST_CHANNEL, frame, () -> {
+            try {
+                MessageHistory.INSTANCE.record(MessageHistory.BROADCAST_CHANNEL, frame);
+                int recipients = 0;
+                for (User user : onlineUsers.values()) {
+                    boolean isNotSameUser = !sender.equals(user.getNickname());
+
+                    if (isNotSameUser && sendMessageToUser(frame, user)) {
+                        recipients++;
+                    }
+                }
+                ServerMetrics.INSTANCE.broadcastFanout(recipients);
+            } finally {
+                /* The caller's reference, every recipient queue took its own */
+                frame.release();
+            }
+        });
+    }
+
+    /*
+     * Runs on the recipient's shard, so one recipient gets direct messages in the order they were sent.
+     * A recipient offline on every node gets it in its mailbox, delivered on the next login.
+     */
     public void individualMessage(Packet receivedPacket) {
-        for (User user : users) {
-            boolean isRecipientUser = receivedPacket.getUserRecipient().getNickname().equals(user.getNickname());
+        String recipient = receivedPacket.getUserRecipient().getNickname();
+        User sender = receivedPacket.getUser();
+
+        /* The recipient field is only meaningful here, so this is the one path that encodes per recipient */
+        OutboundFrame frame = OutboundFrame.message(withMessageOf(receivedPacket, Packet.builder())
+                .userRecipient(User.builder().nickname(recipient).build())
+                .user(User.builder().nickname(receivedPacket.getUser().getNickname()).build())
+                .command(Command.MESSAGE_INDIVIDUAL)
+                .build(), false);
+        Shards.INSTANCE.execute(recipient, frame, () -> {
+            try {
+                User user = onlineUsers.get(recipient);
+                if (user != null) {
+                    sendMessageToUser(frame, user);
+                } else if (!Cluster.INSTANCE.forwardDirect(recipient, frame)) {
+                    /* Only the node holding the recipient gets it, or this one keeps it */
+                    keepForLater(recipient, frame, sender);
+                }
+            } finally {
+                frame.release();
+            }
+        });
+    }
+
+    /* A direct message a peer routed to this node */
+    void deliverDirect(OutboundFrame frame) {
+        String recipient = frame.packet().getUserRecipient().getNickname();
+        Shards.INSTANCE.execute(recipient, () -> {
+            try {
+                User user = onlineUsers.get(recipient);
+                if (user != null) {
+                    sendMessageToUser(frame, user);
+                } else {
+                    /* Went offline while the message was on its way, the sender is on the other node */
+                    keepForLater(recipient, frame, null);
+                }
+            } finally {
+                frame.release();
+            }
+        });
+    }
+
+    /*
+     * Recipient shard only. The sender (when known here) hears about messages that cannot be kept,
+     * from the mailbox writer once it knows
+     */
+    private void keepForLater(String recipient, OutboundFrame frame, User sender) {
+        if (!users.containsKey(recipient)) {
+            notifySender(sender, "Unknown user: " + recipient);
+            return;
+        }
+        Mailboxes.INSTANCE.deposit(recipient, frame).thenAccept(kept -> {
+            if (!kept) {
+                notifySender(sender, "Not delivered, " + recipient + " is offline and cannot receive messages for now");
+            }
+        });
+    }
 
-            if (Objects.nonNull(user.getSocket()) && isRecipientUser) {
-                sendMessageToUser(receivedPacket, user, Command.MESSAGE_INDIVIDUAL);
+    private void notifySender(User sender, String failure) {
+        if (sender != null) {
+            sendMessageToUser(new OutboundFrame(Packet.builder().message(failure).build()), sender);
+        }
+    }
+
+    /*
+     * Sends what was kept while the user was offline, in one burst on the user's shard: messages
+     * sent meanwhile queue behind it. Nothing happens if the session ended in the meantime.
+     */
+    public void deliverMailbox(User user) {
+        Shards.INSTANCE.execute(user.getNickname(), () -> {
+            if (onlineUsers.get(user.getNickname()) == user) {
+                Mailboxes.INSTANCE.drain(user.getNickname(), frame -> sendMessageToUser(frame, user));
             }
+        });
+    }
+
+    /* On shutdown: every session on this node is told to come back at a random point of the window */
+    public void announceRestart(long reconnectWindowMillis) {
+        OutboundFrame frame = OutboundFrame.urgent(Packet.builder()
+                .message("Server restarting, reconnecting shortly")
+                .sequence(reconnectWindowMillis)
+                .command(Command.RECONNECT)
+                .build());
+        for (User user : onlineUsers.values()) {
+            sendMessageToUser(frame, user);
         }
     }
 
-    private void sendMessageToUser(Packet packet, User user, Command command) {
+    /* Frames queued for the sessions of this node and not yet written */
+    public int outboundDepth() {
+        int depth = 0;
+        for (Connection connection : usersByConnection.keySet()) {
+            depth += connection.outboundDepth();
+        }
+        return depth;
+    }
+
+    /*
+     * Builds the outgoing copy of a chat message once per fan-out. It only carries
+     * the sender's nickname, never the full User, and is encoded right away, once, into
+     * a pooled buffer: the caller holds its reference and hands it on to the fan-out.
+     * Channels with history get a sequence slot, stamped when the message is recorded.
+     */
+    public OutboundFrame messageFrame(Packet packet, Command command) {
         User cleanUser = User.builder()
                 .nickname(packet.getUser().getNickname())
                 .build();
 
-        Packet messagePacket = Packet.builder()
-                .userRecipient(user)
+        return OutboundFrame.message(withMessageOf(packet, Packet.builder())
                 .user(cleanUser)
-                .message(packet.getMessage())
+                .roomName(packet.getRoomName())
                 .command(command)
-                .build();
+                .build(), MessageHistory.INSTANCE.isEnabled());
+    }
 
-        try {
-            ObjectOutputStream userOutStream = user.getOutStream();
-            if (userOutStream != null) {
-                userOutStream.writeObject(messagePacket);
-                userOutStream.flush();
-            }
-        } catch (IOException e) {
-            throw new RuntimeException("Error sending message to user: " + user.getNickname(), e);
+    /* The message as it was received: bytes that were never decoded are copied as they are, not turned into a String and back */
+    private static Packet.PacketBuilder withMessageOf(Packet received, Packet.PacketBuilder builder) {
+        return received.getMessageUtf8() != null ? builder.messageUtf8(received.getMessageUtf8()) : builder.message(received.getMessage());
+    }
+
+    /* Returns whether the user was online to receive the frame */
+    boolean sendMessageToUser(OutboundFrame frame, User user) {
+        Connection userConnection = user.getConnection();
+        if (userConnection == null) {
+            return false;
         }
+
+        long start = System.nanoTime();
+        userConnection.sendFrame(frame);
+        ServerMetrics.INSTANCE.frameSent(System.nanoTime() - start);
+        return true;
     }
 }
@@ -0,0 +1,31 @@
+package store;
+
+import lombok.Builder;
+import lombok.Data;
+
+/* Durable user store configuration, read from --store-dir, --snapshot-every and --no-store */
+@Data
+@Builder
+public class StoreSettings {
+    @Builder.Default
+    private boolean enabled = true;
+    @Builder.Default
+    private String directory = "data";
+    /* Write-ahead log records after which the log is compacted into a new snapshot */
+    @Builder.Default
+    private int snapshotEvery = 100_000;
+
+    public static StoreSettings fromArgs(String[] args) {
+        StoreSettingsBuilder settings = StoreSettings.builder();
+        for (String arg : args) {
+            if (arg.equals("--no-store")) {
+                settings.enabled(false);
+            } else if (arg.startsWith("--store-dir=")) {
+                settings.directory(arg.substring("--store-dir=".length()));
+            } else if (arg.startsWith("--snapshot-every=")) {
+                settings.snapshotEvery(Integer.parseInt(arg.substring("--snapshot-every=".length())));
+            }
+        }
+        return settings.build();
+    }
+}
@@ -0,0 +1,259 @@
+package store;
+
+import packet.User;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32C;
+
+/*
+ * Registered accounts on disk: a compacted snapshot plus a write-ahead log of the
+ * registrations made since. Both hold the same checksummed records:
+ *
+ * Record: [int payload length][int CRC32C of the payload][payload]
+ * Payload: [int nickname length][UTF-8 nickname][int password length][UTF-8 password][long version]
+ *
+ * Records written before accounts were versioned end after the password and load as version 0.
+ *
+ * Writes are group committed: a single thread drains every registration queued while
+ * the previous fsync was running and makes the whole batch durable with one write and
+ * one fsync, so a registration storm costs a handful of flushes instead of one each.
+ */
+public class UserStore {
+    private static final String SNAPSHOT = "users.snapshot";
+    private static final String WAL = "users.wal";
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final int MAX_BATCH = 4096;
+
+    private final Path directory;
+    private final StoreSettings settings;
+    private final BlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+    private FileChannel wal;
+    private Supplier<Collection<User>> snapshotSource;
+    private long walRecords;
+
+    private record PendingWrite(User user, CompletableFuture<Void> durable) {
+    }
+
+    private UserStore(StoreSettings settings) {
+        this.directory = Path.of(settings.getDirectory());
+        this.settings = settings;
+    }
+
+    public static UserStore open(StoreSettings settings) {
+        return new UserStore(settings);
+    }
+
+    /*
+     * Reads every stored account (snapshot first, then the log, so later records win)
+     * and starts accepting writes. Called once at startup.
+     */
+    public List<User> load() {
+        List<User> users = new ArrayList<>();
+        try {
+            Files.createDirectories(directory);
+            long start = System.nanoTime();
+            replay(directory.resolve(SNAPSHOT), users::add);
+            int walCount = replay(directory.resolve(WAL), users::add);
+            walRecords = walCount;
+            System.out.printf("Loaded %d users (%d from the log) in %d ms%n",
+                    users.size(), walCount, (System.nanoTime() - start) / 1_000_000);
+
+            wal = FileChannel.open(directory.resolve(WAL), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            wal.position(wal.size());
+        } catch (IOException e) {
+            throw new RuntimeException("Error opening user store", e);
+        }
+
+        Thread committer = new Thread(this::commitLoop, "user-store-commit");
+        committer.setDaemon(true);
+        committer.start();
+        return users;
+    }
+
+    /* Where compaction reads the full account set from, without it the log just keeps growing */
+    public void compactFrom(Supplier<Collection<User>> snapshotSource) {
+        this.snapshotSource = snapshotSource;
+    }
+
+    /* Completes once the account is on disk */
+    public CompletableFuture<Void> append(User user) {
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        pending.add(new PendingWrite(user, durable));
+        return durable;
+    }
+
+    private void commitLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch, MAX_BATCH - 1);
+
+            try {
+                ByteBuffer records = encode(batch.stream().map(PendingWrite::user).toList());
+                while (records.hasRemaining()) {
+                    wal.write(records);
+                }
+                wal.force(false);
+                batch.forEach(write -> write.durable().complete(null));
+
+                walRecords += batch.size();
+                if (snapshotSource != null && walRecords >= settings.getSnapshotEvery()) {
+                    compact();
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error writing user store: " + e.getMessage());
+                batch.forEach(write -> write.durable().completeExceptionally(e));
+            }
+            batch.clear();
+        }
+    }
+
+    /*
+     * Commit thread only, so no log write can interleave. Every logged account is already
+     * in the live registry; ones still queued may be included too, loading is idempotent.
+     */
+    private void compact() throws IOException {
+        Path temporary = directory.resolve(SNAPSHOT + ".tmp");
+        try (FileChannel snapshot = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            List<User> chunk = new ArrayList<>(MAX_BATCH);
+            for (User user : snapshotSource.get()) {
+                chunk.add(user);
+                if (chunk.size() == MAX_BATCH) {
+                    writeFully(snapshot, encode(chunk));
+                    chunk.clear();
+                }
+            }
+            writeFully(snapshot, encode(chunk));
+            snapshot.force(true);
+        }
+
+        Files.move(temporary, directory.resolve(SNAPSHOT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        wal.truncate(0);
+        wal.force(true);
+        walRecords = 0;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private static ByteBuffer encode(List<User> users) {
+        List<byte[]> fields = new ArrayList<>(users.size() * 2);
+        int size = 0;
+        long[] versions = new long[users.size()];
+        for (User user : users) {
+            byte[] nickname;
+            byte[] password;
+            synchronized (user) {
+                nickname = user.getNickname().getBytes(StandardCharsets.UTF_8);
+                password = user.getPassword().getBytes(StandardCharsets.UTF_8);
+                versions[fields.size() / 2] = user.getVersion();
+            }
+            fields.add(nickname);
+            fields.add(password);
+            size += HEADER_SIZE + Integer.BYTES + nickname.length + Integer.BYTES + password.length + Long.BYTES;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        CRC32C crc = new CRC32C();
+        for (int i = 0; i < fields.size(); i += 2) {
+            byte[] nickname = fields.get(i);
+            byte[] password = fields.get(i + 1);
+            int start = buffer.position();
+            int payloadLength = Integer.BYTES + nickname.length + Integer.BYTES + password.length + Long.BYTES;
+
+            buffer.position(start + HEADER_SIZE);
+            buffer.putInt(nickname.length).put(nickname).putInt(password.length).put(password).putLong(versions[i / 2]);
+
+            crc.reset();
+            crc.update(buffer.array(), start + HEADER_SIZE, payloadLength);
+            buffer.putInt(start, payloadLength).putInt(start + Integer.BYTES, (int) crc.getValue());
+        }
+        return buffer.flip();
+    }
+
+    /*
+     * Maps the file and hands every intact record to the loader. A torn or corrupt
+     * tail (crash mid write) ends the replay and is cut off so new records follow valid ones.
+     */
+    private int replay(Path file, Consumer<User> loader) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32C crc = new CRC32C();
+            byte[] scratch = new byte[256];
+            int count = 0;
+
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int start = buffer.position();
+                int payloadLength = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (payloadLength < 2 * Integer.BYTES || payloadLength > buffer.remaining()) {
+                    buffer.position(start);
+                    break;
+                }
+
+                int payloadStart = buffer.position();
+                crc.reset();
+                crc.update(buffer.limit(payloadStart + payloadLength));
+                buffer.limit((int) size).position(payloadStart);
+                if ((int) crc.getValue() != checksum) {
+                    buffer.position(start);
+                    break;
+                }
+
+                /* Strings are built straight from a reused scratch array, a million accounts load in one pass */
+                scratch = fit(scratch, payloadLength);
+                String nickname = readString(buffer, scratch);
+                String password = readString(buffer, scratch);
+                long version = buffer.position() - payloadStart + Long.BYTES <= payloadLength ? buffer.getLong() : 0;
+                buffer.position(payloadStart + payloadLength);
+                loader.accept(User.builder().nickname(nickname).password(password).version(version).build());
+                count++;
+            }
+
+            if (buffer.position() < size) {
+                System.out.println("Truncating corrupt tail of " + file + " at byte " + buffer.position());
+                channel.truncate(buffer.position());
+            }
+            return count;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer, byte[] scratch) {
+        int length = buffer.getInt();
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] fit(byte[] scratch, int length) {
+        return scratch.length >= length ? scratch : new byte[length];
+    }
+}
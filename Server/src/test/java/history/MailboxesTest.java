@@ -0,0 +1,130 @@
+package history;
+
+import junit.framework.TestCase;
+import network.OutboundFrame;
+import packet.Command;
+import packet.Packet;
+import packet.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Inboxes only lose the messages whose frames were written, whatever a session drops or
+ * whatever is deposited while a delivery is still being written. A drain waits for the
+ * deposits the writer has not committed yet.
+ */
+public class MailboxesTest extends TestCase {
+    private static final Path DIRECTORY = createDirectory();
+
+    @Override
+    protected void setUp() {
+        /* The owner runs the acknowledgements inline, the tests play every writer themselves */
+        Mailboxes.INSTANCE.open(MailboxSettings.builder().directory(DIRECTORY.toString()).ttlHours(0).build(), (recipient, task) -> task.run());
+    }
+
+    public void testInboxIsKeptUntilEveryFrameIsWritten() {
+        deposit("written", "one", "two", "three");
+
+        List<OutboundFrame> first = drain("written");
+        assertEquals(List.of("one", "two", "three"), messages(first));
+        first.get(0).written();
+        first.get(1).written();
+        assertTrue(Files.exists(inbox("written")));
+
+        /* A new session only gets what the last one did not write */
+        List<OutboundFrame> second = drain("written");
+        assertEquals(List.of("three"), messages(second));
+        second.get(0).written();
+        assertFalse(Files.exists(inbox("written")));
+        assertTrue(drain("written").isEmpty());
+    }
+
+    public void testNothingPastADroppedFrameCountsAsDelivered() {
+        deposit("dropped", "one", "two", "three");
+
+        List<OutboundFrame> first = drain("dropped");
+        first.get(0).written();
+        first.get(2).written();
+
+        assertEquals(List.of("two", "three"), messages(drain("dropped")));
+    }
+
+    public void testMessagesDepositedDuringADeliveryStay() {
+        deposit("late", "one", "two");
+        List<OutboundFrame> first = drain("late");
+        deposit("late", "three");
+
+        first.forEach(OutboundFrame::written);
+        assertTrue(Files.exists(inbox("late")));
+        List<OutboundFrame> second = drain("late");
+        assertEquals(List.of("three"), messages(second));
+        second.get(0).written();
+        assertFalse(Files.exists(inbox("late")));
+    }
+
+    public void testDrainWaitsForDepositsBeingWritten() {
+        List<CompletableFuture<Boolean>> kept = new ArrayList<>();
+        for (String message : List.of("one", "two", "three")) {
+            OutboundFrame frame = message("queued", message);
+            kept.add(Mailboxes.INSTANCE.deposit("queued", frame));
+            frame.release();
+        }
+        List<OutboundFrame> frames = new CopyOnWriteArrayList<>();
+        Mailboxes.INSTANCE.drain("queued", frames::add);
+
+        /* The drain is handed back before the deposits complete */
+        kept.forEach(deposit -> assertTrue(deposit.join()));
+        assertEquals(List.of("one", "two", "three"), messages(frames));
+    }
+
+    public void testOwnerNamesRoundTrip() {
+        for (String name : List.of("alice", "bob smith", "ünïcode", "100%", "../etc")) {
+            assertEquals(name, MessageHistory.channelName(MessageHistory.directoryName(name)));
+        }
+    }
+
+    private static void deposit(String recipient, String... messages) {
+        for (String message : messages) {
+            OutboundFrame frame = message(recipient, message);
+            assertTrue(Mailboxes.INSTANCE.deposit(recipient, frame).join());
+            frame.release();
+        }
+    }
+
+    private static OutboundFrame message(String recipient, String message) {
+        return OutboundFrame.message(Packet.builder()
+                .message(message)
+                .user(User.builder().nickname("sender").build())
+                .userRecipient(User.builder().nickname(recipient).build())
+                .command(Command.MESSAGE_INDIVIDUAL)
+                .build(), false);
+    }
+
+    private static List<OutboundFrame> drain(String recipient) {
+        List<OutboundFrame> frames = new ArrayList<>();
+        Mailboxes.INSTANCE.drain(recipient, frames::add);
+        return frames;
+    }
+
+    private static List<String> messages(List<OutboundFrame> frames) {
+        return frames.stream().map(frame -> frame.packet().getMessage()).toList();
+    }
+
+    private static Path inbox(String recipient) {
+        return DIRECTORY.resolve(MessageHistory.directoryName(recipient) + ".box");
+    }
+
+    private static Path createDirectory() {
+        try {
+            return Files.createTempDirectory("mailboxes");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
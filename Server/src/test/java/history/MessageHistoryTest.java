@@ -0,0 +1,77 @@
+package history;
+
+import junit.framework.TestCase;
+import network.OutboundFrame;
+import packet.Command;
+import packet.Packet;
+import packet.User;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Reading a channel never opens a log for it, and the open logs stay bounded:
+ * a closed log is opened again from disk with everything recorded before.
+ */
+public class MessageHistoryTest extends TestCase {
+    private static final Path DIRECTORY = createDirectory();
+    private static final int OPEN_CHANNELS = 2;
+
+    @Override
+    protected void setUp() {
+        MessageHistory.INSTANCE.open(HistorySettings.builder()
+                .directory(DIRECTORY.toString())
+                .segmentSize(64 << 10)
+                .maxOpenChannels(OPEN_CHANNELS)
+                .build());
+    }
+
+    public void testReadingUnknownChannelsCreatesNoLog() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            String channel = MessageHistory.roomChannel("unknown-" + i);
+            assertEquals(Long.valueOf(0), MessageHistory.INSTANCE.lastSequence(channel));
+            assertEquals(7, MessageHistory.INSTANCE.replay(channel, 7, frame -> fail()));
+        }
+        try (var directories = Files.list(DIRECTORY)) {
+            assertTrue(directories.noneMatch(path -> path.getFileName().toString().startsWith("room-unknown")));
+        }
+    }
+
+    public void testClosedLogsAreOpenedAgain() {
+        for (int i = 0; i < 5; i++) {
+            record(MessageHistory.roomChannel("bounded-" + i), "first " + i);
+            assertTrue(MessageHistory.INSTANCE.openChannels() <= OPEN_CHANNELS);
+        }
+        for (int i = 0; i < 5; i++) {
+            String channel = MessageHistory.roomChannel("bounded-" + i);
+            record(channel, "second " + i);
+            assertEquals(Long.valueOf(2), MessageHistory.INSTANCE.lastSequence(channel));
+
+            List<String> replayed = new ArrayList<>();
+            MessageHistory.INSTANCE.replay(channel, 0, frame -> replayed.add(frame.packet().getMessage()));
+            assertEquals(List.of("first " + i, "second " + i), replayed);
+        }
+        assertTrue(MessageHistory.INSTANCE.openChannels() <= OPEN_CHANNELS);
+    }
+
+    private static void record(String channel, String message) {
+        OutboundFrame frame = OutboundFrame.message(Packet.builder()
+                .message(message)
+                .user(User.builder().nickname("sender").build())
+                .command(Command.MESSAGE_ROOM)
+                .build(), true);
+        MessageHistory.INSTANCE.record(channel, frame);
+        frame.release();
+    }
+
+    private static Path createDirectory() {
+        try {
+            return Files.createTempDirectory("history");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package network;
+
+import junit.framework.TestCase;
+import packet.Command;
+import packet.Packet;
+import packet.PacketCodec;
+import run_time_db.ClientThread;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Handshake and echo over loopback with a keystore generated for the test, once through the
+ * NIO engine (TlsSession over an SSLEngine) and once through the blocking TLS server socket.
+ * A message larger than a TLS record checks that records are split and joined again.
+ */
+public class TlsLoopbackTest extends TestCase {
+    private static final String PASSWORD = "changeit";
+
+    private Path keystore;
+    private TlsContext tlsContext;
+    private final OutboundSettings outboundSettings = OutboundSettings.builder().build();
+    private final IdleReaper idleReaper = new IdleReaper(IdleSettings.builder().build());
+
+    /* Answers every packet with its own message */
+    private static final class EchoHandler implements PacketHandler {
+        @Override
+        public void onPacket(Connection connection, Packet packet) {
+            connection.send(Packet.builder()
+                    .message(packet.getMessage())
+                    .correlationId(packet.getCorrelationId())
+                    .command(packet.getCommand())
+                    .build());
+        }
+
+        @Override
+        public void onDisconnect(Connection connection) {
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        keystore = Files.createTempDirectory("tls").resolve("chat.p12");
+        String keytool = Path.of(System.getProperty("java.home"), "bin", "keytool").toString();
+        Process generate = new ProcessBuilder(keytool, "-genkeypair", "-alias", "chat", "-keyalg", "EC", "-dname", "CN=localhost",
+                "-validity", "1", "-keystore", keystore.toString(), "-storepass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        generate.getInputStream().transferTo(OutputStream.nullOutputStream());
+        assertTrue(generate.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(0, generate.exitValue());
+
+        tlsContext = TlsContext.open(TlsSettings.builder().keystore(keystore.toString()).password(PASSWORD).build());
+    }
+
+    public void testNioHandshakeAndEcho() throws Exception {
+        EventLoop eventLoop = new EventLoop(new EchoHandler(), outboundSettings, idleReaper, tlsContext);
+        Thread loop = new Thread(eventLoop, "tls-test-event-loop");
+        loop.setDaemon(true);
+        loop.start();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SSLSocket client = connect(server.socket().getLocalPort())) {
+                SocketChannel accepted = server.accept();
+                accepted.configureBlocking(false);
+                eventLoop.register(accepted);
+
+                assertEcho(client);
+            }
+        }
+    }
+
+    public void testBlockingHandshakeAndEcho() throws Exception {
+        try (ServerSocket server = tlsContext.openServerSocket(0, 1)) {
+            try (SSLSocket client = connect(server.getLocalPort())) {
+                Socket accepted = server.accept();
+                Thread session = new Thread(new ClientThread(accepted, new EchoHandler(), Thread.ofPlatform().daemon().factory(), outboundSettings, idleReaper));
+                session.setDaemon(true);
+                session.start();
+
+                assertEcho(client);
+            }
+        }
+    }
+
+    /* Trusts nothing but the generated certificate, so the handshake checks the server's key too */
+    private SSLSocket connect(int port) throws Exception {
+        KeyStore trusted = KeyStore.getInstance(new File(keystore.toString()), PASSWORD.toCharArray());
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trusted);
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, trustManagers.getTrustManagers(), null);
+
+        SSLSocket socket = (SSLSocket) sslContext.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), port);
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static void assertEcho(SSLSocket client) throws IOException {
+        OutputStream out = new BufferedOutputStream(client.getOutputStream());
+        InputStream in = new BufferedInputStream(client.getInputStream());
+        out.write(PacketCodec.hello(0));
+        out.flush();
+        assertTrue(PacketCodec.isHello(in.readNBytes(PacketCodec.HELLO_SIZE)));
+        assertNotNull(client.getSession().getPeerCertificates());
+
+        char[] large = new char[40 * 1024];
+        Arrays.fill(large, 'x');
+        String[] messages = {"hello", new String(large), "bye"};
+        /* Pipelined, the answers come back in order */
+        for (int i = 0; i < messages.length; i++) {
+            PacketCodec.writeFrame(Packet.builder().message(messages[i]).correlationId(i).command(Command.PING).build(), out);
+        }
+        out.flush();
+        for (int i = 0; i < messages.length; i++) {
+            Packet echo = PacketCodec.readFrame(in);
+            assertEquals(Integer.valueOf(i), echo.getCorrelationId());
+            assertEquals(messages[i], echo.getMessage());
+        }
+    }
+}
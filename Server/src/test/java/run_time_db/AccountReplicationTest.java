@@ -0,0 +1,41 @@
+package run_time_db;
+
+import junit.framework.TestCase;
+import packet.User;
+
+/* Nodes exchanging account records in any order must end up holding the same one */
+public class AccountReplicationTest extends TestCase {
+    public void testHighestVersionWins() {
+        UserManagement.INSTANCE.applyReplicatedAccount("replicated-1", "hash-b", 10);
+
+        UserManagement.INSTANCE.applyReplicatedAccount("replicated-1", "hash-z", 9);
+        assertAccount("replicated-1", "hash-b", 10);
+
+        UserManagement.INSTANCE.applyReplicatedAccount("replicated-1", "hash-a", 11);
+        assertAccount("replicated-1", "hash-a", 11);
+    }
+
+    public void testEqualVersionsSettleOnTheGreaterHash() {
+        UserManagement.INSTANCE.applyReplicatedAccount("replicated-2", "hash-b", 10);
+
+        UserManagement.INSTANCE.applyReplicatedAccount("replicated-2", "hash-a", 10);
+        assertAccount("replicated-2", "hash-b", 10);
+
+        UserManagement.INSTANCE.applyReplicatedAccount("replicated-2", "hash-c", 10);
+        assertAccount("replicated-2", "hash-c", 10);
+    }
+
+    public void testLocalChangesOutrankTheRecordTheyReplace() {
+        UserManagement.INSTANCE.applyReplicatedAccount("replicated-3", "hash-old", Long.MAX_VALUE - 1);
+        User user = UserManagement.INSTANCE.findUser("replicated-3").orElseThrow();
+
+        UserManagement.INSTANCE.updatePassword(user, "hash-new");
+        assertAccount("replicated-3", "hash-new", Long.MAX_VALUE);
+    }
+
+    private static void assertAccount(String nickname, String passwordHash, long version) {
+        User user = UserManagement.INSTANCE.findUser(nickname).orElseThrow();
+        assertEquals(passwordHash, user.getPassword());
+        assertEquals(version, user.getVersion());
+    }
+}
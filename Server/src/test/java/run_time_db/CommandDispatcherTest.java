@@ -0,0 +1,142 @@
+package run_time_db;
+
+import auth.AuthSettings;
+import auth.Authenticator;
+import junit.framework.TestCase;
+import network.Connection;
+import network.OutboundFrame;
+import packet.Command;
+import packet.Packet;
+import packet.User;
+import ratelimit.RateLimitSettings;
+import ratelimit.RateLimiter;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * Malformed and unauthenticated packets are answered with an error instead of
+ * failing the session thread on a missing command, user, recipient or room.
+ */
+public class CommandDispatcherTest extends TestCase {
+    private static final String[] ARGS = {"--hash-iterations=1000", "--session-ttl-seconds=0"};
+
+    private final CommandDispatcher dispatcher = new CommandDispatcher(
+            new Authenticator(AuthSettings.fromArgs(ARGS)), new RateLimiter(RateLimitSettings.fromArgs(ARGS)));
+
+    /* Keeps every packet sent to it */
+    private static final class RecordingConnection implements Connection {
+        private final List<Packet> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void sendFrame(OutboundFrame frame) {
+            sent.add(frame.packet());
+        }
+
+        @Override
+        public int outboundDepth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    public void testPacketWithoutCommandIsRejected() {
+        assertEquals("Invalid command", answer(new RecordingConnection(), Packet.builder().message("hello").build()));
+    }
+
+    public void testMessagesRequireLogin() {
+        for (Command command : List.of(Command.MESSAGE_ALL, Command.MESSAGE_ROOM, Command.MESSAGE_INDIVIDUAL, Command.CREATE_ROOM)) {
+            Packet packet = Packet.builder()
+                    .message("hello")
+                    .roomName("room")
+                    .userRecipient(User.builder().nickname("somebody").build())
+                    .command(command)
+                    .build();
+            assertEquals(command.name(), "Login required", answer(new RecordingConnection(), packet));
+        }
+    }
+
+    public void testMessagesWithoutTargetAreRejected() {
+        User user = User.builder().nickname("dispatcher-sender").password("secret").build();
+        assertTrue(UserManagement.INSTANCE.register(user).join().isPresent());
+        RecordingConnection connection = new RecordingConnection();
+        UserManagement.INSTANCE.connect(user, connection);
+        try {
+            assertEquals("Recipient required", answer(connection, Packet.builder().message("hello").command(Command.MESSAGE_INDIVIDUAL).build()));
+            assertEquals("Recipient required", answer(connection, Packet.builder()
+                    .message("hello")
+                    .userRecipient(User.builder().build())
+                    .command(Command.MESSAGE_INDIVIDUAL)
+                    .build()));
+            assertEquals("Room name required", answer(connection, Packet.builder().message("hello").command(Command.MESSAGE_ROOM).build()));
+            assertEquals("Room name required", answer(connection, Packet.builder().command(Command.JOIN_ROOM).build()));
+        } finally {
+            UserManagement.INSTANCE.disconnect(connection);
+        }
+    }
+
+    public void testRoomListingSkipsRoomsTheirMembersLeft() {
+        User user = User.builder().nickname("dispatcher-lister").password("secret").build();
+        assertTrue(UserManagement.INSTANCE.register(user).join().isPresent());
+        RecordingConnection connection = new RecordingConnection();
+        UserManagement.INSTANCE.connect(user, connection);
+        try {
+            for (String roomName : List.of("listed-a", "listed-b", "listed-c")) {
+                RoomService.INSTANCE.joinRoom(roomName, user).join();
+            }
+            RoomService.INSTANCE.leaveRoom("listed-b", user).join();
+
+            Packet page = list(connection, "listed-");
+            assertEquals(List.of("listed-a", "listed-c"), page.getNames().stream().filter(name -> name.startsWith("listed-")).toList());
+        } finally {
+            UserManagement.INSTANCE.disconnect(connection);
+            RoomService.INSTANCE.leaveAllRooms(user);
+        }
+    }
+
+    public void testLoginWithoutCredentialsFails() {
+        assertEquals("User not found", answer(new RecordingConnection(), Packet.builder().command(Command.LOGIN).build()));
+    }
+
+    public void testConnectionClosedDuringVerificationStaysOffline() throws Exception {
+        /* Slow enough hashing that the close always lands while the password is verified */
+        String[] slow = {"--hash-iterations=200000", "--session-ttl-seconds=0"};
+        CommandDispatcher slowDispatcher = new CommandDispatcher(
+                new Authenticator(AuthSettings.fromArgs(slow)), new RateLimiter(RateLimitSettings.fromArgs(slow)));
+        RecordingConnection connection = new RecordingConnection();
+
+        slowDispatcher.onPacket(connection, Packet.builder()
+                .user(User.builder().nickname("dispatcher-closed").password("secret").build())
+                .command(Command.REGISTER)
+                .build());
+        slowDispatcher.onPacket(connection, Packet.builder().roomName("room").command(Command.JOIN_ROOM).build());
+        slowDispatcher.onDisconnect(connection);
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (connection.sent.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("Connection closed", connection.sent.get(0).getMessage());
+        assertFalse(UserManagement.INSTANCE.findOnlineUser("dispatcher-closed").isPresent());
+        /* The held JOIN_ROOM is dropped with the connection */
+        Thread.sleep(100);
+        assertEquals(1, connection.sent.size());
+    }
+
+    private Packet list(RecordingConnection connection, String cursor) {
+        int before = connection.sent.size();
+        dispatcher.onPacket(connection, Packet.builder().message(cursor).command(Command.LIST_ROOMS).build());
+        assertEquals(before + 1, connection.sent.size());
+        return connection.sent.get(before);
+    }
+
+    private String answer(RecordingConnection connection, Packet packet) {
+        int before = connection.sent.size();
+        dispatcher.onPacket(connection, packet);
+        assertEquals(before + 1, connection.sent.size());
+        return connection.sent.get(before).getMessage();
+    }
+}
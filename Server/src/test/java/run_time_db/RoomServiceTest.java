@@ -0,0 +1,46 @@
+package run_time_db;
+
+import junit.framework.TestCase;
+import packet.User;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Rooms live as long as their members: the last one to leave, or to disconnect,
+ * takes the room with it, so naming rooms cannot make them pile up.
+ */
+public class RoomServiceTest extends TestCase {
+    public void testLastMemberLeavingRemovesTheRoom() {
+        User first = User.builder().nickname("room-first").build();
+        User second = User.builder().nickname("room-second").build();
+        RoomService.INSTANCE.createRoom("leaving", first).join();
+        RoomService.INSTANCE.joinRoom("leaving", second).join();
+
+        assertTrue(RoomService.INSTANCE.leaveRoom("leaving", first).join());
+        assertTrue(exists("leaving"));
+        assertTrue(RoomService.INSTANCE.leaveRoom("leaving", second).join());
+        assertFalse(exists("leaving"));
+        assertFalse(RoomService.INSTANCE.leaveRoom("leaving", second).join());
+    }
+
+    public void testDisconnectRemovesEveryRoomItWasAloneIn() throws Exception {
+        User member = User.builder().nickname("room-member").build();
+        for (int i = 0; i < 100; i++) {
+            RoomService.INSTANCE.joinRoom("alone-" + i, member).join();
+        }
+        assertTrue(exists("alone-0"));
+
+        RoomService.INSTANCE.leaveAllRooms(member);
+        assertTrue(Shards.INSTANCE.awaitIdle(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertFalse(exists("alone-" + i));
+        }
+    }
+
+    /* Its name is gone together with its members */
+    private static boolean exists(String roomName) {
+        boolean listed = RoomService.INSTANCE.roomsAfter(null, Pages.MAX_SIZE).contains(roomName);
+        assertEquals(listed, !RoomService.INSTANCE.membersAfter(roomName, null, Pages.MAX_SIZE).join().isEmpty());
+        return listed;
+    }
+}
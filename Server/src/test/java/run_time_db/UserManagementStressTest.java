@@ -0,0 +1,206 @@
+package run_time_db;
+
+import junit.framework.TestCase;
+import network.Connection;
+import network.OutboundFrame;
+import packet.Command;
+import packet.Packet;
+import packet.User;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Logins, logouts, relogins and messages from many threads at once against the shared registry.
+ * Each user is driven by one thread, so the state it must end in is known, while the registry,
+ * its sorted index and the fan-out are shared by all of them.
+ */
+public class UserManagementStressTest extends TestCase {
+    private static final int THREADS = 8;
+    private static final int USERS_PER_THREAD = 50;
+    private static final int ROUNDS = 5000;
+
+    /* Takes every frame like a socket that never fills */
+    private static final class CountingConnection implements Connection {
+        private static final AtomicLong FRAMES = new AtomicLong();
+        private volatile boolean closed;
+
+        @Override
+        public void sendFrame(OutboundFrame frame) {
+            frame.buffer();
+            FRAMES.incrementAndGet();
+        }
+
+        @Override
+        public int outboundDepth() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    public void testReplacedConnectionNoLongerActsAsTheUser() {
+        User user = registered("replaced");
+        CountingConnection old = new CountingConnection();
+        CountingConnection fresh = new CountingConnection();
+        UserManagement.INSTANCE.connect(user, old);
+        String oldToken = UserManagement.INSTANCE.openSession(user);
+        UserManagement.INSTANCE.connect(user, fresh);
+        UserManagement.INSTANCE.openSession(user);
+
+        assertTrue(old.closed);
+        assertFalse(fresh.closed);
+        assertFalse(UserManagement.INSTANCE.resolveSender(old, null).isPresent());
+        assertFalse(UserManagement.INSTANCE.resolveSender(old, User.builder().nickname("replaced").build()).isPresent());
+        assertFalse(UserManagement.INSTANCE.resolveSender(old, User.builder().nickname("replaced").sessionToken(oldToken).build()).isPresent());
+        assertSame(user, UserManagement.INSTANCE.resolveSender(fresh, null).orElse(null));
+
+        /* The old socket's disconnect leaves the new session alone */
+        assertFalse(UserManagement.INSTANCE.disconnect(old).isPresent());
+        assertTrue(UserManagement.INSTANCE.disconnect(fresh).isPresent());
+    }
+
+    public void testReloginRacingTheOldDisconnectKeepsTheNewSession() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                User user = registered("relogin-" + i);
+                Connection old = new CountingConnection();
+                Connection fresh = new CountingConnection();
+                UserManagement.INSTANCE.connect(user, old);
+
+                CyclicBarrier start = new CyclicBarrier(2);
+                Future<?> login = pool.submit(() -> {
+                    start.await();
+                    UserManagement.INSTANCE.connect(user, fresh);
+                    return null;
+                });
+                Future<Optional<User>> close = pool.submit(() -> {
+                    start.await();
+                    return UserManagement.INSTANCE.disconnect(old);
+                });
+                login.get(10, TimeUnit.SECONDS);
+                close.get(10, TimeUnit.SECONDS);
+
+                assertSame(fresh, UserManagement.INSTANCE.findOnlineUser(user.getNickname()).map(User::getConnection).orElse(null));
+                assertTrue(isListed(user.getNickname()));
+
+                assertTrue(UserManagement.INSTANCE.disconnect(fresh).isPresent());
+                assertFalse(UserManagement.INSTANCE.findOnlineUser(user.getNickname()).isPresent());
+                assertFalse(isListed(user.getNickname()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    public void testConcurrentLoginsLogoutsAndMessagesLeaveConsistentIndexes() throws Exception {
+        List<User> everyone = new ArrayList<>();
+        for (int i = 0; i < THREADS * USERS_PER_THREAD; i++) {
+            everyone.add(registered("stress-" + i));
+        }
+        long framesBefore = CountingConnection.FRAMES.get();
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Future<Map<User, Connection>>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            List<User> owned = everyone.subList(t * USERS_PER_THREAD, (t + 1) * USERS_PER_THREAD);
+            long seed = t;
+            results.add(pool.submit(() -> {
+                start.await();
+                return drive(owned, everyone, new Random(seed));
+            }));
+        }
+
+        Map<User, Connection> expected = new HashMap<>();
+        try {
+            for (Future<Map<User, Connection>> result : results) {
+                expected.putAll(result.get(60, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertTrue(Shards.INSTANCE.awaitIdle(10, TimeUnit.SECONDS));
+
+        for (User user : everyone) {
+            Connection connection = expected.get(user);
+            Optional<User> online = UserManagement.INSTANCE.findOnlineUser(user.getNickname());
+            assertEquals(user.getNickname(), connection != null, online.isPresent());
+            assertEquals(user.getNickname(), connection != null, isListed(user.getNickname()));
+            assertSame(user.getNickname(), connection, online.map(User::getConnection).orElse(null));
+        }
+        assertTrue("Messages were delivered", CountingConnection.FRAMES.get() > framesBefore);
+
+        for (Map.Entry<User, Connection> session : expected.entrySet()) {
+            if (session.getValue() != null) {
+                assertTrue(UserManagement.INSTANCE.disconnect(session.getValue()).isPresent());
+            }
+        }
+        for (User user : everyone) {
+            assertFalse(isListed(user.getNickname()));
+        }
+    }
+
+    /* Random logins, relogins (the old socket closing afterwards), logouts and messages; returns each owned user's live connection */
+    private static Map<User, Connection> drive(List<User> owned, List<User> everyone, Random random) {
+        Map<User, Connection> current = new HashMap<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            User user = owned.get(random.nextInt(owned.size()));
+            Connection connection = current.get(user);
+            switch (random.nextInt(5)) {
+                case 0 -> {
+                    Connection fresh = new CountingConnection();
+                    UserManagement.INSTANCE.connect(user, fresh);
+                    if (connection != null) {
+                        assertFalse(UserManagement.INSTANCE.disconnect(connection).isPresent());
+                    }
+                    current.put(user, fresh);
+                }
+                case 1 -> {
+                    if (connection != null) {
+                        assertTrue(UserManagement.INSTANCE.disconnect(connection).isPresent());
+                        current.put(user, null);
+                    }
+                }
+                case 2 -> UserManagement.INSTANCE.broadcastMessage(message(user, null));
+                default -> UserManagement.INSTANCE.individualMessage(message(user, everyone.get(random.nextInt(everyone.size()))));
+            }
+        }
+        return current;
+    }
+
+    private static Packet message(User sender, User recipient) {
+        return Packet.builder()
+                .message("Hello from " + sender.getNickname())
+                .user(sender)
+                .userRecipient(recipient == null ? null : User.builder().nickname(recipient.getNickname()).build())
+                .command(recipient == null ? Command.MESSAGE_ALL : Command.MESSAGE_INDIVIDUAL)
+                .build();
+    }
+
+    private static User registered(String nickname) {
+        User user = User.builder().nickname(nickname).password("secret").build();
+        assertTrue(UserManagement.INSTANCE.register(user).join().isPresent());
+        return user;
+    }
+
+    private static boolean isListed(String nickname) {
+        List<String> page = UserManagement.INSTANCE.onlineNicknamesAfter(null, Pages.MAX_SIZE);
+        assertTrue("Listing fits one page", page.size() < Pages.MAX_SIZE);
+        return page.contains(nickname);
+    }
+}
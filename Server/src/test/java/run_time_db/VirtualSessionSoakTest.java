@@ -0,0 +1,110 @@
+package run_time_db;
+
+import auth.AuthSettings;
+import auth.Authenticator;
+import junit.framework.TestCase;
+import network.IdleReaper;
+import network.IdleSettings;
+import network.OutboundSettings;
+import packet.Command;
+import packet.Packet;
+import packet.PacketCodec;
+import ratelimit.RateLimitSettings;
+import ratelimit.RateLimiter;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Connection-count soak of the virtual thread mode: every session is held open at once, each
+ * on its own virtual thread, and every one still answers. The platform threads stay a handful.
+ *
+ * Each connection costs two descriptors in this JVM (both ends), so the default stays small
+ * enough for any build. The full soak raises the open file limit above twice the count:
+ *   ulimit -n 65536 && mvn test -Dtest=VirtualSessionSoakTest -Dsoak.connections=20000
+ */
+public class VirtualSessionSoakTest extends TestCase {
+    private static final int CONNECTIONS = Integer.getInteger("soak.connections", 2000);
+    private static final String[] ARGS = {"--hash-iterations=1000", "--session-ttl-seconds=0"};
+
+    public void testEverySessionIsServedWhileAllAreOpen() throws Exception {
+        CommandDispatcher dispatcher = new CommandDispatcher(
+                new Authenticator(AuthSettings.fromArgs(ARGS)), new RateLimiter(RateLimitSettings.fromArgs(ARGS)));
+        OutboundSettings outboundSettings = OutboundSettings.builder().build();
+        IdleReaper idleReaper = new IdleReaper(IdleSettings.builder().build());
+        ThreadFactory threadFactory = Thread.ofVirtual().factory();
+
+        try (ServerSocket server = new ServerSocket(0, CONNECTIONS, InetAddress.getLoopbackAddress())) {
+            /* As Server.startBlocking does in --mode=virtual */
+            Thread acceptor = Thread.ofPlatform().daemon().name("soak-acceptor").start(() -> {
+                try {
+                    while (true) {
+                        Socket accepted = server.accept();
+                        threadFactory.newThread(new ClientThread(accepted, dispatcher, threadFactory, outboundSettings, idleReaper)).start();
+                    }
+                } catch (IOException e) {
+                    /* The server socket closed, the test is over */
+                }
+            });
+
+            CountDownLatch connected = new CountDownLatch(CONNECTIONS);
+            CountDownLatch allConnected = new CountDownLatch(1);
+            CountDownLatch answered = new CountDownLatch(CONNECTIONS);
+            AtomicInteger failures = new AtomicInteger();
+            List<Socket> clients = new ArrayList<>(CONNECTIONS);
+            try {
+                for (int i = 0; i < CONNECTIONS; i++) {
+                    Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                    client.setSoTimeout(60_000);
+                    clients.add(client);
+                    Thread.ofVirtual().start(() -> {
+                        try {
+                            OutputStream out = client.getOutputStream();
+                            InputStream in = new BufferedInputStream(client.getInputStream());
+                            out.write(PacketCodec.hello(0));
+                            out.flush();
+                            assertTrue(PacketCodec.isHello(in.readNBytes(PacketCodec.HELLO_SIZE)));
+                            connected.countDown();
+
+                            /* Nobody pings before every session is up, so they all are at once */
+                            allConnected.await();
+                            PacketCodec.writeFrame(Packet.builder().command(Command.PING).build(), out);
+                            out.flush();
+                            if (PacketCodec.readFrame(in).getCommand() == Command.PING) {
+                                answered.countDown();
+                            }
+                        } catch (Exception | AssertionError e) {
+                            failures.incrementAndGet();
+                        }
+                    });
+                }
+
+                assertTrue("Sessions up: " + (CONNECTIONS - connected.getCount()), connected.await(120, TimeUnit.SECONDS));
+                int platformThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+                allConnected.countDown();
+
+                assertTrue("Sessions answered: " + (CONNECTIONS - answered.getCount()), answered.await(120, TimeUnit.SECONDS));
+                assertEquals(0, failures.get());
+                assertTrue("Platform threads with " + CONNECTIONS + " sessions: " + platformThreads, platformThreads < Math.max(200, CONNECTIONS / 10));
+            } finally {
+                for (Socket client : clients) {
+                    client.close();
+                }
+                server.close();
+                acceptor.join(10_000);
+            }
+        }
+    }
+}
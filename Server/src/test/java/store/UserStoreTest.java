@@ -0,0 +1,45 @@
+package store;
+
+import junit.framework.TestCase;
+import packet.User;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+public class UserStoreTest extends TestCase {
+    public void testVersionsSurviveARestart() throws Exception {
+        Path directory = Files.createTempDirectory("user-store");
+        UserStore store = UserStore.open(StoreSettings.builder().directory(directory.toString()).build());
+        assertTrue(store.load().isEmpty());
+        store.append(User.builder().nickname("alice").password("hash-1").version(42).build()).join();
+
+        List<User> loaded = UserStore.open(StoreSettings.builder().directory(directory.toString()).build()).load();
+        assertEquals(1, loaded.size());
+        assertEquals("hash-1", loaded.get(0).getPassword());
+        assertEquals(42, loaded.get(0).getVersion());
+    }
+
+    /* Records from before accounts were versioned end after the password */
+    public void testUnversionedRecordsLoadAsVersionZero() throws Exception {
+        Path directory = Files.createTempDirectory("user-store");
+        byte[] nickname = "bob".getBytes(StandardCharsets.UTF_8);
+        byte[] password = "hash-2".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(Integer.BYTES + nickname.length + Integer.BYTES + password.length)
+                .putInt(nickname.length).put(nickname).putInt(password.length).put(password).flip();
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        ByteBuffer record = ByteBuffer.allocate(2 * Integer.BYTES + payload.remaining())
+                .putInt(payload.remaining()).putInt((int) crc.getValue()).put(payload).flip();
+        Files.write(directory.resolve("users.wal"), record.array());
+
+        List<User> loaded = UserStore.open(StoreSettings.builder().directory(directory.toString()).build()).load();
+        assertEquals(1, loaded.size());
+        assertEquals("bob", loaded.get(0).getNickname());
+        assertEquals("hash-2", loaded.get(0).getPassword());
+        assertEquals(0, loaded.get(0).getVersion());
+    }
+}